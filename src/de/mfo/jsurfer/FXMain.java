@@ -2,6 +2,13 @@ package de.mfo.jsurfer;
 
 import org.apache.commons.cli.*;
 
+import de.mfo.jsurfer.rendering.AnimationExporter;
+import de.mfo.jsurfer.rendering.BatchRenderer;
+import de.mfo.jsurfer.rendering.CompiledScene;
+import de.mfo.jsurfer.rendering.RenderService;
+import de.mfo.jsurf.rendering.cpu.AntiAliasingPattern;
+import static de.mfo.jsurf.rendering.cpu.CPUAlgebraicSurfaceRenderer.AntiAliasingMode;
+
 public class FXMain
 {
 	public static void main( String[] args )
@@ -14,10 +21,23 @@ public class FXMain
 
 		options.addOption( Option.builder().longOpt( "help" ).desc( "display this help text" ).build() );
 		options.addOption( Option.builder().longOpt( "version" ).desc( "print program version" ).build() );
+		options.addOption( Option.builder().longOpt( "render" ).desc( "render the given jsurf files (or all jsurf files in the given directories) to PNG without starting the GUI" ).build() );
+		options.addOption( Option.builder().longOpt( "compile" ).desc( "write compiled scenes (" + CompiledScene.SUFFIX + ") next to the given jsurf files (or all jsurf files in the given directories), which load faster" ).build() );
+		options.addOption( Option.builder().longOpt( "animate" ).hasArg().argName( "file" ).desc( "render the frames of the animation described in the given file to PNG without starting the GUI, an interrupted export is resumed" ).build() );
+		options.addOption( Option.builder( "o" ).longOpt( "output" ).hasArg().argName( "file|dir" ).desc( "output file (single input) or directory for --render, output directory for --animate (default: <file>_frames)" ).build() );
+		options.addOption( Option.builder().longOpt( "size" ).hasArg().argName( "pixels" ).desc( "width and height of the rendered images of --render and --animate (default: 1024)" ).build() );
+		options.addOption( Option.builder().longOpt( "aa" ).hasArg().argName( "pattern" ).desc( "anti-aliasing pattern for --render, one of " + java.util.Arrays.toString( AntiAliasingPattern.values() ) + " (default: OG_4x4)" ).build() );
+		options.addOption( Option.builder().longOpt( "aa-mode" ).hasArg().argName( "mode" ).desc( "anti-aliasing mode for --render, one of " + java.util.Arrays.toString( AntiAliasingMode.values() ) + " (default: ADAPTIVE_SUPERSAMPLING)" ).build() );
+		options.addOption( Option.builder().longOpt( "jobs" ).hasArg().argName( "n" ).desc( "number of surfaces rendered in parallel by --render, --animate and --serve (default: number of processors)" ).build() );
+		options.addOption( Option.builder().longOpt( "serve" ).desc( "render jsurf files posted to http://<bind>:<port>/render to PNG without starting the GUI" ).build() );
+		options.addOption( Option.builder().longOpt( "port" ).hasArg().argName( "port" ).desc( "port of --serve (default: " + RenderService.DEFAULT_PORT + ")" ).build() );
+		options.addOption( Option.builder().longOpt( "bind" ).hasArg().argName( "address" ).desc( "address --serve listens on (default: 127.0.0.1)" ).build() );
+		options.addOption( Option.builder().longOpt( "queue" ).hasArg().argName( "n" ).desc( "number of requests waiting for --serve before further requests are rejected (default: 16)" ).build() );
+		options.addOption( Option.builder().longOpt( "cache" ).hasArg().argName( "MB" ).desc( "size of the image cache of --serve (default: 64)" ).build() );
 
     	CommandLineParser parser = new PosixParser();
 		HelpFormatter formatter = new HelpFormatter();
-    	String cmd_line_syntax = surfer_progname + " [options] [jsurf_file]\n\n";
+    	String cmd_line_syntax = surfer_progname + " [options] [jsurf_file]\n       " + surfer_progname + " --render [options] jsurf_file|dir...\n       " + surfer_progname + " --animate animation_file [options]\n       " + surfer_progname + " --serve [options]\n\n";
     	String help_header = FXMain.class.getPackage().getImplementationTitle() + " is an interactive renderer for real algebraic surfaces.";
     	String help_footer = "";
 		try
@@ -36,6 +56,35 @@ public class FXMain
     			return;
     		}
 
+			if( cmd.hasOption( "render" ) )
+			{
+				System.exit( render( cmd ) );
+				return;
+			}
+
+			if( cmd.hasOption( "compile" ) )
+			{
+				System.exit( compile( cmd ) );
+				return;
+			}
+
+			if( cmd.hasOption( "animate" ) )
+			{
+				System.exit( animate( cmd ) );
+				return;
+			}
+
+			if( cmd.hasOption( "serve" ) )
+			{
+				int exitCode = serve( cmd );
+				if( exitCode != 0 )
+					System.exit( exitCode );
+				return;
+			}
+
+			// prepare what the GUI needs while the JavaFX runtime starts
+			de.mfo.jsurfer.gui.Preloader.start();
+			de.mfo.jsurfer.util.StartupTimer.begin( "javafx runtime" );
 			String[] args_FX = new String[ cmd.getArgs().length + 1 ];
 			args_FX[ 0 ] = "MainJavaFXScript=de.mfo.jsurfer.fxgui.Main";
 			for( int i = 0; i < cmd.getArgs().length; ++i )
@@ -47,4 +96,155 @@ public class FXMain
     	    System.exit( -1 );
     	}
 	}
+
+	/**
+	 * Compiles jsurf files, see @see{CompiledScene}.
+	 * @return the exit code of the program
+	 */
+	static int compile( CommandLine cmd )
+	{
+		System.setProperty( "java.awt.headless", "true" );
+		if( cmd.getArgs().length == 0 )
+		{
+			System.err.println( "--compile requires at least one jsurf file or directory" );
+			return -1;
+		}
+		int failed = 0;
+		for( String arg : cmd.getArgs() )
+		{
+			java.io.File f = new java.io.File( arg );
+			if( f.isDirectory() )
+			{
+				failed += CompiledScene.compileFolder( f );
+				continue;
+			}
+			try
+			{
+				CompiledScene.compile( f );
+			}
+			catch( Exception e )
+			{
+				System.err.println( "unable to compile " + f + ": " + e );
+				failed++;
+			}
+		}
+		return failed == 0 ? 0 : 1;
+	}
+
+	/**
+	 * Headless export of an animation.
+	 * @return the exit code of the program
+	 */
+	static int animate( CommandLine cmd )
+	{
+		System.setProperty( "java.awt.headless", "true" );
+		try
+		{
+			int size = Integer.parseInt( cmd.getOptionValue( "size", "1024" ) );
+			int jobs = Integer.parseInt( cmd.getOptionValue( "jobs", "" + Runtime.getRuntime().availableProcessors() ) );
+			if( size <= 0 || jobs <= 0 )
+			{
+				System.err.println( "--size and --jobs must be positive" );
+				return -1;
+			}
+			AntiAliasingPattern aap = AntiAliasingPattern.valueOf( cmd.getOptionValue( "aa", "OG_4x4" ) );
+			AntiAliasingMode aam = AntiAliasingMode.valueOf( cmd.getOptionValue( "aa-mode", "ADAPTIVE_SUPERSAMPLING" ) );
+
+			java.io.File animation = new java.io.File( cmd.getOptionValue( "animate" ) );
+			String name = animation.getName().replaceFirst( "\\.[^.]*$", "" );
+			java.io.File dir = new java.io.File( cmd.getOptionValue( "output", new java.io.File( animation.getAbsoluteFile().getParentFile(), name + "_frames" ).getPath() ) );
+			AnimationExporter ae = AnimationExporter.load( animation );
+			ae.setSize( size, size );
+			ae.setAntiAliasing( aam, aap );
+			ae.setNumWorkers( jobs );
+			ae.run( dir );
+			return 0;
+		}
+		catch( IllegalArgumentException iae )
+		{
+			System.err.println( "Invalid argument: " + iae.getMessage() );
+		}
+		catch( Exception e )
+		{
+			System.err.println( e );
+		}
+		return -1;
+	}
+
+	/**
+	 * Starts the headless HTTP render service, which runs until the process is
+	 * terminated.
+	 * @return the exit code of the program, if the service could not be started
+	 */
+	static int serve( CommandLine cmd )
+	{
+		System.setProperty( "java.awt.headless", "true" );
+		try
+		{
+			int port = Integer.parseInt( cmd.getOptionValue( "port", "" + RenderService.DEFAULT_PORT ) );
+			int jobs = Integer.parseInt( cmd.getOptionValue( "jobs", "" + Runtime.getRuntime().availableProcessors() ) );
+			int queue = Integer.parseInt( cmd.getOptionValue( "queue", "16" ) );
+			int cacheMB = Integer.parseInt( cmd.getOptionValue( "cache", "64" ) );
+			if( jobs <= 0 || queue <= 0 || cacheMB < 0 )
+			{
+				System.err.println( "--jobs and --queue must be positive, --cache must not be negative" );
+				return -1;
+			}
+			java.net.InetSocketAddress address = new java.net.InetSocketAddress( cmd.getOptionValue( "bind", "127.0.0.1" ), port );
+			RenderService service = new RenderService( address, jobs, queue, cacheMB * 1024L * 1024L );
+			service.start();
+			System.out.println( "rendering on http://" + address.getAddress().getHostAddress() + ":" + service.getAddress().getPort() + "/render" );
+			// the worker threads are daemons
+			while( true )
+				Thread.sleep( Long.MAX_VALUE );
+		}
+		catch( IllegalArgumentException iae )
+		{
+			System.err.println( "Invalid argument: " + iae.getMessage() );
+		}
+		catch( Exception e )
+		{
+			System.err.println( e );
+		}
+		return -1;
+	}
+
+	/**
+	 * Headless batch rendering. Never touches Swing or JavaFX.
+	 * @return the exit code of the program
+	 */
+	static int render( CommandLine cmd )
+	{
+		System.setProperty( "java.awt.headless", "true" );
+		try
+		{
+			if( cmd.getArgs().length == 0 )
+			{
+				System.err.println( "--render requires at least one jsurf file or directory" );
+				return -1;
+			}
+			int size = Integer.parseInt( cmd.getOptionValue( "size", "1024" ) );
+			int jobs = Integer.parseInt( cmd.getOptionValue( "jobs", "" + Runtime.getRuntime().availableProcessors() ) );
+			if( size <= 0 || jobs <= 0 )
+			{
+				System.err.println( "--size and --jobs must be positive" );
+				return -1;
+			}
+			AntiAliasingPattern aap = AntiAliasingPattern.valueOf( cmd.getOptionValue( "aa", "OG_4x4" ) );
+			AntiAliasingMode aam = AntiAliasingMode.valueOf( cmd.getOptionValue( "aa-mode", "ADAPTIVE_SUPERSAMPLING" ) );
+
+			BatchRenderer br = new BatchRenderer( size, size, aam, aap, jobs );
+			br.addJobs( java.util.Arrays.asList( cmd.getArgs() ), cmd.getOptionValue( "output" ) );
+			return br.run() == 0 ? 0 : 1;
+		}
+		catch( IllegalArgumentException iae )
+		{
+			System.err.println( "Invalid argument: " + iae.getMessage() );
+		}
+		catch( Exception e )
+		{
+			System.err.println( e );
+		}
+		return -1;
+	}
 }
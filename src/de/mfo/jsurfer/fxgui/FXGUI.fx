@@ -34,6 +34,7 @@ public class FXGUI extends javafx.scene.CustomNode
             }
             return (n-tmp*fxdLayoutFile.layoutBounds.maxY);
         }
+    def layoutStarted = de.mfo.jsurfer.util.StartupTimer.begin( "layout" );
     def fxdLayoutFile:javafx.fxd.FXDNode = javafx.fxd.FXDNode
 	{
 //                url:    "{__DIR__}surfer_touchscreen_1024_x_768.fxz"
@@ -42,6 +43,7 @@ public class FXGUI extends javafx.scene.CustomNode
                 cache: true
                 cacheHint:  javafx.scene.CacheHint.QUALITY
 	}
+    def layoutLoaded = de.mfo.jsurfer.util.StartupTimer.end( "layout" );
         
     var AlgebraicExpressionButtonPanel:FXAlgebraicExpressionButtonPanel = FXAlgebraicExpressionButtonPanel
     {
@@ -462,57 +464,39 @@ public class FXGUI extends javafx.scene.CustomNode
          }
       }
 
+    var printQueue : de.mfo.jsurfer.gui.PrintQueue;
+
+    /**
+     * Queues the current scene for printing. The image is rendered and
+     * printed in the background, the message box shows the progress but
+     * can be closed immediately.
+     */
     public function print()
     {
-        var mb : MessageBox = MessageBox { message: de.mfo.jsurfer.gui.Options.printMsg };
-        mb.show( this.scene, false );
-
-        var timeline = javafx.animation.Timeline
-        {
-            keyFrames: javafx.animation.KeyFrame
+        def printMsg = de.mfo.jsurfer.gui.Options.printMsg;
+        var mb : MessageBox = MessageBox { message: printMsg };
+        mb.show( this.scene, true );
+
+        if( printQueue == null )
+            printQueue = new de.mfo.jsurfer.gui.PrintQueue( surferPanel.renderer );
+        System.out.println("Printing ...");
+        printQueue.submit( AlgebraicExpressionButtonPanel.ExpressionField.rawText, de.mfo.jsurfer.gui.PrintQueue.Listener {
+            override function stateChanged( state : de.mfo.jsurfer.gui.PrintQueue.State, jobsAhead : Integer ) : Void
             {
-                time: 1s
-                action: function()
-                {
-                    System.out.println("Printing ...");
-                    var print_dir:String = "{de.mfo.jsurfer.gui.Options.printExportDir}{java.io.File.separator}";
-                    var f:java.io.File=new java.io.File( "{print_dir}print_tmp.png" );
-                    System.out.println( "writing image to {f.getAbsolutePath()}" );
-                    try{surferPanel.renderer.saveToPNG(f,1280,1280)}
-                    catch(e:java.io.IOException)
-                    {
-                        System.out.println(e);
-                    }
-                    var f2:java.io.File=new java.io.File("{print_dir}print_tmp.tex") ;
-                    System.out.println( "writing TeX to {f2.getAbsolutePath()}" );
-                    try{surferPanel.renderer.saveString(f2, de.mfo.jsurfer.util.Texify.texify( AlgebraicExpressionButtonPanel.ExpressionField.rawText ) )}
-                    catch(e:java.io.IOException)
-                    {
-                        System.out.println(e);
-                    }
-
-                    var f3:java.io.File=new java.io.File("{print_dir}print_tmp.jsurf") ;
-                    System.out.println( "writing jsurf to {f3.getAbsolutePath()}" );
-                    try{surferPanel.renderer.saveToFile(f3.toURL());}
-                    catch (e:java.lang.Exception)
-                    {
-                        System.out.println(e.getMessage());
-                        e.printStackTrace();
-                    }
-
-                    try
-                    {
-                        var proc:java.lang.Process  = java.lang.Runtime.getRuntime().exec("{de.mfo.jsurfer.gui.Options.printCmd} {de.mfo.jsurfer.gui.Options.printExportDir}");
-                    }
-                    catch (e:java.lang.Exception)
-                    {
-                        System.out.println(e.getMessage());
-                        e.printStackTrace();
-                    }
-                    mb.enableOk();
-                }
+                // called from the print thread
+                FX.deferAction( function() : Void {
+                    if( state == de.mfo.jsurfer.gui.PrintQueue.State.QUEUED and jobsAhead > 0 )
+                        mb.message = "{printMsg}\n\n({jobsAhead} in queue)"
+                    else if( state == de.mfo.jsurfer.gui.PrintQueue.State.RENDERING )
+                        mb.message = "{printMsg}\n\n(rendering ...)"
+                    else if( state == de.mfo.jsurfer.gui.PrintQueue.State.PRINTING )
+                        mb.message = "{printMsg}\n\n(printing ...)"
+                    else if( state == de.mfo.jsurfer.gui.PrintQueue.State.FAILED )
+                        mb.message = "{printMsg}\n\n(printing failed)"
+                    else
+                        mb.message = printMsg;
+                } );
             }
-        }
-        timeline.playFromStart();
+        } );
     }
 }
@@ -74,7 +74,10 @@ public class FXGalleryChooser extends CustomNode
                             [
                                 javafx.scene.image.ImageView
                                 {
-                                    image: bind JavaFXExtWrapper.toFXImage( gallerys[g].getIcon() )
+                                    // a view into the icon atlas of the gallery, which is also shown by FXGalleryMini,
+                                    // the chooser is shown at startup, so it does not wait for a gallery to be loaded
+                                    image: bind if( gallerys[g].getIconBounds() != null ) JavaFXExtWrapper.toSharedFXImage( gallerys[g].getIconAtlas() ) else null
+                                    viewport: bind JavaFXExtWrapper.toViewport( gallerys[g].getIconBounds() )
                                     fitHeight:bind (height-4*5)/5
                                     preserveRatio: true
                                     layoutInfo:javafx.scene.layout.LayoutInfo{hpos:javafx.geometry.HPos.LEFT}
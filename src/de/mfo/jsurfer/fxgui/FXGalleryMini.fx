@@ -24,67 +24,86 @@ public class FXGalleryMini extends CustomNode
     public var gallery:Integer;
     public var surface:Integer;
     public var press:function(s:Integer):Void;
+    /** the galleries are loaded when they are shown the first time */
+    public var shown:Boolean;
 
 
     var galleryNodes:javafx.scene.layout.Tile[]=for (i in [0..de.mfo.jsurfer.gui.Gallery.getNumberOfGalleries(language)-1])javafx.scene.layout.Tile{};
-    public override function create(): javafx.scene.Node
+    var galleryNodesCreated:Boolean[]=for (i in [0..de.mfo.jsurfer.gui.Gallery.getNumberOfGalleries(language)-1])false;
+
+    function getGalleryNode(g:Integer):javafx.scene.layout.Tile
     {
-        //galleryNodes=for (i in [0..de.mfo.jsurfer.gui.Gallery.getNumberOfGalleries(language)-1])javafx.scene.layout.Tile{};
-        
-        for (g in [0..de.mfo.jsurfer.gui.Gallery.getNumberOfGalleries(language)-1])
+        if( not galleryNodesCreated[g] )
         {
-            galleryNodes[g]=javafx.scene.layout.Tile
+            createGalleryNode(g);
+            galleryNodesCreated[g]=true;
+        }
+        return galleryNodes[g];
+    }
+
+    function createGalleryNode(g:Integer):Void
+    {
+        // loads the gallery, so the atlas below is the one the bounds of the entries refer to
+        def entries = gallerys[g].getEntries();
+        // all icons of the gallery are views into one image
+        def atlas = gallerys[g].getIconAtlas();
+        def icons = JavaFXExtWrapper.toSharedFXImage( atlas );
+        galleryNodes[g]=javafx.scene.layout.Tile
+        {
+            columns: 3
+            hgap: 20
+            vgap: 20
+            autoSizeTiles: false
+            tileWidth: bind (( width - 2*20-10 - 1 )/3.0)
+            padding: javafx.geometry.Insets{ top: 20 left: 10 }
+            nodeVPos: javafx.geometry.VPos.BOTTOM
+            nodeHPos: javafx.geometry.HPos.CENTER
+            layoutInfo:javafx.scene.layout.LayoutInfo
             {
-                columns: 3
-                hgap: 20
-                vgap: 20
-                autoSizeTiles: false
-                tileWidth: bind (( width - 2*20-10 - 1 )/3.0)
-                padding: javafx.geometry.Insets{ top: 20 left: 10 }
-                nodeVPos: javafx.geometry.VPos.BOTTOM
-                nodeHPos: javafx.geometry.HPos.CENTER
-                layoutInfo:javafx.scene.layout.LayoutInfo
-                {
-                    width: bind width  
-                    height: bind height
-                }
+                width: bind width  
+                height: bind height
+            }
 
-                content:
-                [
-                    for (i in [0..(gallerys[g].getEntries().length-1)])
-                    {
-                        Label {
-                            layoutInfo: javafx.scene.layout.LayoutInfo
-                            {
-                                width: bind (( width - 2*20-10 - 1 )/3.0)
-                            }
-                            id: "FXGalleryChooser{language}{gallery} {i}"
-                            onMousePressed : function(e: javafx.scene.input.MouseEvent): Void {press(i);}
-                            text: bind "{gallerys[g].getEntries()[ i ].getName()}"
-                            font: javafx.scene.text.Font.font( "Arial", javafx.scene.text.FontWeight.REGULAR, 19 )
-                            hpos: javafx.geometry.HPos.CENTER
-                            vpos: javafx.geometry.VPos.TOP
-                            textOverrun: javafx.scene.control.OverrunStyle.CLIP
-                            textWrap: false
-                            textAlignment: javafx.scene.text.TextAlignment.CENTER
-                            graphic: javafx.scene.image.ImageView
-                            {
-                                image: bind JavaFXExtWrapper.toFXImage( gallerys[g].getEntries()[ i ].getIcon() )
-                                fitWidth: 150
-                                preserveRatio: true
-                            }
-                            graphicHPos: javafx.geometry.HPos.CENTER
-                            graphicVPos: javafx.geometry.VPos.TOP
+            content:
+            [
+                for (i in [0..(entries.length-1)])
+                {
+                    Label {
+                        layoutInfo: javafx.scene.layout.LayoutInfo
+                        {
+                            width: bind (( width - 2*20-10 - 1 )/3.0)
+                        }
+                        id: "FXGalleryChooser{language}{gallery} {i}"
+                        onMousePressed : function(e: javafx.scene.input.MouseEvent): Void {press(i);}
+                        text: bind "{entries[ i ].getName()}"
+                        font: javafx.scene.text.Font.font( "Arial", javafx.scene.text.FontWeight.REGULAR, 19 )
+                        hpos: javafx.geometry.HPos.CENTER
+                        vpos: javafx.geometry.VPos.TOP
+                        textOverrun: javafx.scene.control.OverrunStyle.CLIP
+                        textWrap: false
+                        textAlignment: javafx.scene.text.TextAlignment.CENTER
+                        graphic: javafx.scene.image.ImageView
+                        {
+                            def bounds = entries[ i ].getIconBounds();
+                            image: if( bounds != null ) icons else JavaFXExtWrapper.toFXImage( entries[ i ].getIcon() )
+                            viewport: JavaFXExtWrapper.toViewport( bounds )
+                            fitWidth: 150
+                            preserveRatio: true
                         }
+                        graphicHPos: javafx.geometry.HPos.CENTER
+                        graphicVPos: javafx.geometry.VPos.TOP
                     }
-                ]
-            }
+                }
+            ]
         }
-        
+    }
+
+    public override function create(): javafx.scene.Node
+    {
         return javafx.scene.Group
         {
             translateX: bind x translateY: bind y;
-            content: bind [ galleryNodes[ gallery ] ]
+            content: bind if( shown ) [ getGalleryNode( gallery ) ] else []
         }
     }
 }
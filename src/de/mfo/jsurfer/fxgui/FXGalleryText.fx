@@ -19,6 +19,8 @@ public class FXGalleryText extends CustomNode
     public var height: Number;
     public var gallerys:de.mfo.jsurfer.gui.Gallery[];
     public var gallery:Integer;
+    /** the description is rendered, when it is shown */
+    public var shown:Boolean;
     public override function create(): javafx.scene.Node
     {
         return javafx.scene.Group
@@ -38,7 +40,7 @@ public class FXGalleryText extends CustomNode
                         }*/
                         javafx.scene.image.ImageView
                         {
-                            image: bind JavaFXExtWrapper.toFXImage( gallerys[gallery].getDescription(width,height) )
+                            image: bind if( shown ) JavaFXExtWrapper.toFXImage( gallerys[gallery].getDescription(width,height) ) else null
                             fitHeight:bind height
                             fitWidth: bind width
                             preserveRatio: true
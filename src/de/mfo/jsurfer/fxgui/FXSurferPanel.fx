@@ -19,6 +19,7 @@ import de.mfo.jsurf.algebra.*;
 import de.mfo.jsurf.parser.*;
 import de.mfo.jsurf.algebra.*;
 import de.mfo.jsurfer.gui.JSurferRenderPanel;
+import de.mfo.jsurfer.rendering.ParsedExpressionCache;
 
 
 public class FXSurferPanel extends CustomNode {
@@ -178,6 +179,13 @@ public class FXSurferPanel extends CustomNode {
         initLights();
         initMaterials();
         renderer.setScale( 0.5 );
+        renderer.getFrameRateController().setTargetFrameTime( de.mfo.jsurfer.gui.Options.targetFrameTime );
+        renderer.setFrameCache( de.mfo.jsurfer.rendering.FrameCache.create( de.mfo.jsurfer.gui.Options.renderCacheSize, de.mfo.jsurfer.gui.Options.renderCacheDiskSize ) );
+        renderer.setRotationSprites( de.mfo.jsurfer.gui.Options.rotationSprites );
+        renderer.setParameterSweep( de.mfo.jsurfer.gui.Options.parameterSweep );
+        renderer.setRotationExtrapolation( de.mfo.jsurfer.gui.Options.rotationExtrapolation );
+        renderer.setReprojection( de.mfo.jsurfer.gui.Options.reprojection );
+        renderer.setReshading( de.mfo.jsurfer.gui.Options.reshading );
         /*void mouseWheelMoved(MouseWheelEvent e)
         {
             
@@ -266,15 +274,14 @@ var p:PolynomialOperation;
            var params:java.util.Set = p.accept( new DoubleVariableExtractor(), ( null as java.lang.Void ) );
            System.out.println( "degree={degree}" );
            System.out.println( "parameters={params.toString()}" );*/
-           var p:PolynomialOperation = AlgebraicExpressionParser.parse( expression );
-            var degree:Integer = p.accept( new DegreeCalculator(), ( null as java.lang.Void ) );
+           // parsed at most once, known expressions are taken from the cache
+           var parsed:ParsedExpressionCache.Entry = ParsedExpressionCache.parse( expression );
+            var degree:Integer = parsed.degree;
             
            // current version does not support surface parameters
            /*if( p.accept( new DoubleVariableChecker(), ( Void ) null ) )
                throw new Exception();*/
-               var old:PolynomialOperation=renderer.getAlgebraicSurfaceRenderer().getSurfaceFamily();
                var oldString:String=renderer.getAlgebraicSurfaceRenderer().getSurfaceFamilyString();
-               renderer.getAlgebraicSurfaceRenderer().setSurfaceFamily(p);
                renderer.getAlgebraicSurfaceRenderer().setSurfaceFamily(expression);
                var  PAR:Set=renderer.getAlgebraicSurfaceRenderer().getAllParameterNames();
                System.out.println("PAR voll:{PAR}");
@@ -285,7 +292,7 @@ var p:PolynomialOperation;
                System.out.println("PAR leer({usedA},{usedB},{usedC},{usedD}):{PAR}");
                if (not PAR.isEmpty() or degree>30)
                {
-                   renderer.getAlgebraicSurfaceRenderer().setSurfaceFamily(old);
+                   renderer.getAlgebraicSurfaceRenderer().setSurfaceFamily(oldString);
                    System.out.println("falsch {oldString}");
                    correctExpression=false;
                    return false;
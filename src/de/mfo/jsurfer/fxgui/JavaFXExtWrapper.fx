@@ -16,6 +16,39 @@ public function toFXImage( image: java.awt.image.BufferedImage ): javafx.scene.i
     return SwingUtils.toFXImage( image );
 }
 
+// the FX images of images shown by several nodes, the FX images are only
+// weakly referenced, so they are converted again once they are not shown anymore
+def sharedImages = new java.util.WeakHashMap();
+
+/**
+ * converts an image, which is shown by several nodes (e.g. an icon atlas),
+ * only once
+ */
+public function toSharedFXImage( image: java.awt.image.BufferedImage ): javafx.scene.image.Image
+{
+    if( image == null )
+        return null;
+    def ref = sharedImages.get( image ) as java.lang.ref.Reference;
+    var fxImage = if( ref != null ) ref.get() as javafx.scene.image.Image else null;
+    if( fxImage == null )
+    {
+        fxImage = toFXImage( image );
+        sharedImages.put( image, new java.lang.ref.WeakReference( fxImage ) );
+    }
+    return fxImage;
+}
+
+/**
+ * converts the bounds of a part of an image into a viewport of an ImageView,
+ * null is converted to null, which shows the whole image
+ */
+public function toViewport( r: java.awt.Rectangle ): javafx.geometry.Rectangle2D
+{
+    if( r == null )
+        return null;
+    return javafx.geometry.Rectangle2D { minX: r.x minY: r.y width: r.width height: r.height };
+}
+
 public function wrap( jComponent: javax.swing.JComponent ) : SwingComponent
 {
     return SwingComponent.wrap( jComponent );
@@ -36,6 +36,9 @@ function toggleFullscreenKey(e:KeyEvent):Void
 
 }
 
+de.mfo.jsurfer.util.StartupTimer.end( "javafx runtime" );
+de.mfo.jsurfer.util.StartupTimer.begin( "gui" );
+
 javax.swing.UIManager.setLookAndFeel( javax.swing.UIManager.getCrossPlatformLookAndFeelClassName());
 
 def GUI: de.mfo.jsurfer.fxgui.FXGUI = de.mfo.jsurfer.fxgui.FXGUI{
@@ -187,3 +190,4 @@ if( FX.getArguments().size() > 0 )
 }
 
 GUI.requestFocus();
+de.mfo.jsurfer.util.StartupTimer.end( "gui" );
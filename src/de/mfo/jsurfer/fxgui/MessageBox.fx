@@ -18,7 +18,7 @@ import javafx.scene.shape.Rectangle;
 public class MessageBox extends javafx.scene.CustomNode
 {
     def f40=Globals.getJavaFXFont( 40 );
-    public-init var message : String;
+    public var message : String;
 
     public override function create(): javafx.scene.Node
     {
@@ -53,7 +53,7 @@ public class MessageBox extends javafx.scene.CustomNode
 
     public-read def text: javafx.scene.text.Text = javafx.scene.text.Text {
         textAlignment: javafx.scene.text.TextAlignment.LEFT
-        content: message
+        content: bind message
         wrappingWidth: 600
         font: f40
     }
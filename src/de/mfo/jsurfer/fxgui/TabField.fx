@@ -68,6 +68,8 @@ public class TabField {
     public var tabTextGallery:javafx.scene.Group;
     
     var pointerGallery:Integer=0;
+    // the galleries are loaded when the gallery tab is opened, not at startup
+    var galleryShown:Boolean=false;
     var pointerSurface:Integer=0;
 
     function setColorChooser()
@@ -134,6 +136,7 @@ public class TabField {
                     height:bind G.height*getScale(sceneHeight,sceneWidth),
                     gallerys:bind galleries,
                     gallery:bind pointerGallery
+                    shown:bind galleryShown
                 }
             ]
             translateX:bind (tabBoxNode.translateX+G.minX)*getScale(sceneHeight,sceneWidth)
@@ -159,6 +162,7 @@ public class TabField {
                     gallerys: bind galleries,
                     gallery:bind pointerGallery
                     surface:bind pointerSurface
+                    shown:bind galleryShown
                     press:function(s:Integer):Void
                     {
                         pointerSurface=s;
@@ -217,6 +221,7 @@ public class TabField {
         GalleryChooser.visible=true;
         GalleryText.visible=true;
         GalleryMini.visible=true;
+        galleryShown=true;
         sliders.setVisibility(false);
         disableButtons();
     }
@@ -235,6 +240,7 @@ public class TabField {
         GalleryChooser.visible=false;
         GalleryText.visible=false;
         GalleryMini.visible=false;
+        galleryShown=false;
         sliders.setVisibility(true);
         enableButtons();
     }
@@ -253,6 +259,7 @@ public class TabField {
         GalleryChooser.visible=false;
         GalleryText.visible=false;
         GalleryMini.visible=false;
+        galleryShown=false;
         sliders.setVisibility(true);
         enableButtons();
     }
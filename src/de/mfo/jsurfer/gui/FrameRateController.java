@@ -0,0 +1,136 @@
+package de.mfo.jsurfer.gui;
+
+import java.awt.Dimension;
+import java.util.Arrays;
+
+/**
+ * Chooses the resolution of the interactive (low resolution) rendering pass
+ * and the delay before the high resolution passes are started.
+ * The rendering time per pixel is estimated from a history of recent frames
+ * (the median, so single slow frames due to garbage collection or other
+ * processes do not matter). The resolution follows that estimate with some
+ * hysteresis, so it does not change on every frame when the timing jitters.
+ * Instances are thread safe.
+ */
+public class FrameRateController
+{
+    static final int HISTORY_SIZE = 9;
+    static final double HYSTERESIS = 0.15;
+    static final long MIN_HI_RES_DELAY = 50;
+    static final long MAX_HI_RES_DELAY = 500;
+
+    double targetFrameTime = 1.0 / 15.0;
+
+    double[] timePerPixelHistory = new double[ HISTORY_SIZE ];
+    double[] sorted = new double[ HISTORY_SIZE ];
+    int numSamples = 0;
+    int nextSample = 0;
+    double lastFrameTime = 0.0;
+    double smoothedFrameTime = 0.0;
+    int side = 0;
+
+    /**
+     * @param seconds the time one interactive frame should take
+     */
+    public synchronized void setTargetFrameTime( double seconds )
+    {
+        if( seconds <= 0.0 )
+            throw new IllegalArgumentException( "target frame time must be positive" );
+        targetFrameTime = seconds;
+    }
+
+    public synchronized double getTargetFrameTime()
+    {
+        return targetFrameTime;
+    }
+
+    /**
+     * Adds the timing of a finished interactive frame.
+     */
+    public synchronized void addSample( int width, int height, long nanos )
+    {
+        if( width <= 0 || height <= 0 )
+            return;
+        double seconds = nanos / 1000000000.0;
+        timePerPixelHistory[ nextSample ] = seconds / ( ( long ) width * height );
+        nextSample = ( nextSample + 1 ) % HISTORY_SIZE;
+        numSamples = Math.min( numSamples + 1, HISTORY_SIZE );
+        lastFrameTime = seconds;
+        smoothedFrameTime = smoothedFrameTime == 0.0 ? seconds : 0.7 * smoothedFrameTime + 0.3 * seconds;
+    }
+
+    /**
+     * Forgets the timing history, e.g. after the surface has been changed,
+     * because the rendering time depends heavily on the degree of the surface.
+     */
+    public synchronized void reset()
+    {
+        numSamples = 0;
+        nextSample = 0;
+        lastFrameTime = 0.0;
+        smoothedFrameTime = 0.0;
+    }
+
+    /**
+     * @return the median rendering time per pixel of the recent frames or
+     *         NaN if there has not been any frame yet
+     */
+    public synchronized double getTimePerPixel()
+    {
+        if( numSamples == 0 )
+            return Double.NaN;
+        System.arraycopy( timePerPixelHistory, 0, sorted, 0, numSamples );
+        Arrays.sort( sorted, 0, numSamples );
+        return sorted[ numSamples / 2 ];
+    }
+
+    public synchronized double getLastFrameTime()
+    {
+        return lastFrameTime;
+    }
+
+    /**
+     * Computes the size of the next interactive frame, which is square and
+     * limited by the minimum and maximum size and the size of the component.
+     */
+    public synchronized Dimension nextRenderSize( Dimension minSize, Dimension maxSize, int componentWidth, int componentHeight )
+    {
+        long minPixels = ( long ) minSize.width * minSize.height;
+        long maxPixels = ( long ) maxSize.width * maxSize.height;
+        maxPixels = Math.max( 1, Math.min( maxPixels, ( long ) componentWidth * componentHeight ) );
+        minPixels = Math.min( minPixels, maxPixels );
+        int minSide = ( int ) Math.sqrt( minPixels );
+        int maxSide = Math.max( 1, ( int ) Math.sqrt( maxPixels ) );
+
+        double timePerPixel = getTimePerPixel();
+        int desiredSide = Double.isNaN( timePerPixel ) ? minSide : ( int ) Math.sqrt( targetFrameTime / timePerPixel );
+        desiredSide = Math.max( minSide, Math.min( maxSide, desiredSide ) );
+
+        // only follow the estimate if it differs significantly from the current resolution
+        if( side <= 0 || Math.abs( desiredSide - side ) > HYSTERESIS * side || side > maxSide || side < minSide )
+            side = desiredSide;
+        return new Dimension( side, side );
+    }
+
+    /**
+     * @return the time in milliseconds to wait for further user input before
+     *         the high resolution passes are started
+     */
+    public synchronized long getHiResDelay()
+    {
+        // user input usually arrives at the frame rate, so wait for about one and a half frames
+        long delay = ( long ) ( 1500.0 * Math.max( smoothedFrameTime, targetFrameTime ) );
+        return Math.max( MIN_HI_RES_DELAY, Math.min( MAX_HI_RES_DELAY, delay ) );
+    }
+
+    public synchronized Dimension getRenderSize()
+    {
+        return new Dimension( side, side );
+    }
+
+    public synchronized String toString()
+    {
+        return "FrameRateController[target=" + Math.round( 1000.0 * targetFrameTime ) + "ms, last frame=" + Math.round( 1000.0 * lastFrameTime )
+            + "ms, time per pixel=" + getTimePerPixel() + "s, size=" + side + "x" + side + ", hi res delay=" + getHiResDelay() + "ms]";
+    }
+}
@@ -12,29 +12,76 @@ import javax.imageio.ImageIO;
 import java.net.*;
 import java.io.*;
 import java.nio.*;
+import java.util.concurrent.*;
 
 import org.jpedal.PdfDecoder;
 import org.jpedal.exception.PdfException;
+import org.jpedal.objects.PdfPageData;
 import org.w3c.dom.*;
 
 
 /**
+ * A gallery of surfaces, whose names and descriptions are read from a PDF file.
+ * Opening and parsing the PDF files takes long, so it is done in the
+ * background by a single low priority thread in the order in which the
+ * galleries are created. Methods which need the contents of a gallery, which
+ * has not been loaded yet, load it in the calling thread. Only the name and
+ * the icon of a gallery are available at once (see @see{readPreview}), so
+ * they can be shown at startup without waiting for the PDF file. All Gallery
+ * objects of the same gallery and locale share the contents loaded by the
+ * first one.
+ * The description pages are rendered at the requested size and the most
+ * recently used ones are cached.
+ * The icons of a gallery and its surfaces are packed into one
+ * @see{IconAtlas}, which is built together with the contents, so they are
+ * decoded at once.
  *
  * @author stussak
  */
 public class Gallery {
 
+    public static final int MAX_CACHED_DESCRIPTIONS = 32;
+
+    static final ExecutorService loader = Executors.newSingleThreadExecutor( new ThreadFactory() {
+        public Thread newThread( Runnable r )
+        {
+            Thread t = new Thread( r, "gallery loader" );
+            t.setDaemon( true );
+            t.setPriority( Thread.MIN_PRIORITY );
+            return t;
+        }
+    } );
+    /** the galleries which load their contents, by number and locale */
+    static final Map< String, Gallery > sharedGalleries = new HashMap< String, Gallery >();
+    /** rendered description pages by gallery, locale, page and size */
+    static final LinkedHashMap< String, BufferedImage > descriptions = new LinkedHashMap< String, BufferedImage >( 16, 0.75f, true ) {
+        protected boolean removeEldestEntry( Map.Entry< String, BufferedImage > eldest )
+        {
+            return size() > MAX_CACHED_DESCRIPTIONS;
+        }
+    };
+
     ResourceBundle rb;
     Locale locale;
 
     int number;
     String key;
+    /** the gallery which loads and holds the contents, may be this */
+    final Gallery shared;
+    boolean loaded;
+    /** true, when the contents have been loaded */
+    volatile boolean complete;
     String name;
+    String iconKey;
     URL iconURL;
-    BufferedImage icon;
+    IconAtlas iconAtlas;
     PdfDecoder pdfDecoder;
-    BufferedImage description;
     GalleryItem[] gallery_items;
+    /** the name, icon and icon atlas, which are shown until the contents have been loaded */
+    String previewName;
+    String previewIconKey;
+    String previewIcons;
+    IconAtlas previewAtlas;
 
     public static int getNumberOfGalleries() throws IOException
     {
@@ -59,6 +106,156 @@ public class Gallery {
         this.number = number;
         this.key = rb.getString( "gallery_" + number + "_key" ).trim();
 
+        String id = number + "_" + locale;
+        synchronized( sharedGalleries )
+        {
+            Gallery g = sharedGalleries.get( id );
+            if( g == null )
+            {
+                g = this;
+                readPreview();
+                sharedGalleries.put( id, this );
+                loader.execute( new Runnable() {
+                    public void run() { load(); }
+                } );
+            }
+            this.shared = g;
+        }
+    }
+
+    /**
+     * @return the gallery holding the contents, which have been loaded
+     */
+    Gallery loaded()
+    {
+        shared.load();
+        return shared;
+    }
+
+    /**
+     * Opens the PDF file and reads the names of the gallery and its surfaces
+     * from its outline, unless this has been done before.
+     */
+    synchronized void load()
+    {
+        if( loaded )
+            return;
+        loaded = true;
+        try
+        {
+            readContents();
+        }
+        catch( Exception e )
+        {
+            System.err.println( "could not load gallery " + key + " for locale " + locale );
+            e.printStackTrace();
+            if( name == null )
+                name = key;
+            if( gallery_items == null )
+                gallery_items = new GalleryItem[ 0 ];
+        }
+        complete = true;
+    }
+
+    /**
+     * @return the file, in which the name and the icon of the gallery are
+     *         stored for the next start
+     */
+    File previewFile()
+    {
+        return new File( IconAtlas.getDefaultDirectory(), key + "_" + locale + ".gallery" );
+    }
+
+    /**
+     * Reads the name and the icon of the gallery, which have been stored by
+     * @see{writePreview} when it has been loaded before. If they have not
+     * been stored yet, the name from Gallery.properties is shown and there is
+     * no icon until the contents have been loaded.
+     */
+    void readPreview()
+    {
+        previewName = rb.containsKey( "gallery_" + number + "_name" ) ? rb.getString( "gallery_" + number + "_name" ).trim() : key;
+        File f = previewFile();
+        if( !f.isFile() )
+            return;
+        try
+        {
+            Properties p = new Properties();
+            InputStream is = new FileInputStream( f );
+            try
+            {
+                p.load( is );
+            }
+            finally
+            {
+                is.close();
+            }
+            previewName = p.getProperty( "name", previewName );
+            previewIconKey = p.getProperty( "icon" );
+            previewIcons = p.getProperty( "icons" );
+            if( previewIconKey != null && previewIcons != null )
+            {
+                LinkedHashMap< String, URL > icons = new LinkedHashMap< String, URL >();
+                for( String k : previewIcons.split( "," ) )
+                    icons.put( k, getResource( "/de/mfo/jsurfer/gallery/" + k + "_icon.png" ) );
+                previewAtlas = IconAtlas.read( atlasNameOf( icons ), icons, IconAtlas.getDefaultDirectory() );
+            }
+        }
+        catch( IOException ioe )
+        {
+            System.err.println( "ignoring invalid gallery preview " + f + ": " + ioe );
+        }
+    }
+
+    /**
+     * Stores the name and the icon of the loaded gallery for the next start,
+     * unless they have not changed.
+     */
+    void writePreview( String icons )
+    {
+        if( name.equals( previewName ) && iconKey.equals( previewIconKey ) && icons.equals( previewIcons ) && previewAtlas != null )
+            return;
+        Properties p = new Properties();
+        p.setProperty( "name", name );
+        p.setProperty( "icon", iconKey );
+        p.setProperty( "icons", icons );
+        File f = previewFile();
+        try
+        {
+            File dir = f.getParentFile();
+            if( !dir.isDirectory() && !dir.mkdirs() )
+                throw new IOException( "unable to create directory " + dir );
+            // other instances must never read half written files
+            File tmp = File.createTempFile( f.getName() + ".", ".part", dir );
+            try
+            {
+                OutputStream os = new FileOutputStream( tmp );
+                try
+                {
+                    p.store( os, "name and icon of gallery " + key + " for locale " + locale );
+                }
+                finally
+                {
+                    os.close();
+                }
+                f.delete();
+                if( !tmp.renameTo( f ) )
+                    throw new IOException( "unable to rename " + tmp + " to " + f );
+            }
+            finally
+            {
+                tmp.delete();
+            }
+        }
+        catch( IOException ioe )
+        {
+            System.err.println( "unable to write gallery preview " + f + ": " + ioe );
+        }
+    }
+
+    void readContents()
+            throws IOException
+    {
         pdfDecoder = new PdfDecoder();
         String pdfURL = getResourceFromLocalizedName( "/de/mfo/jsurfer/gallery/" + key, ".pdf" ).toString();
         try
@@ -77,12 +274,52 @@ public class Gallery {
 
         OutlineEntry introEntry = outlineEntries.remove(0);
         this.name = introEntry.name.trim();
-        this.iconURL = getResource( "/de/mfo/jsurfer/gallery/" + introEntry.filename_prefix + "_icon.png" );
+        this.iconKey = introEntry.filename_prefix;
+        this.iconURL = getResource( "/de/mfo/jsurfer/gallery/" + iconKey + "_icon.png" );
 
         LinkedList< GalleryItem > l = new LinkedList< GalleryItem >();
         for( OutlineEntry entry : outlineEntries )
             l.add( new GalleryItem( entry.filename_prefix, entry.name, entry.pageNum ) );
         this.gallery_items = l.toArray( new GalleryItem[ 0 ] );
+
+        loadIconAtlas();
+    }
+
+    /**
+     * Reads or builds the atlas of the icons of this gallery. Galleries of
+     * different locales, which show the same surfaces, share the atlas files.
+     */
+    void loadIconAtlas()
+    {
+        LinkedHashMap< String, URL > icons = new LinkedHashMap< String, URL >();
+        icons.put( iconKey, iconURL );
+        for( GalleryItem item : gallery_items )
+            icons.put( item.key, item.iconURL );
+        StringBuilder keys = new StringBuilder();
+        for( String k : icons.keySet() )
+            keys.append( keys.length() == 0 ? "" : "," ).append( k );
+
+        // the atlas of the preview has been read already, if the icons have not changed
+        if( previewAtlas != null && keys.toString().equals( previewIcons ) )
+            iconAtlas = previewAtlas;
+        else
+            iconAtlas = IconAtlas.load( atlasNameOf( icons ), icons, IconAtlas.getDefaultDirectory() );
+        writePreview( keys.toString() );
+    }
+
+    String atlasNameOf( Map< String, URL > icons )
+    {
+        return key + "_" + Integer.toHexString( icons.keySet().hashCode() );
+    }
+
+    /**
+     * @return the icon from the atlas or, if it is not in the atlas, the
+     *         decoded icon file
+     */
+    BufferedImage getIcon( String key, URL url )
+    {
+        BufferedImage img = iconAtlas == null ? null : iconAtlas.getIcon( key );
+        return img != null ? img : loadImage( url );
     }
 
     private class OutlineEntry
@@ -120,28 +357,53 @@ public class Gallery {
 
     public int getNumber() { return number; }
     public String getKey() { return key; }
-    public String getName() { return name; }
+    /**
+     * @return the name of the gallery, before the gallery has been loaded the
+     *         name stored by the last start, see @see{readPreview}
+     */
+    public String getName()
+    {
+        Gallery g = shared;
+        return g.complete ? g.name : g.previewName;
+    }
     public BufferedImage getIcon()
     {
-        if( icon == null )
-            icon = loadImage( iconURL );
-        return icon;
+        Gallery g = loaded();
+        return g.getIcon( g.iconKey, g.iconURL );
+    }
+    public URL getIconURL() { return loaded().iconURL; }
+
+    /**
+     * Does not wait for the gallery to be loaded, like @see{getName}.
+     * @return the image of the icons of this gallery and its surfaces, see
+     *         @see{getIconBounds} and @see{GalleryItem.getIconBounds}, or
+     *         null, if it is not known yet
+     */
+    public BufferedImage getIconAtlas()
+    {
+        Gallery g = shared;
+        IconAtlas atlas = g.complete ? g.iconAtlas : g.previewAtlas;
+        return atlas == null ? null : atlas.getImage();
+    }
+    /**
+     * Does not wait for the gallery to be loaded, like @see{getName}.
+     * @return the position of the icon in @see{getIconAtlas} or null
+     */
+    public java.awt.Rectangle getIconBounds()
+    {
+        Gallery g = shared;
+        if( g.complete )
+            return g.iconAtlas == null ? null : g.iconAtlas.getBounds( g.iconKey );
+        return g.previewAtlas == null ? null : g.previewAtlas.getBounds( g.previewIconKey );
     }
-    public URL getIconURL() { return iconURL; }
     public BufferedImage getDescription( int width, int height )
     {
-        if( width == 0 )
-            width = 1;
-        if( height == 0 )
-            height = 1;
-        if( description == null || description.getWidth() != width || description.getHeight() != height )
-            description = renderPDFPage( 1, width, height );
-        return description;
+        return loaded().renderPDFPage( 1, width, height );
     }
 
     public GalleryItem[] getEntries()
     {
-        return this.gallery_items;
+        return loaded().gallery_items;
     }
 
     URL getResource( String res )
@@ -172,12 +434,31 @@ public class Gallery {
         return url;
     }
 
-    BufferedImage renderPDFPage( int pageNum, int width, int height )
+    /**
+     * Renders a page scaled to fit into width x height pixels.
+     */
+    synchronized BufferedImage renderPDFPage( int pageNum, int width, int height )
     {
+        width = Math.max( width, 1 );
+        height = Math.max( height, 1 );
+        String cacheKey = key + "_" + locale + "#" + pageNum + "@" + width + "x" + height;
+        synchronized( descriptions )
+        {
+            BufferedImage img = descriptions.get( cacheKey );
+            if( img != null )
+                return img;
+        }
         try
         {
-            // ToDo: scale appropriately 
-            return pdfDecoder.getPageAsImage( pageNum );
+            PdfPageData pageData = pdfDecoder.getPdfPageData();
+            float scale = Math.min( width / ( float ) pageData.getCropBoxWidth( pageNum ), height / ( float ) pageData.getCropBoxHeight( pageNum ) );
+            pdfDecoder.setPageParameters( scale, pageNum );
+            BufferedImage img = pdfDecoder.getPageAsImage( pageNum );
+            synchronized( descriptions )
+            {
+                descriptions.put( cacheKey, img );
+            }
+            return img;
         }
         catch( Exception e )
         {
@@ -205,9 +486,7 @@ public class Gallery {
         private String key;
         private String name;
         private URL iconURL;
-        private BufferedImage icon;
         private int descriptionPageNumber;
-        private BufferedImage description;
         private URL jsurf_file_url;
 
         GalleryItem( String key, String label, int pageNum )
@@ -224,21 +503,20 @@ public class Gallery {
         public String getName() { return name; }
         public BufferedImage getIcon()
         {
-            if( icon == null )
-                icon = loadImage( iconURL );
-            return icon;
+            return Gallery.this.getIcon( key, iconURL );
         }
         public URL getIconURL() { return iconURL; }
+        /**
+         * @return the position of the icon in @see{Gallery.getIconAtlas} or null
+         */
+        public java.awt.Rectangle getIconBounds()
+        {
+            return iconAtlas == null ? null : iconAtlas.getBounds( key );
+        }
 
         public BufferedImage getDescription( int width, int height )
         {
-            if( width == 0 )
-                width = 1;
-            if( height == 0 )
-                height = 1;
-            if( description == null || description.getWidth() != width || description.getHeight() != height )
-                    description = Gallery.this.renderPDFPage( descriptionPageNumber, width, height );
-                return description;
+            return Gallery.this.renderPDFPage( descriptionPageNumber, width, height );
         }
         public URL getJSurfURL() { return jsurf_file_url; }
     }
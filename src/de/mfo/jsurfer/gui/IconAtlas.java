@@ -0,0 +1,292 @@
+package de.mfo.jsurfer.gui;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.*;
+import javax.imageio.ImageIO;
+
+/**
+ * Packs a set of small images (the icons of a gallery) into one image, so that
+ * they are decoded at once and shown as views into the packed image instead
+ * of decoding each icon file on its own. The packed image and an index of
+ * the positions of the icons are written to a directory when the atlas is
+ * built on the first run and read from there on later runs. If the icons
+ * have changed (according to the modification times of their resources),
+ * the atlas is built again.
+ */
+public class IconAtlas
+{
+    static final String IMAGE_SUFFIX = ".png";
+    static final String INDEX_SUFFIX = ".atlas";
+    static final int GAP = 1;
+
+    BufferedImage image;
+    Map< String, Rectangle > index;
+
+    IconAtlas( BufferedImage image, Map< String, Rectangle > index )
+    {
+        this.image = image;
+        this.index = index;
+    }
+
+    /**
+     * @return the directory .fxsurfer-cache/icons in the user's home directory
+     */
+    public static File getDefaultDirectory()
+    {
+        return new File( new File( System.getProperty( "user.home" ), ".fxsurfer-cache" ), "icons" );
+    }
+
+    /**
+     * Reads the atlas of the icons from the directory or builds it, if it
+     * does not exist or is outdated.
+     * @param name the name of the atlas, which is used for its files
+     * @param icons the URLs of the icons by their keys, icons with null URLs are left out
+     * @param dir the directory of the atlas files or null, if the atlas should not be stored
+     */
+    /**
+     * Reads the atlas of the icons from the directory, but never builds it.
+     * @return the atlas or null, if it does not exist or is outdated
+     */
+    public static IconAtlas read( String name, Map< String, URL > icons, File dir )
+    {
+        return read( new File( dir, name + IMAGE_SUFFIX ), new File( dir, name + INDEX_SUFFIX ), signatureOf( icons ) );
+    }
+
+    public static IconAtlas load( String name, Map< String, URL > icons, File dir )
+    {
+        String signature = signatureOf( icons );
+        File imageFile = dir == null ? null : new File( dir, name + IMAGE_SUFFIX );
+        File indexFile = dir == null ? null : new File( dir, name + INDEX_SUFFIX );
+        if( dir != null )
+        {
+            IconAtlas atlas = read( imageFile, indexFile, signature );
+            if( atlas != null )
+                return atlas;
+        }
+
+        IconAtlas atlas = build( icons );
+        if( dir != null )
+        {
+            try
+            {
+                atlas.write( imageFile, indexFile, signature );
+            }
+            catch( IOException ioe )
+            {
+                System.err.println( "unable to write icon atlas " + imageFile + ": " + ioe );
+            }
+        }
+        return atlas;
+    }
+
+    /**
+     * Decodes the icons and packs them row by row into one image.
+     */
+    static IconAtlas build( Map< String, URL > icons )
+    {
+        LinkedHashMap< String, BufferedImage > images = new LinkedHashMap< String, BufferedImage >();
+        long area = 0;
+        int maxWidth = 1;
+        for( Map.Entry< String, URL > e : icons.entrySet() )
+        {
+            if( e.getValue() == null )
+                continue;
+            try
+            {
+                BufferedImage img = ImageIO.read( e.getValue() );
+                if( img == null )
+                    throw new IOException( "unknown image format" );
+                images.put( e.getKey(), img );
+                area += ( long ) ( img.getWidth() + GAP ) * ( img.getHeight() + GAP );
+                maxWidth = Math.max( maxWidth, img.getWidth() );
+            }
+            catch( IOException ioe )
+            {
+                System.err.println( "could not load " + e.getValue() );
+            }
+        }
+
+        // aim at a roughly square atlas
+        int rowWidth = Math.max( maxWidth, ( int ) Math.ceil( Math.sqrt( area ) ) );
+        Map< String, Rectangle > index = new HashMap< String, Rectangle >();
+        int x = 0, y = 0, rowHeight = 0, width = 1;
+        for( Map.Entry< String, BufferedImage > e : images.entrySet() )
+        {
+            BufferedImage img = e.getValue();
+            if( x > 0 && x + img.getWidth() > rowWidth )
+            {
+                x = 0;
+                y += rowHeight + GAP;
+                rowHeight = 0;
+            }
+            index.put( e.getKey(), new Rectangle( x, y, img.getWidth(), img.getHeight() ) );
+            width = Math.max( width, x + img.getWidth() );
+            rowHeight = Math.max( rowHeight, img.getHeight() );
+            x += img.getWidth() + GAP;
+        }
+        int height = Math.max( 1, y + rowHeight );
+
+        BufferedImage atlas = new BufferedImage( width, height, BufferedImage.TYPE_INT_ARGB );
+        java.awt.Graphics2D g = atlas.createGraphics();
+        for( Map.Entry< String, BufferedImage > e : images.entrySet() )
+        {
+            Rectangle r = index.get( e.getKey() );
+            g.drawImage( e.getValue(), r.x, r.y, null );
+        }
+        g.dispose();
+        return new IconAtlas( atlas, index );
+    }
+
+    static IconAtlas read( File imageFile, File indexFile, String signature )
+    {
+        if( !imageFile.isFile() || !indexFile.isFile() )
+            return null;
+        try
+        {
+            Properties p = new Properties();
+            InputStream is = new FileInputStream( indexFile );
+            try
+            {
+                p.load( is );
+            }
+            finally
+            {
+                is.close();
+            }
+            if( !signature.equals( p.getProperty( "signature" ) ) )
+                return null;
+
+            Map< String, Rectangle > index = new HashMap< String, Rectangle >();
+            for( String key : p.stringPropertyNames() )
+            {
+                if( !key.startsWith( "icon." ) )
+                    continue;
+                String[] v = p.getProperty( key ).split( "," );
+                index.put( key.substring( "icon.".length() ), new Rectangle(
+                    Integer.parseInt( v[ 0 ].trim() ), Integer.parseInt( v[ 1 ].trim() ),
+                    Integer.parseInt( v[ 2 ].trim() ), Integer.parseInt( v[ 3 ].trim() ) ) );
+            }
+            BufferedImage image = ImageIO.read( imageFile );
+            if( image == null )
+                return null;
+            for( Rectangle r : index.values() )
+                if( r.x < 0 || r.y < 0 || r.x + r.width > image.getWidth() || r.y + r.height > image.getHeight() )
+                    return null;
+            return new IconAtlas( image, index );
+        }
+        catch( Exception e )
+        {
+            System.err.println( "ignoring invalid icon atlas " + imageFile + ": " + e );
+            return null;
+        }
+    }
+
+    void write( File imageFile, File indexFile, String signature )
+            throws IOException
+    {
+        File dir = imageFile.getParentFile();
+        if( !dir.isDirectory() && !dir.mkdirs() )
+            throw new IOException( "unable to create directory " + dir );
+
+        Properties p = new Properties();
+        p.setProperty( "signature", signature );
+        for( Map.Entry< String, Rectangle > e : index.entrySet() )
+        {
+            Rectangle r = e.getValue();
+            p.setProperty( "icon." + e.getKey(), r.x + "," + r.y + "," + r.width + "," + r.height );
+        }
+
+        // write to temporary files of their own first, so that other instances (e.g. of
+        // other locales sharing the atlas) never read or overwrite half written files
+        File tmpImage = File.createTempFile( imageFile.getName() + ".", ".part", dir );
+        File tmpIndex = File.createTempFile( indexFile.getName() + ".", ".part", dir );
+        boolean success = false;
+        try
+        {
+            if( !ImageIO.write( image, "png", tmpImage ) )
+                throw new IOException( "no PNG writer available" );
+            OutputStream os = new FileOutputStream( tmpIndex );
+            try
+            {
+                p.store( os, "index of " + imageFile.getName() );
+            }
+            finally
+            {
+                os.close();
+            }
+            // the index is renamed last, because it is checked against the image
+            imageFile.delete();
+            if( !tmpImage.renameTo( imageFile ) )
+                throw new IOException( "unable to rename " + tmpImage + " to " + imageFile );
+            indexFile.delete();
+            if( !tmpIndex.renameTo( indexFile ) )
+                throw new IOException( "unable to rename " + tmpIndex + " to " + indexFile );
+            success = true;
+        }
+        finally
+        {
+            if( !success )
+            {
+                tmpImage.delete();
+                tmpIndex.delete();
+            }
+        }
+    }
+
+    /**
+     * @return a string, which changes when the set of icons or one of the
+     *         icon resources changes
+     */
+    static String signatureOf( Map< String, URL > icons )
+    {
+        StringBuilder sb = new StringBuilder();
+        for( Map.Entry< String, URL > e : icons.entrySet() )
+        {
+            sb.append( e.getKey() ).append( '=' );
+            if( e.getValue() != null )
+            {
+                try
+                {
+                    URLConnection c = e.getValue().openConnection();
+                    sb.append( c.getLastModified() ).append( '/' ).append( c.getContentLength() );
+                    c.getInputStream().close();
+                }
+                catch( IOException ioe )
+                {
+                    sb.append( '?' );
+                }
+            }
+            sb.append( ';' );
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return the image of all icons
+     */
+    public BufferedImage getImage() { return image; }
+
+    /**
+     * @return the position of an icon in the image of the atlas or null, if
+     *         the atlas does not contain it
+     */
+    public Rectangle getBounds( String key )
+    {
+        Rectangle r = index.get( key );
+        return r == null ? null : new Rectangle( r );
+    }
+
+    /**
+     * @return a view of an icon, which shares the pixels of the atlas, or
+     *         null, if the atlas does not contain it
+     */
+    public BufferedImage getIcon( String key )
+    {
+        Rectangle r = index.get( key );
+        return r == null ? null : image.getSubimage( r.x, r.y, r.width, r.height );
+    }
+}
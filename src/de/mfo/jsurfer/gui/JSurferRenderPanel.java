@@ -21,11 +21,25 @@ import de.mfo.jsurf.rendering.*;
 import de.mfo.jsurf.rendering.cpu.*;
 import de.mfo.jsurf.parser.*;
 import de.mfo.jsurf.util.*;
+import de.mfo.jsurfer.rendering.CachingSurfaceRenderer;
+import de.mfo.jsurfer.rendering.CompiledScene;
+import de.mfo.jsurfer.rendering.FrameCache;
+import de.mfo.jsurfer.rendering.GBuffer;
+import de.mfo.jsurfer.rendering.IdleRenderer;
+import de.mfo.jsurfer.rendering.OffscreenRenderer;
+import de.mfo.jsurfer.rendering.ParameterSweep;
+import de.mfo.jsurfer.rendering.RenderScheduler;
+import de.mfo.jsurfer.rendering.Reprojector;
+import de.mfo.jsurfer.rendering.RotationSpriteSet;
+import de.mfo.jsurfer.util.RotateSphericalDragger;
+import de.mfo.jsurfer.util.StartupTimer;
 import static de.mfo.jsurf.rendering.cpu.CPUAlgebraicSurfaceRenderer.AntiAliasingMode;
 
 import java.awt.BorderLayout;
 
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * This panel displays an algebraic surface in its center. All settings of the used
@@ -44,171 +58,766 @@ public class JSurferRenderPanel extends JComponent
         public int[] rgbBuffer;
         public int width;
         public int height;
+        Rectangle dirty = new Rectangle();
+        BufferedImage image;
+        /** time of the repaint request this image is the first answer to, 0 if it has been painted or there is none */
+        long requested;
 
-        public ImgBuffer( int w, int h ) { rgbBuffer = new int[ 3 * w * h ]; width = w; height = h; }
+        public ImgBuffer( int w, int h ) { rgbBuffer = new int[ w * h ]; width = w; height = h; }
+
+        /**
+         * @return an image that shares its pixels with rgbBuffer (upside down)
+         */
+        public BufferedImage getImage()
+        {
+            if( image == null || image.getWidth() != width || image.getHeight() != height )
+                image = createBufferedImageFromRGB( this );
+            return image;
+        }
+    }
+
+    /**
+     * Recycles the color buffers of the render worker. A buffer is either
+     * free, being rendered to, the currently displayed image or retired
+     * (replaced by a newer image while it was still being painted). Retired
+     * buffers become free as soon as painting is finished, so in steady state
+     * (e.g. while dragging) no new buffers are allocated at all.
+     */
+    class ImgBufferPool
+    {
+        static final int MAX_FREE_BUFFERS = 3;
+
+        LinkedList< ImgBuffer > free = new LinkedList< ImgBuffer >();
+        ImgBuffer current;
+        ImgBuffer painting;
+        ImgBuffer retired;
+
+        /**
+         * @return a buffer that can hold at least w * h pixels
+         */
+        public synchronized ImgBuffer acquire( int w, int h )
+        {
+            ImgBuffer best = null;
+            for( ImgBuffer ib : free )
+                if( ib.rgbBuffer.length >= w * h && ( best == null || ib.rgbBuffer.length < best.rgbBuffer.length ) )
+                    best = ib;
+            if( best == null )
+            {
+                // the window has grown, so the smaller buffers are not needed anymore
+                if( free.size() >= MAX_FREE_BUFFERS - 1 )
+                    free.removeFirst();
+                return new ImgBuffer( w, h );
+            }
+            free.remove( best );
+            best.width = w;
+            best.height = h;
+            best.requested = 0;
+            return best;
+        }
+
+        /**
+         * Gives back a buffer which has not been displayed.
+         */
+        public synchronized void release( ImgBuffer ib )
+        {
+            if( ib != null && free.size() < MAX_FREE_BUFFERS )
+                free.addLast( ib );
+        }
+
+        /**
+         * Makes ib the displayed image. The previously displayed image is
+         * recycled as soon as it is not painted anymore.
+         */
+        public synchronized void publish( ImgBuffer ib )
+        {
+            ImgBuffer old = current;
+            current = ib;
+            current.dirty.setBounds( 0, 0, ib.width, ib.height );
+            if( old == ib )
+                return;
+            if( old != null && old == painting )
+            {
+                release( retired );
+                retired = old;
+            }
+            else
+                release( old );
+        }
+
+        /**
+         * Marks a region of the displayed image as changed, e.g. after a tile
+         * of a progressive rendering pass has been copied into it.
+         */
+        public synchronized void update( ImgBuffer ib, Rectangle r )
+        {
+            if( ib == current )
+                ib.dirty.add( r );
+        }
+
+        /**
+         * @return the region of ib that changed since the last call, which
+         *         may be empty
+         */
+        public synchronized Rectangle takeDirtyRegion( ImgBuffer ib )
+        {
+            Rectangle r = new Rectangle( ib.dirty );
+            ib.dirty.setBounds( 0, 0, 0, 0 );
+            return r;
+        }
+
+        /**
+         * Fills ib with the nearest neighbour upscaled (or downscaled)
+         * displayed image, so that a progressive rendering pass can start
+         * from what is currently visible.
+         */
+        public synchronized void copyCurrentInto( ImgBuffer ib, Color background )
+        {
+            if( current == null || current == ib || current.width == 0 || current.height == 0 )
+            {
+                Arrays.fill( ib.rgbBuffer, 0, ib.width * ib.height, background.getRGB() );
+                return;
+            }
+            for( int y = 0; y < ib.height; y++ )
+            {
+                int srcRow = ( int ) ( ( long ) y * current.height / ib.height ) * current.width;
+                int dstRow = y * ib.width;
+                for( int x = 0; x < ib.width; x++ )
+                    ib.rgbBuffer[ dstRow + x ] = current.rgbBuffer[ srcRow + ( int ) ( ( long ) x * current.width / ib.width ) ];
+            }
+        }
+
+        /**
+         * Must only be called from the event dispatch thread.
+         * @return the displayed image, which is not recycled before
+         *         @see{endPaint} is called, or null
+         */
+        public synchronized ImgBuffer beginPaint()
+        {
+            painting = current;
+            return painting;
+        }
+
+        public synchronized void endPaint()
+        {
+            painting = null;
+            release( retired );
+            retired = null;
+        }
     }
 
 
     CPUAlgebraicSurfaceRenderer asr;
-    ImgBuffer currentSurfaceImage;
+    final ImgBufferPool imgBufferPool = new ImgBufferPool();
     boolean resizeImageWithComponent;
     boolean renderCoordinatenSystem;
     Dimension renderSize;
     Dimension minLowResRenderSize;
     Dimension maxLowResRenderSize;
+    FrameRateController frameRateController;
+    RenderMetrics metrics;
+    volatile FrameCache frameCache;
+    volatile RotationSpriteSet rotationSprites;
+    volatile boolean rotationSpritesRequested;
+    boolean rotationSpritesEnabled = false;
+    volatile ParameterSweep parameterSweep;
+    boolean parameterSweepEnabled = false;
+    boolean progressiveRendering = true;
+    volatile boolean rotationExtrapolation = false;
+    volatile boolean reprojectionEnabled = false;
+    volatile boolean reshadingEnabled = false;
     RotateSphericalDragger rsd;
+    OffscreenRenderer exportRenderer;
     Matrix4d scale;
     RenderWorker rw;
-
+    BufferedImage displayImage;
+    ImgBuffer displayedBuffer;
+
+    /** edge length of the tiles of the progressive high resolution rendering */
+    static final int PROGRESSIVE_TILE_SIZE = 128;
+
+    /** edge length and number of the precomputed views of a loaded scene */
+    static final int ROTATION_SPRITE_SIZE = 128;
+    static final int ROTATION_SPRITE_COUNT = 200;
+    /** time in milliseconds to wait for further dragging before the exact image is rendered */
+    static final long PREVIEW_HOLD = 40;
+    /** edge length of the precomputed images of the parameter sweep and number of values per parameter */
+    static final int PARAMETER_SWEEP_SIZE = 192;
+    static final int PARAMETER_SWEEP_STEPS = 21;
+
+    /**
+     * What the render worker is doing. Only a running high resolution pass
+     * is interrupted by a new repaint request, all other phases check for
+     * new requests themselves.
+     */
+    enum Phase { IDLE, PREVIEW, LOW_RES, HI_RES_DELAY, HI_RES }
+
+    /**
+     * Renders the scene in the background. Every repaint request starts a new
+     * render generation. The worker always renders the newest generation and
+     * a pass notices immediately when its generation has been overtaken (see
+     * @see{isStale}): a running high resolution pass is stopped, and the
+     * results of stale high resolution passes are neither shown nor cached.
+     * A stale low resolution frame is still shown, because it is closer to
+     * the current view than the image on screen and the next frame follows
+     * right away.
+     * The scene of a generation is taken on the thread that changes the scene
+     * (see @see{scheduleSurfaceRepaint}), so the worker never reads the scene
+     * while it is changed.
+     */
     class RenderWorker extends Thread
     {
-        Semaphore semaphore = new Semaphore( 0 );
-        boolean finish = false;
-        boolean is_drawing_hi_res = false;
-        double time_per_pixel = 1000.0;
-        final double desired_fps = 15.0;
-        boolean skip_hi_res = false;
+        final AtomicLong requestedGeneration = new AtomicLong( 0 );
+        /** high resolution passes are skipped up to this generation */
+        final AtomicLong skipHiResGeneration = new AtomicLong( -1 );
+        final AtomicReference< Phase > phase = new AtomicReference< Phase >( Phase.IDLE );
+        /** the scene properties of the newest repaint request */
+        final AtomicReference< Properties > requestedScene = new AtomicReference< Properties >();
+        final Object wakeUp = new Object();
+        volatile boolean finish = false;
+        int[] tileBuffer;
+        /**
+         * renders the tiles of progressive passes, @see{OffscreenRenderer.drawTile}
+         * changes its camera and lights for each tile, so it must not be the
+         * renderer of the scene, only used by the worker thread
+         */
+        final CachingSurfaceRenderer tileRenderer = new CachingSurfaceRenderer();
+        /** the rotation of the frame being rendered, only used by the worker thread */
+        final Matrix4d drawRotation = new Matrix4d();
+        /** the last low resolution frame, which is warped to the new view while the next one is rendered */
+        final Reprojector reprojector = new Reprojector();
+        /** the surface points of the last completely rendered view, which is shaded again if only its colors change */
+        final GBuffer gBuffer = new GBuffer();
+        /** time of the oldest repaint request that has not been rendered yet, 0 if there is none */
+        AtomicLong pendingSince = new AtomicLong( 0 );
 
         public void finish()
         {
             finish = true;
+            requestedGeneration.incrementAndGet();
+            stopDrawingIf( Phase.HI_RES );
+            signal();
         }
 
-        public void scheduleRepaint()
+        /**
+         * @param scene a snapshot of the scene to render, @see{getSceneProperties}
+         */
+        public void scheduleRepaint( Properties scene )
         {
-            // schedule redraw
-            semaphore.release();
-
-            // try to ensure, that high resolution drawing is canceled
-            if( is_drawing_hi_res )
-                JSurferRenderPanel.this.asr.stopDrawing();
+            requestedScene.set( scene );
+            pendingSince.compareAndSet( 0, System.nanoTime() );
+            requestedGeneration.incrementAndGet();
+            // stops the running tiles of a hi-res pass, the tiles it has not started yet
+            // are cancelled by the render scheduler, see drawHiRes
+            stopDrawingIf( Phase.HI_RES );
+            signal();
         }
 
         public void stopHighResolutionRendering()
         {
-            semaphore.drainPermits(); // remove all currently available permits
-            skip_hi_res = true;
+            skipHiResGeneration.set( requestedGeneration.get() );
+            stopDrawingIf( Phase.HI_RES );
+        }
 
-            // try to ensure, that current high resolution rendering is canceled
-            if( is_drawing_hi_res )
+        void stopDrawingIf( Phase p )
+        {
+            if( phase.get() == p )
+            {
                 JSurferRenderPanel.this.asr.stopDrawing();
+                tileRenderer.stopDrawing();
+            }
+        }
+
+        void signal()
+        {
+            synchronized( wakeUp )
+            {
+                wakeUp.notifyAll();
+            }
+        }
+
+        /**
+         * @return true, if a newer generation has been requested or the worker is finished
+         */
+        boolean isStale( long generation )
+        {
+            return finish || requestedGeneration.get() != generation;
+        }
+
+        /**
+         * Waits until a generation newer than the given one is requested.
+         * @param timeout the maximum time to wait in milliseconds, 0 means forever
+         * @return true, if a newer generation has been requested
+         */
+        boolean awaitNewGeneration( long generation, long timeout )
+                throws InterruptedException
+        {
+            long deadline = System.currentTimeMillis() + timeout;
+            synchronized( wakeUp )
+            {
+                while( !isStale( generation ) )
+                {
+                    long remaining = timeout == 0 ? 0 : deadline - System.currentTimeMillis();
+                    if( timeout != 0 && remaining <= 0 )
+                        return false;
+                    wakeUp.wait( remaining );
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Makes ib the displayed image.
+         * @param requested the time of the repaint request this frame is the
+         *        first answer to or 0
+         */
+        void publish( ImgBuffer ib, long requested )
+        {
+            ib.requested = requested;
+            imgBufferPool.publish( ib );
+            JSurferRenderPanel.this.repaint();
+            if( requested != 0 )
+                metrics.firstFrameShown( System.nanoTime() - requested );
         }
 
         @Override
         public void run()
         {
             this.setPriority( Thread.MIN_PRIORITY );
+            long generation = 0;
             while( !finish )
             {
                 try
                 {
-                    int available_permits = semaphore.availablePermits();
-                    semaphore.acquire( Math.max( 1, available_permits ) ); // wait for new task and grab all permits
-                    skip_hi_res = false;
-                    long minPixels = JSurferRenderPanel.this.minLowResRenderSize.width * JSurferRenderPanel.this.minLowResRenderSize.height;
-                    long maxPixels = JSurferRenderPanel.this.maxLowResRenderSize.width * JSurferRenderPanel.this.maxLowResRenderSize.height;
-                    maxPixels = Math.max( 1, Math.min( maxPixels, JSurferRenderPanel.this.getWidth() * JSurferRenderPanel.this.getHeight() ) );
-                    minPixels = Math.min( minPixels, maxPixels );
-                    long numPixelsAt15FPS = ( long ) ( 1.0 / ( desired_fps * time_per_pixel ) );
-                    long pixelsToUse = Math.max( minPixels, Math.min( maxPixels, numPixelsAt15FPS ) );
-                    JSurferRenderPanel.this.renderSize = new Dimension( (int) Math.sqrt( pixelsToUse ), (int) Math.sqrt( pixelsToUse ) );
-
-                    // render low res
+                    phase.set( Phase.IDLE );
+                    pauseIdleRenderers( false );
+                    awaitNewGeneration( generation, 0 ); // wait for new task
+                    pauseIdleRenderers( true );
+                    generation = requestedGeneration.get();
+                    if( finish )
+                        break;
+                    long requested = pendingSince.getAndSet( 0 );
+                    Properties scene = requestedScene.get();
+                    int width = JSurferRenderPanel.this.getWidth();
+                    int height = JSurferRenderPanel.this.getHeight();
+                    JSurferRenderPanel.this.renderSize = frameRateController.nextRenderSize( minLowResRenderSize, maxLowResRenderSize, width, height );
+
+                    // show the final image at once, if this view has been rendered before
+                    if( showCachedFrame( scene, width, height, AntiAliasingMode.SUPERSAMPLING, AntiAliasingPattern.OG_4x4, requested ) )
                     {
-                        ImgBuffer ib = draw( renderSize.width, renderSize.height, AntiAliasingMode.ADAPTIVE_SUPERSAMPLING, AntiAliasingPattern.QUINCUNX, true );
-                        if( ib != null )
-                        {
-                            currentSurfaceImage =  ib;
-                            JSurferRenderPanel.this.repaint();
-                        }
+                        traceGBuffer( scene, generation );
+                        prepareIdleRenderers( scene );
+                        continue;
                     }
-
-                    if( semaphore.tryAcquire( 100, TimeUnit.MILLISECONDS ) ) // wait some time, then start with high res drawing
+                    // if only materials, lights or the background color have changed, the
+                    // last view is shaded again at full resolution instead of rendering it
+                    boolean cached = showCachedFrame( scene, width, height, AntiAliasingMode.ADAPTIVE_SUPERSAMPLING, AntiAliasingPattern.OG_4x4, requested )
+                            || showReshadedFrame( scene, width, height, requested );
+
+                    // show the last frame warped to the new rotation and scale until the low res frame is ready,
+                    // otherwise show the nearest precomputed view or parameter value, the exact
+                    // image follows once the user stops dragging
+                    phase.set( Phase.PREVIEW );
+                    if( !cached && showReprojection( scene, requested ) )
                     {
-                        semaphore.release();
-                        continue;
+                        requested = 0;
+                    }
+                    else if( !cached && ( showParameterPreview( scene, requested ) || showRotationPreview( scene, renderSize.width, renderSize.height, requested ) ) )
+                    {
+                        requested = 0;
+                        if( awaitNewGeneration( generation, PREVIEW_HOLD ) )
+                            continue;
                     }
-                    else if( skip_hi_res )
-                        continue;
 
-                    // render high res, if no new low res rendering is scheduled
+                    // render low res
+                    if( !cached )
                     {
-                        is_drawing_hi_res = true;
-                        ImgBuffer ib = draw( JSurferRenderPanel.this.getWidth(), JSurferRenderPanel.this.getHeight(), AntiAliasingMode.ADAPTIVE_SUPERSAMPLING, AntiAliasingPattern.OG_4x4, false );
+                        phase.set( Phase.LOW_RES );
+                        ImgBuffer ib = draw( renderSize.width, renderSize.height, AntiAliasingMode.ADAPTIVE_SUPERSAMPLING, AntiAliasingPattern.QUINCUNX, RenderMetrics.Pass.LOW_RES );
                         if( ib != null )
                         {
-                            currentSurfaceImage =  ib;
-                            JSurferRenderPanel.this.repaint();
+                            publish( ib, requested );
+                            // also while the user is still dragging, because the next frame is warped from this one
+                            if( reprojectionEnabled )
+                                reprojector.capture( asr, Reprojector.keyOf( scene ), ib.rgbBuffer, ib.width, ib.height );
                         }
-                        is_drawing_hi_res = false;
                     }
 
-                    if( semaphore.availablePermits() > 0 ) // restart, if user has changes the view
+                    // wait some time, then start with high res drawing, if no new low res rendering is scheduled
+                    phase.set( Phase.HI_RES_DELAY );
+                    if( awaitNewGeneration( generation, frameRateController.getHiResDelay() ) || generation <= skipHiResGeneration.get() )
                         continue;
-                    else if( skip_hi_res )
+
+                    // render high res
+                    if( !cached && !drawHiRes( AntiAliasingMode.ADAPTIVE_SUPERSAMPLING, AntiAliasingPattern.OG_4x4, scene, generation ) )
                         continue;
 
                     // render high res with even better quality
+                    if( drawHiRes( AntiAliasingMode.SUPERSAMPLING, AntiAliasingPattern.OG_4x4, scene, generation ) )
                     {
-                        //System.out.println( "drawing hi res");
-                        is_drawing_hi_res = true;
-                        ImgBuffer ib = draw( JSurferRenderPanel.this.getWidth(), JSurferRenderPanel.this.getHeight(), AntiAliasingMode.SUPERSAMPLING, AntiAliasingPattern.OG_4x4, false );
-                        if( ib != null )
-                        {
-                            currentSurfaceImage =  ib;
-                            JSurferRenderPanel.this.repaint();
-                        }
-                        is_drawing_hi_res = false;
-                        //System.out.println( "finised hi res");
+                        traceGBuffer( scene, generation );
+                        prepareIdleRenderers( scene );
                     }
                 }
                 catch( InterruptedException ie )
                 {
                 }
+                catch( RuntimeException re )
+                {
+                    // a broken frame must not stop the rendering of the next ones
+                    re.printStackTrace();
+                }
+            }
+        }
+
+        /**
+         * Renders the whole component at full resolution. In progressive mode
+         * the image is rendered in tiles starting at the center and every
+         * finished tile is shown immediately on top of the previously displayed
+         * image, so an interrupted pass still leaves its finished tiles behind.
+         * A complete image is added to the frame cache.
+         * @param scene the scene properties at the time the rendering was requested
+         * @param generation the render generation of the scene
+         * @return true, if the image has been rendered completely and is not stale
+         */
+        boolean drawHiRes( CPUAlgebraicSurfaceRenderer.AntiAliasingMode aam, AntiAliasingPattern aap, Properties scene, final long generation )
+        {
+            int width = JSurferRenderPanel.this.getWidth();
+            int height = JSurferRenderPanel.this.getHeight();
+            RenderMetrics.Pass pass = aam == AntiAliasingMode.SUPERSAMPLING ? RenderMetrics.Pass.SUPERSAMPLED_HI_RES : RenderMetrics.Pass.ADAPTIVE_HI_RES;
+            phase.set( Phase.HI_RES );
+            // a request between the checks below and the start of the renderer's tiles
+            // may come too late for stopDrawing, so the scheduler checks the generation, too
+            RenderScheduler.Cancellation previousCancellation = RenderScheduler.setCancellation( new RenderScheduler.Cancellation() {
+                public boolean isCancelled() { return isStale( generation ) || generation <= skipHiResGeneration.get(); }
+            } );
+            try
+            {
+                if( isStale( generation ) )
+                    return false;
+                boolean tiled = progressiveRendering && OffscreenRenderer.canRenderTiled( asr.getCamera(), width, height );
+                if( tiled )
+                {
+                    // the tiles are rendered from the scene as it has been requested
+                    try
+                    {
+                        OffscreenRenderer.loadSurfaceProperties( scene, tileRenderer );
+                    }
+                    catch( Exception e )
+                    {
+                        e.printStackTrace();
+                        tiled = false;
+                    }
+                }
+                if( !tiled )
+                {
+                    ImgBuffer ib = draw( width, height, aam, aap, pass );
+                    if( ib == null )
+                        return false;
+                    if( isStale( generation ) )
+                    {
+                        // the request came in too late to stop the renderer
+                        imgBufferPool.release( ib );
+                        return false;
+                    }
+                    publish( ib, 0 );
+                    cacheFrame( scene, ib, aam, aap, generation );
+                    return true;
+                }
+
+                int tileSize = Math.min( PROGRESSIVE_TILE_SIZE, width );
+                if( tileBuffer == null || tileBuffer.length < tileSize * tileSize )
+                    tileBuffer = new int[ tileSize * tileSize ];
+                ImgBuffer ib = imgBufferPool.acquire( width, height );
+                imgBufferPool.copyCurrentInto( ib, tileRenderer.getBackgroundColor().get() );
+                boolean published = false;
+                int finished = 0;
+                long t_start = System.nanoTime();
+
+                java.util.List< Point > tiles = centerFirstTiles( width, tileSize );
+                Matrix4d rotation = rsd.getRotation( drawRotation );
+                tileRenderer.setAntiAliasingMode( aam );
+                tileRenderer.setAntiAliasingPattern( aap );
+                for( Point tile : tiles )
+                {
+                    if( isStale( generation ) || generation <= skipHiResGeneration.get() )
+                        break;
+                    try
+                    {
+                        OffscreenRenderer.drawTile( tileRenderer, rotation, scale, tileBuffer, tileSize, width, tile.x, tile.y );
+                    }
+                    catch( RenderingInterruptedException rie )
+                    {
+                        break;
+                    }
+                    catch( Throwable t )
+                    {
+                        t.printStackTrace();
+                        break;
+                    }
+
+                    Rectangle r = new Rectangle( tile.x, tile.y, Math.min( tileSize, width - tile.x ), Math.min( tileSize, height - tile.y ) );
+                    for( int y = 0; y < r.height; y++ )
+                        System.arraycopy( tileBuffer, y * tileSize, ib.rgbBuffer, ( r.y + y ) * width + r.x, r.width );
+                    if( published )
+                    {
+                        imgBufferPool.update( ib, r );
+                    }
+                    else
+                    {
+                        imgBufferPool.publish( ib );
+                        published = true;
+                    }
+
+                    // the image is upside down and may be scaled to the component
+                    int cw = JSurferRenderPanel.this.getWidth();
+                    int ch = JSurferRenderPanel.this.getHeight();
+                    int x1 = r.x * cw / width;
+                    int x2 = ( r.x + r.width ) * cw / width + 1;
+                    int y1 = ch - ( r.y + r.height ) * ch / height - 1;
+                    int y2 = ch - r.y * ch / height;
+                    JSurferRenderPanel.this.repaint( x1, y1, x2 - x1, y2 - y1 );
+                    finished++;
+                }
+                if( !published )
+                    imgBufferPool.release( ib );
+                if( finished < tiles.size() )
+                {
+                    metrics.frameCancelled( pass );
+                    return false;
+                }
+                metrics.frameRendered( pass, width, height, System.nanoTime() - t_start );
+                cacheFrame( scene, ib, aam, aap, generation );
+                return !isStale( generation );
+            }
+            finally
+            {
+                RenderScheduler.setCancellation( previousCancellation );
+                phase.set( Phase.HI_RES_DELAY );
+            }
+        }
+
+        /**
+         * Publishes a cached image of the scene, if there is one.
+         * @return true, if a cached image has been published
+         */
+        boolean showCachedFrame( Properties scene, int width, int height, CPUAlgebraicSurfaceRenderer.AntiAliasingMode aam, AntiAliasingPattern aap, long requested )
+        {
+            FrameCache fc = frameCache;
+            if( fc == null || width <= 0 || height <= 0 )
+                return false;
+            int[] rgb = fc.get( FrameCache.keyOf( scene, width, height, aam, aap ), width, height );
+            if( rgb == null )
+                return false;
+            ImgBuffer ib = imgBufferPool.acquire( width, height );
+            System.arraycopy( rgb, 0, ib.rgbBuffer, 0, width * height );
+            publish( ib, requested );
+            return true;
+        }
+
+        /**
+         * Publishes a preview of the current rotation taken from the rotation
+         * sprites, if they have been rendered for the current scene.
+         * @return true, if a preview has been published
+         */
+        boolean showRotationPreview( Properties scene, int width, int height, long requested )
+        {
+            RotationSpriteSet sprites = rotationSprites;
+            if( sprites == null || !sprites.isComplete() || width <= 0 || height <= 0 || !sprites.getKey().equals( RotationSpriteSet.keyOf( scene ) ) )
+                return false;
+            ImgBuffer ib = imgBufferPool.acquire( width, height );
+            sprites.drawPreview( rsd.getRotation( drawRotation ), ib.rgbBuffer, width, height );
+            publish( ib, requested );
+            return true;
+        }
+
+        /**
+         * Publishes the G-buffer shaded with the current materials, lights and
+         * background color, if it has been traced for the geometry and view
+         * of the scene.
+         * @return true, if an image has been published
+         */
+        boolean showReshadedFrame( Properties scene, int width, int height, long requested )
+        {
+            if( !reshadingEnabled || !gBuffer.isBufferOf( GBuffer.keyOf( scene ), width, height ) )
+                return false;
+            ImgBuffer ib = imgBufferPool.acquire( width, height );
+            gBuffer.shade( asr, ib.rgbBuffer );
+            publish( ib, requested );
+            return true;
+        }
+
+        /**
+         * Traces the G-buffer of the scene at full resolution, unless it is up
+         * to date. Gives up as soon as a new generation is requested.
+         */
+        void traceGBuffer( Properties scene, long generation )
+        {
+            int width = JSurferRenderPanel.this.getWidth();
+            int height = JSurferRenderPanel.this.getHeight();
+            String key = GBuffer.keyOf( scene );
+            if( !reshadingEnabled || width < 2 || height < 2 || gBuffer.isBufferOf( key, width, height ) )
+                return;
+            setOptimalCameraDistance( asr.getCamera() );
+            gBuffer.begin( asr, rsd.getRotation( drawRotation ), scale, width, height );
+            for( int y = 0; y < height; y++ )
+            {
+                if( isStale( generation ) )
+                {
+                    gBuffer.clear();
+                    return;
+                }
+                gBuffer.traceRow( y );
+            }
+            gBuffer.finish( key );
+        }
+
+        /**
+         * Publishes the last low resolution frame warped to the current
+         * rotation and scale, if it shows the same scene otherwise.
+         * @return true, if an image has been published
+         */
+        boolean showReprojection( Properties scene, long requested )
+        {
+            if( !reprojectionEnabled || !reprojector.isCaptureOf( Reprojector.keyOf( scene ) ) )
+                return false;
+            ImgBuffer ib = imgBufferPool.acquire( reprojector.getWidth(), reprojector.getHeight() );
+            if( !reprojector.reproject( rsd.getRotation( drawRotation ), scale, asr.getCamera(), ib.rgbBuffer ) )
+            {
+                imgBufferPool.release( ib );
+                return false;
+            }
+            publish( ib, requested );
+            return true;
+        }
+
+        /**
+         * Publishes the image of the closest value of the parameter sweep, if
+         * the scene only differs from the swept scene in a single parameter.
+         * @return true, if an image has been published
+         */
+        boolean showParameterPreview( Properties scene, long requested )
+        {
+            ParameterSweep sweep = parameterSweep;
+            int[] rgb = sweep == null ? null : sweep.getPreview( scene );
+            if( rgb == null )
+                return false;
+            int size = sweep.getSize();
+            ImgBuffer ib = imgBufferPool.acquire( size, size );
+            System.arraycopy( rgb, 0, ib.rgbBuffer, 0, size * size );
+            publish( ib, requested );
+            return true;
+        }
+
+        /**
+         * Starts rendering previews in the background after the scene has been
+         * rendered completely:
+         * the rotation sprites, if they have been requested for a newly loaded
+         * scene (this is delayed until now, so the sprites match the scene
+         * including all settings made after loading it), and the parameter
+         * sweep of the current view, if the view has changed.
+         */
+        void prepareIdleRenderers( Properties scene )
+        {
+            if( rotationSpritesRequested && rotationSpritesEnabled )
+            {
+                rotationSpritesRequested = false;
+                RotationSpriteSet old = rotationSprites;
+                if( old != null )
+                    old.cancel();
+                rotationSprites = new RotationSpriteSet( scene, ROTATION_SPRITE_SIZE, ROTATION_SPRITE_COUNT );
+                rotationSprites.start( "RotationSpriteSet builder" );
+            }
+
+            ParameterSweep sweep = parameterSweep;
+            if( parameterSweepEnabled && !ParameterSweep.parametersOf( scene ).isEmpty() && ( sweep == null || !sweep.isSweepOf( scene ) ) )
+            {
+                if( sweep != null )
+                    sweep.cancel();
+                parameterSweep = new ParameterSweep( scene, PARAMETER_SWEEP_SIZE, PARAMETER_SWEEP_STEPS, sweep );
+                parameterSweep.start( "ParameterSweep builder" );
             }
         }
 
+        /**
+         * The previews are only rendered while the worker is idle.
+         */
+        void pauseIdleRenderers( boolean paused )
+        {
+            IdleRenderer[] irs = { rotationSprites, parameterSweep };
+            for( IdleRenderer ir : irs )
+                if( ir != null && !ir.isComplete() )
+                    ir.setPaused( paused );
+        }
+
+        void cacheFrame( Properties scene, ImgBuffer ib, CPUAlgebraicSurfaceRenderer.AntiAliasingMode aam, AntiAliasingPattern aap, long generation )
+        {
+            FrameCache fc = frameCache;
+            // the scene may have changed after the rendering has been finished
+            if( fc == null || isStale( generation ) || !fc.isCacheable( ib.width, ib.height ) )
+                return;
+            fc.put( FrameCache.keyOf( scene, ib.width, ib.height, aam, aap ), ib.rgbBuffer, ib.width, ib.height );
+        }
+
+        /**
+         * @return the lower left corners of the tiles covering a square image,
+         *         ordered by the distance of their centers to the image center
+         */
+        java.util.List< Point > centerFirstTiles( int imageSize, int tileSize )
+        {
+            final java.util.List< Point > tiles = new ArrayList< Point >();
+            for( int y = 0; y < imageSize; y += tileSize )
+                for( int x = 0; x < imageSize; x += tileSize )
+                    tiles.add( new Point( x, y ) );
+            final double center = ( imageSize - tileSize ) / 2.0;
+            Collections.sort( tiles, new Comparator< Point >() {
+                public int compare( Point p, Point q ) { return Double.compare( p.distanceSq( center, center ), q.distanceSq( center, center ) ); }
+            } );
+            return tiles;
+        }
+
         public ImgBuffer draw( int width, int height, CPUAlgebraicSurfaceRenderer.AntiAliasingMode aam, AntiAliasingPattern aap )
         {
-            return draw( width, height, aam, aap, false );
+            return draw( width, height, aam, aap, aam == AntiAliasingMode.SUPERSAMPLING ? RenderMetrics.Pass.SUPERSAMPLED_HI_RES : RenderMetrics.Pass.ADAPTIVE_HI_RES );
         }
 
-        public ImgBuffer draw( int width, int height, CPUAlgebraicSurfaceRenderer.AntiAliasingMode aam, AntiAliasingPattern aap, boolean save_fps )
+        public ImgBuffer draw( int width, int height, CPUAlgebraicSurfaceRenderer.AntiAliasingMode aam, AntiAliasingPattern aap, RenderMetrics.Pass pass )
         {
             // create color buffer
-            ImgBuffer ib = new ImgBuffer( width, height );
-
-            // do rendering
-            Matrix4d rotation = new Matrix4d();
-            rotation.invert( rsd.getRotation() );
-            Matrix4d id = new Matrix4d();
-            id.setIdentity();
-            Matrix4d tm = new Matrix4d( rsd.getRotation() );
-            tm.mul( scale );
-            asr.setTransform( rsd.getRotation() );
+            ImgBuffer ib = imgBufferPool.acquire( width, height );
+
+            // do rendering, interactive frames show the rotation expected when they are finished
+            if( rotationExtrapolation && pass == RenderMetrics.Pass.LOW_RES )
+                rsd.getRotation( drawRotation, System.nanoTime() + ( long ) ( 1000000000.0 * frameRateController.getTimePerPixel() * width * height ) );
+            else
+                rsd.getRotation( drawRotation );
+            asr.setTransform( drawRotation );
             asr.setSurfaceTransform( scale );
             asr.setAntiAliasingMode( aam );
             asr.setAntiAliasingPattern( aap );
             setOptimalCameraDistance( asr.getCamera() );
 
+            // the low resolution frames keep the scene responsive, so their tiles go first
+            RenderScheduler.setPriority( pass == RenderMetrics.Pass.LOW_RES ? RenderScheduler.Priority.INTERACTIVE_LOW_RES : RenderScheduler.Priority.INTERACTIVE_HI_RES );
             try
             {
                 long t_start = System.nanoTime();
                 asr.draw( ib.rgbBuffer, width, height );
                 long t_end = System.nanoTime();
-                double fps = 1000000000.0 / ( t_end - t_start );
-                System.err.println( fps + "fps at " + width +"x" + height );
-                if( save_fps )
-                    time_per_pixel = ( ( t_end - t_start ) / 1000000000.0 ) / ( width * height );
+                metrics.frameRendered( pass, width, height, t_end - t_start );
+                if( pass == RenderMetrics.Pass.LOW_RES )
+                    frameRateController.addSample( width, height, t_end - t_start );
                 return ib;
             }
             catch( RenderingInterruptedException rie )
             {
+                metrics.frameCancelled( pass );
+                imgBufferPool.release( ib );
                 return null;
             }
             catch( Throwable t )
             {
                 t.printStackTrace();
+                imgBufferPool.release( ib );
                 return null;
             }
         }
@@ -219,10 +828,13 @@ public class JSurferRenderPanel extends JComponent
         renderCoordinatenSystem = false;
         minLowResRenderSize = new Dimension( 150, 150 );
         maxLowResRenderSize = new Dimension( 512, 512 );
+        frameRateController = new FrameRateController();
+        metrics = RenderMetrics.getInstance();
+        frameCache = FrameCache.create( 64, 0 );
 
         resizeImageWithComponent = false;
 
-        asr = new CPUAlgebraicSurfaceRenderer();
+        asr = new CachingSurfaceRenderer();
 
         rsd = new RotateSphericalDragger();
         scale = new Matrix4d();
@@ -264,7 +876,6 @@ public class JSurferRenderPanel extends JComponent
 */
         rw = new RenderWorker();
         rw.start();
-        currentSurfaceImage = null;
     }
 
     public AlgebraicSurfaceRenderer getAlgebraicSurfaceRenderer()
@@ -318,6 +929,139 @@ public class JSurferRenderPanel extends JComponent
         return this.renderSize;
     }
 
+    /**
+     * @return the controller that decides about the resolution of the
+     *         interactive rendering and the delay before the high resolution
+     *         rendering starts
+     */
+    public FrameRateController getFrameRateController()
+    {
+        return frameRateController;
+    }
+
+    public RenderMetrics getRenderMetrics()
+    {
+        return metrics;
+    }
+
+    /**
+     * @param fc the cache of rendered images of the interactive rendering and
+     *        the PNG export or null, if no images should be cached
+     */
+    public void setFrameCache( FrameCache fc )
+    {
+        this.frameCache = fc;
+    }
+
+    public FrameCache getFrameCache()
+    {
+        return frameCache;
+    }
+
+    /**
+     * @param enabled precompute views of every loaded scene from many
+     *        directions in the background and show the nearest one
+     *        while the surface is rotated, until the exact image is ready
+     */
+    public void setRotationSprites( boolean enabled )
+    {
+        this.rotationSpritesEnabled = enabled;
+        RotationSpriteSet sprites = rotationSprites;
+        if( !enabled && sprites != null )
+        {
+            sprites.cancel();
+            rotationSprites = null;
+        }
+    }
+
+    public boolean getRotationSprites()
+    {
+        return rotationSpritesEnabled;
+    }
+
+    /**
+     * @param enabled precompute images for evenly spaced values of each
+     *        surface parameter of the current view in the background and
+     *        show the closest one while a parameter is changed, until the
+     *        exact image is ready
+     */
+    public void setParameterSweep( boolean enabled )
+    {
+        this.parameterSweepEnabled = enabled;
+        ParameterSweep sweep = parameterSweep;
+        if( !enabled && sweep != null )
+        {
+            sweep.cancel();
+            parameterSweep = null;
+        }
+    }
+
+    public boolean getParameterSweep()
+    {
+        return parameterSweepEnabled;
+    }
+
+    /**
+     * @param progressive show the high resolution images tile by tile while
+     *        they are rendered instead of only when they are complete
+     */
+    public void setProgressiveRendering( boolean progressive )
+    {
+        this.progressiveRendering = progressive;
+    }
+
+    public boolean isProgressiveRendering()
+    {
+        return progressiveRendering;
+    }
+
+    /**
+     * @param extrapolate render the interactive frames during a drag with
+     *        the rotation expected at the time they will be finished (based
+     *        on the recent speed of the drag and the rendering time of the
+     *        previous frames) instead of the rotation at the time they are
+     *        started
+     */
+    public void setRotationExtrapolation( boolean extrapolate )
+    {
+        this.rotationExtrapolation = extrapolate;
+    }
+
+    public boolean isRotationExtrapolation()
+    {
+        return rotationExtrapolation;
+    }
+
+    /**
+     * @param enabled show the last frame warped to the new view while the
+     *        surface is rotated or scaled, until the new frame is ready
+     */
+    public void setReprojection( boolean enabled )
+    {
+        this.reprojectionEnabled = enabled;
+    }
+
+    public boolean isReprojection()
+    {
+        return reprojectionEnabled;
+    }
+
+    /**
+     * @param enabled keep the surface points of the last rendered view, so
+     *        that changes of materials, lights and background color are
+     *        shown at once at full resolution (without anti-aliasing until
+     *        the high resolution passes have finished)
+     */
+    public void setReshading( boolean enabled )
+    {
+        this.reshadingEnabled = enabled;
+    }
+
+    public boolean isReshading()
+    {
+        return reshadingEnabled;
+    }
+
     public void setScale( double scaleFactor )
     {
         if (scaleFactor<-2.0)scaleFactor=-2.0;
@@ -334,22 +1078,73 @@ public class JSurferRenderPanel extends JComponent
         return Math.log10(this.scale.getScale());
     }
 
+    /**
+     * Renders the current scene at the given size into a PNG file. The image
+     * is rendered tile by tile by a separate @see{OffscreenRenderer} and
+     * streamed to the file, so neither the interactive rendering is disturbed
+     * nor the whole image has to fit into memory.
+     */
     public void saveToPNG( java.io.File f, int width, int height )
             throws java.io.IOException
     {
-        Dimension oldMinDim = getMinLowResRenderSize();
-        Dimension oldMaxDim = getMaxLowResRenderSize();
-        setMinLowResRenderSize( new Dimension( width, height ) );
-        setMaxLowResRenderSize( new Dimension( width, height ) );
-        scheduleSurfaceRepaint();
+        saveToPNG( f, getSceneProperties(), width, height );
+    }
+
+    /**
+     * Renders a scene, e.g. a snapshot taken with @see{getSceneProperties},
+     * into a PNG file like @see{saveToPNG(java.io.File,int,int)}.
+     */
+    public void saveToPNG( java.io.File f, Properties props, int width, int height )
+            throws java.io.IOException
+    {
+        synchronized( this )
+        {
+            if( exportRenderer == null )
+                exportRenderer = new OffscreenRenderer();
+        }
+        long t_start = System.nanoTime();
+        CPUAlgebraicSurfaceRenderer.AntiAliasingMode aam = CPUAlgebraicSurfaceRenderer.AntiAliasingMode.ADAPTIVE_SUPERSAMPLING;
+        AntiAliasingPattern aap = AntiAliasingPattern.OG_4x4;
+        FrameCache fc = frameCache;
+        String key = FrameCache.keyOf( props, width, height, aam, aap );
+        int[] rgb = fc == null ? null : fc.get( key, width, height );
+        if( rgb != null )
+        {
+            OffscreenRenderer.saveToPNG( f, rgb, width, height );
+            metrics.exportFinished( System.nanoTime() - t_start );
+            return;
+        }
+        RenderScheduler.Priority priority = RenderScheduler.setPriority( RenderScheduler.Priority.EXPORT );
         try
         {
-            saveToPNG( f, (ImgBuffer) rw.draw( width, height, CPUAlgebraicSurfaceRenderer.AntiAliasingMode.ADAPTIVE_SUPERSAMPLING, AntiAliasingPattern.OG_4x4 ) );
+            synchronized( exportRenderer )
+            {
+                try
+                {
+                    exportRenderer.loadFromProperties( props );
+                }
+                catch( Exception e )
+                {
+                    throw new IOException( e.getMessage() );
+                }
+                if( fc != null && fc.isCacheable( width, height ) )
+                {
+                    // small enough to be rendered at once and kept for the next export of this view
+                    rgb = exportRenderer.draw( width, height, aam, aap );
+                    fc.put( key, rgb, width, height );
+                    OffscreenRenderer.saveToPNG( f, rgb, width, height );
+                }
+                else
+                {
+                    exportRenderer.saveToPNG( f, width, height, aam, aap );
+                }
+            }
+        }
+        finally
+        {
+            RenderScheduler.setPriority( priority );
         }
-        catch( java.util.concurrent.CancellationException ce ) {}
-        setMinLowResRenderSize( oldMinDim );
-        setMaxLowResRenderSize( oldMaxDim );
-        scheduleSurfaceRepaint();
+        metrics.exportFinished( System.nanoTime() - t_start );
     }
     public void saveString(java.io.File file, java.lang.String string)
             throws java.io.IOException
@@ -374,18 +1169,22 @@ public class JSurferRenderPanel extends JComponent
     public void saveToPNG( java.io.File f )
             throws java.io.IOException
     {
-        saveToPNG( f, currentSurfaceImage );
+        ImgBuffer ib = imgBufferPool.beginPaint();
+        try
+        {
+            if( ib != null )
+                saveToPNG( f, ib );
+        }
+        finally
+        {
+            imgBufferPool.endPaint();
+        }
     }
 
     public static void saveToPNG( java.io.File f, ImgBuffer imgbuf )
             throws java.io.IOException
     {
-        BufferedImage bufferedImage = createBufferedImageFromRGB( imgbuf );
-        AffineTransform tx = AffineTransform.getScaleInstance(1, -1);
-        tx.translate(0, -bufferedImage.getHeight(null));
-        AffineTransformOp op = new AffineTransformOp(tx, AffineTransformOp.TYPE_NEAREST_NEIGHBOR);
-        bufferedImage = op.filter(bufferedImage, null);
-        javax.imageio.ImageIO.write( bufferedImage, "png", f );
+        OffscreenRenderer.saveToPNG( f, imgbuf.rgbBuffer, imgbuf.width, imgbuf.height );
     }
 
     protected void paintComponent( Graphics g )
@@ -394,37 +1193,65 @@ public class JSurferRenderPanel extends JComponent
         {
          //   System.out.println( globalPanelSize );
             final Graphics2D g2 = ( Graphics2D ) g;
-            ImgBuffer tmpImg = JSurferRenderPanel.this.currentSurfaceImage;
-            if( tmpImg == null || tmpImg.width == 0 || tmpImg.height == 0 )
+            ImgBuffer tmpImg = imgBufferPool.beginPaint();
+            try
             {
-                g2.setColor( this.asr.getBackgroundColor().get() );
-                g2.fillRect( 0, 0, this.getWidth(), this.getHeight() );
+                if( tmpImg == null || tmpImg.width == 0 || tmpImg.height == 0 )
+                {
+                    g2.setColor( this.asr.getBackgroundColor().get() );
+                    g2.fillRect( 0, 0, this.getWidth(), this.getHeight() );
+                }
+                else
+                {
+                    final AffineTransform g2t = g2.getTransform();
+                    final AffineTransform g2scale = AffineTransform.getScaleInstance( g2t.getScaleX(), g2t.getScaleY() );
+
+                    // compute size of on screen buffer
+                    Rectangle rect = g2scale.createTransformedShape( new Rectangle( 0, 0, this.getWidth(), this.getHeight()) ).getBounds();
+
+                    // the display surface is only recreated if the component has been resized
+                    boolean resized = displayImage == null || displayImage.getWidth() != rect.width || displayImage.getHeight() != rect.height;
+                    if( resized )
+                        displayImage = g2.getDeviceConfiguration().createCompatibleImage( rect.width, rect.height );
+
+                    // scale the new frame into the display surface using bilinear interpolation and flip it on the way
+                    // (drawing directly to the components graphics is incredibly slow on some systems (100x slower))
+                    Rectangle dirty = imgBufferPool.takeDirtyRegion( tmpImg );
+                    if( resized || tmpImg != displayedBuffer )
+                        dirty.setBounds( 0, 0, tmpImg.width, tmpImg.height );
+                    if( !dirty.isEmpty() )
+                    {
+                        // include a border of one pixel, so the interpolation does not produce seams
+                        dirty.grow( 1, 1 );
+                        dirty = dirty.intersection( new Rectangle( 0, 0, tmpImg.width, tmpImg.height ) );
+                        int dx1 = dirty.x * rect.width / tmpImg.width;
+                        int dx2 = ( dirty.x + dirty.width ) * rect.width / tmpImg.width;
+                        int dy1 = rect.height - dirty.y * rect.height / tmpImg.height;
+                        int dy2 = rect.height - ( dirty.y + dirty.height ) * rect.height / tmpImg.height;
+
+                        Graphics2D dig2 = displayImage.createGraphics();
+                        dig2.setRenderingHint( RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR );
+                        dig2.drawImage( tmpImg.getImage(), dx1, dy1, dx2, dy2, dirty.x, dirty.y, dirty.x + dirty.width, dirty.y + dirty.height, null );
+                        dig2.dispose();
+                        displayedBuffer = tmpImg;
+                    }
+
+                    // now just blit the display surface to the components graphics (no interpolation needed)
+                    g2.setTransform( AffineTransform.getTranslateInstance( g2t.getTranslateX(), g2t.getTranslateY() ) );
+                    g2.drawImage( displayImage, 0, 0, this );
+                    g2.setTransform( g2t );
+
+                    if( tmpImg.requested != 0 )
+                    {
+                        metrics.firstPixelPainted( System.nanoTime() - tmpImg.requested );
+                        tmpImg.requested = 0;
+                        StartupTimer.interactive();
+                    }
+                }
             }
-            else
+            finally
             {
-                // scale and translate to fit the component
-                final AffineTransform g2t = g2.getTransform();
-                final AffineTransform g2scale = AffineTransform.getScaleInstance( g2t.getScaleX(), g2t.getScaleY() );
-
-                // compute size of on screen buffer
-                Rectangle rect = g2scale.createTransformedShape( new Rectangle( 0, 0, this.getWidth(), this.getHeight()) ).getBounds();
-
-                // wrap color array into Image
-                Image img = createImage(new MemoryImageSource( tmpImg.width, tmpImg.height, tmpImg.rgbBuffer, 0, tmpImg.width));
-
-                // first draw to a BufferedImage and apply the transformation using bilenar interpolation
-                // (drawing directly to the components graphics is incredibly slow on some systems (100x slower))
-                BufferedImage bi = g2.getDeviceConfiguration().createCompatibleImage( rect.width, rect.height );
-                Graphics2D big2 = bi.createGraphics();
-                big2.setRenderingHint( RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR );
-                big2.drawImage( img, 0, 0, rect.width, rect.height, null );
-
-                // now just blit flipped image to the components graphics (no interpolation needed)
-                g2.setTransform( AffineTransform.getTranslateInstance( g2t.getTranslateX(), g2t.getTranslateY() ) );
-                g2.scale( 1.0, -1.0 );
-                g2.translate( 0.0, -rect.height );
-                g2.drawImage( bi, 0, 0, this );
-                g2.setTransform( g2t );
+                imgBufferPool.endPaint();
             }
         }
         else
@@ -434,26 +1261,19 @@ public class JSurferRenderPanel extends JComponent
         }
     }
 
+    /**
+     * Requests a new frame of the current scene. Must be called on the thread
+     * that changes the scene (the event dispatch thread), because the scene
+     * is taken from the renderer here and handed to the @see{RenderWorker}.
+     */
     protected void scheduleSurfaceRepaint()
     {
-        rw.scheduleRepaint();
+        rw.scheduleRepaint( getSceneProperties() );
     }
 
     protected static void setOptimalCameraDistance( Camera c )
     {
-        float cameraDistance;
-        switch( c.getCameraType() )
-        {
-            case ORTHOGRAPHIC_CAMERA:
-                cameraDistance = 1.0f;
-                break;
-            case PERSPECTIVE_CAMERA:
-                cameraDistance = ( float ) ( 1.0 / Math.sin( ( Math.PI / 180.0 ) * ( c.getFoVY() / 2.0 ) ) );
-                break;
-            default:
-                throw new RuntimeException();
-        }
-        c.lookAt( new Point3d( 0, 0, cameraDistance ), new Point3d( 0, 0, -1 ), new Vector3d( 0, 1, 0 ) );
+        OffscreenRenderer.setOptimalCameraDistance( c );
     }
 
     protected void componentResized( ComponentEvent ce )
@@ -470,14 +1290,14 @@ public class JSurferRenderPanel extends JComponent
     {
         grabFocus();
         dragging = true;
-        rsd.startDrag( me.getPoint() );
+        rsd.startDrag( me.getX(), me.getY() );
     }
 
     protected void mouseDragged( MouseEvent me )
     {
         if( dragging )
         {
-            rsd.dragTo( me.getPoint() );
+            rsd.dragTo( me.getX(), me.getY() );
             //drawCoordinatenSystem(true);
             scheduleSurfaceRepaint();
         }
@@ -486,7 +1306,7 @@ public class JSurferRenderPanel extends JComponent
     protected void mouseReleased( MouseEvent me )
     {
         dragging = false;
-        rsd.startDrag( me.getPoint() );
+        rsd.stopDrag();
     }
 
     protected void scaleSurface( int units )
@@ -510,47 +1330,48 @@ public class JSurferRenderPanel extends JComponent
         loadFromProperties( props );
     }
 
+    /**
+     * Loads a .jsurf file or, if there is an up to date @see{CompiledScene}
+     * next to it, the compiled scene.
+     */
     public void loadFromFile( URL url )
             throws IOException, Exception
     {
+        byte[] source = CompiledScene.readFully( url.openStream() );
+        CompiledScene cs = CompiledScene.find( url, source );
+        if( cs != null )
+        {
+            loadFromCompiledScene( cs );
+            return;
+        }
         Properties props = new Properties();
-        props.load( url.openStream() );
+        props.load( new ByteArrayInputStream( source ) );
         loadFromProperties( props );
     }
 
+    public void loadFromCompiledScene( CompiledScene cs )
+    {
+        cs.apply( asr );
+        frameRateController.reset();
+        this.setScale( cs.getScaleFactor() );
+        rsd.setRotation( cs.getRotation() );
+        rotationSpritesRequested = true;
+    }
+
     public void loadFromProperties( Properties props )
             throws Exception
     {
-        asr.setSurfaceFamily( props.getProperty( "surface_equation" ) );
-
-        Set< Map.Entry< Object, Object > > entries = props.entrySet();
-        String parameter_prefix = "surface_parameter_";
-        for( Map.Entry< Object, Object > entry : entries )
-        {
-            String name = (String) entry.getKey();
-            if( name.startsWith( parameter_prefix ) )
-            {
-                String parameterName = name.substring( parameter_prefix.length() );
-                asr.setParameterValue( parameterName, Float.parseFloat( ( String ) entry.getValue() ) );
-                System.out.println("LoadRenderPar: " + parameterName + "=" + entry.getValue() + " (" + Float.parseFloat( (String) entry.getValue()) + ") "+ asr.getParameterValue( parameterName));
-            }
-        }
-
-        asr.getCamera().loadProperties( props, "camera_", "" );
-        asr.getFrontMaterial().loadProperties(props, "front_material_", "");
-        asr.getBackMaterial().loadProperties(props, "back_material_", "");
-        for( int i = 0; i < asr.MAX_LIGHTS; i++ )
-        {
-            asr.getLightSource( i ).setStatus(LightSource.Status.OFF);
-            asr.getLightSource( i ).loadProperties( props, "light_", "_" + i );
-        }
-        asr.setBackgroundColor( BasicIO.fromColor3fString( props.getProperty( "background_color" ) ) );
+        OffscreenRenderer.loadSurfaceProperties( props, asr );
+        frameRateController.reset();
         this.setScale( Float.parseFloat( props.getProperty( "scale_factor" ) ) );
         rsd.setRotation( BasicIO.fromMatrix4dString( props.getProperty( "rotation_matrix" ) ) );
+        rotationSpritesRequested = true;
     }
 
-    public void saveToFile( URL url )
-            throws IOException
+    /**
+     * @return the current scene in the format of .jsurf files
+     */
+    public Properties getSceneProperties()
     {
         Properties props = new Properties();
         props.setProperty( "surface_equation", asr.getSurfaceFamilyString() );
@@ -574,57 +1395,60 @@ public class JSurferRenderPanel extends JComponent
 
         props.setProperty( "scale_factor", ""+this.getScale() );
         props.setProperty( "rotation_matrix", BasicIO.toString( rsd.getRotation() ));
+        return props;
+    }
 
+    /**
+     * Saves the scene as .jsurf file and the @see{CompiledScene} next to it.
+     */
+    public void saveToFile( URL url )
+            throws IOException
+    {
+        Properties props = getSceneProperties();
         File property_file = new File( url.getFile() );
-        props.store( new FileOutputStream( property_file ), "jSurfer surface description" );
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        props.store( bos, "jSurfer surface description" );
+        byte[] source = bos.toByteArray();
+        OutputStream os = new FileOutputStream( property_file );
+        try
+        {
+            os.write( source );
+        }
+        finally
+        {
+            os.close();
+        }
+        try
+        {
+            CompiledScene.compile( props, source, CompiledScene.compiledFileOf( property_file ) );
+        }
+        catch( Exception e )
+        {
+            System.err.println( "unable to write the compiled scene of " + property_file + ": " + e );
+        }
     }
     public void drawCoordinatenSystem(boolean b)
     {
         renderCoordinatenSystem=b;
     }
-    public static void generateGalleryThumbnails( String jsurf_folder, String png_folder )
+    /**
+     * Renders the *_icon.png thumbnails of all .jsurf files in jsurf_folder
+     * that changed since the last run.
+     * @see{de.mfo.jsurfer.rendering.ThumbnailGenerator}
+     * @return the number of thumbnails that could not be generated
+     */
+    public static int generateGalleryThumbnails( String jsurf_folder, String png_folder )
     {
-        JSurferRenderPanel p = new JSurferRenderPanel();
-        synchronized( p.asr )
+        try
         {
-            try
-            {
-                new File( png_folder ).mkdir();
-                JSurferRenderPanel.ImgBuffer ib = p.new ImgBuffer( 120, 120 );
-
-                String[] jsurf_dir_content = new File( jsurf_folder ).list();
-                if( jsurf_dir_content == null )
-                        System.err.println( new File( jsurf_folder ) + " does not exist or is not a directory" );
-                for( String filename : jsurf_dir_content )
-                {
-                    if( filename.endsWith( ".jsurf" ) )
-                    {
-                        String key = filename.substring( 0, filename.length() - 6 );
-                        File jsurf_file = new File( jsurf_folder + File.separator + filename );
-                        File png_file = new File( png_folder + File.separator + key + "_icon.png" );
-                        System.out.print( "generating thumbnail for " + jsurf_file + " at " + png_file );
-                        p.loadFromFile( jsurf_file.getAbsoluteFile().toURL() );
-
-                        // do rendering
-                        p.asr.setTransform( p.rsd.getRotation() );
-                        p.asr.setSurfaceTransform( p.scale );
-                        p.asr.setAntiAliasingMode( CPUAlgebraicSurfaceRenderer.AntiAliasingMode.ADAPTIVE_SUPERSAMPLING );
-                        p.asr.setAntiAliasingPattern( AntiAliasingPattern.RG_2x2 );
-
-                        p.asr.draw( ib.rgbBuffer, ib.width, ib.height );
-
-                        saveToPNG( png_file, ib );
-                        System.out.println( " ... done" );
-                    }
-                }
-            }
-            catch( Throwable t )
-            {
-                System.err.println( t );
-                t.printStackTrace( System.err );
-            }
+            return new de.mfo.jsurfer.rendering.ThumbnailGenerator().generate( jsurf_folder, png_folder );
+        }
+        catch( Exception e )
+        {
+            System.err.println( e );
+            e.printStackTrace( System.err );
+            return -1;
         }
-        System.exit( 0 );
     }
 
     public static void main( String[]args )
@@ -20,6 +20,19 @@ public class Options {
     public static final String printExportDir;
     public static final String printCmd;
 
+    public static final double targetFrameTime;
+
+    public static final int renderCacheSize;
+    public static final int renderCacheDiskSize;
+
+    public static final boolean rotationSprites;
+    public static final boolean parameterSweep;
+    public static final boolean rotationExtrapolation;
+    public static final boolean reprojection;
+    public static final boolean reshading;
+
+    public static final String startupLog;
+
     static
     {
         Properties config = readConfigFile();
@@ -38,6 +51,19 @@ public class Options {
         printExportDir = config.getProperty( "printExportDir" );
         printCmd = config.getProperty( "printCmd" );
         printMsg = config.getProperty( "printMsg" );
+
+        targetFrameTime = Integer.parseInt( config.getProperty( "targetFrameTime" ).trim() ) / 1000.0;
+
+        renderCacheSize = Integer.parseInt( config.getProperty( "renderCacheSize" ).trim() );
+        renderCacheDiskSize = Integer.parseInt( config.getProperty( "renderCacheDiskSize" ).trim() );
+
+        rotationSprites = Boolean.parseBoolean( config.getProperty( "rotationSprites" ) );
+        parameterSweep = Boolean.parseBoolean( config.getProperty( "parameterSweep" ) );
+        rotationExtrapolation = Boolean.parseBoolean( config.getProperty( "rotationExtrapolation" ) );
+        reprojection = Boolean.parseBoolean( config.getProperty( "reprojection" ) );
+        reshading = Boolean.parseBoolean( config.getProperty( "reshading" ) );
+
+        startupLog = config.getProperty( "startupLog", "" );
     }
 
     private static Properties readConfigFile()
@@ -60,7 +86,15 @@ public class Options {
         File userConfigFile = new File( System.getProperty("user.home") + File.separator + ".fxsurfer" ).getAbsoluteFile();
         try
         {
-            userConfig.load( new FileInputStream( userConfigFile ) );
+            InputStream is = new FileInputStream( userConfigFile );
+            try
+            {
+                userConfig.load( is );
+            }
+            finally
+            {
+                is.close();
+            }
         }
         catch( Exception e )
         {
@@ -70,9 +104,10 @@ public class Options {
             {
                 FileOutputStream fos = new FileOutputStream(userConfigFile);
                 InputStream is = Options.class.getResourceAsStream( "config.properties" );
-                int aByte;
-                while ((aByte = is.read()) != -1) {
-                     fos.write(aByte);
+                byte[] buffer = new byte[ 8192 ];
+                int n;
+                while ((n = is.read(buffer)) != -1) {
+                     fos.write(buffer, 0, n);
                 }
                 fos.close();
                 is.close();
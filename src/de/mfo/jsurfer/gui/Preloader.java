@@ -0,0 +1,116 @@
+package de.mfo.jsurfer.gui;
+
+import java.io.File;
+import java.net.URL;
+import java.util.Locale;
+
+import de.mfo.jsurfer.rendering.OffscreenRenderer;
+import de.mfo.jsurfer.rendering.RenderScheduler;
+import de.mfo.jsurfer.util.StartupTimer;
+import static de.mfo.jsurf.rendering.cpu.CPUAlgebraicSurfaceRenderer.AntiAliasingMode;
+import de.mfo.jsurf.rendering.cpu.AntiAliasingPattern;
+
+/**
+ * Does the work of the start of the GUI, which does not depend on the JavaFX
+ * runtime, in background threads while the runtime starts and the layout is
+ * loaded: the configuration, the font, the galleries of the first language,
+ * the registration of the @see{RenderMetrics} and a warm-up of the renderer
+ * (loading the parser and the renderer classes and compiling the hot code).
+ * The GUI uses these parts as before; if it needs one of them before it is
+ * ready, it just waits for it.
+ */
+public class Preloader
+{
+    /** the gallery and surface the GUI shows first */
+    static final int FIRST_GALLERY = 1;
+    static final int FIRST_SURFACE = 0;
+
+    public static void start()
+    {
+        start( "preload configuration", new Runnable() {
+            public void run()
+            {
+                StartupTimer.begin( "configuration" );
+                if( !Options.startupLog.trim().isEmpty() )
+                    StartupTimer.setLogFile( new File( Options.startupLog.trim() ) );
+                StartupTimer.end( "configuration" );
+
+                StartupTimer.begin( "galleries" );
+                URL firstSurface = null;
+                try
+                {
+                    Locale locale = firstLanguage();
+                    for( int i = 0; i < Gallery.getNumberOfGalleries( locale ); i++ )
+                    {
+                        Gallery g = new Gallery( i, locale );
+                        if( i == FIRST_GALLERY )
+                            firstSurface = g.getEntries()[ FIRST_SURFACE ].getJSurfURL();
+                    }
+                }
+                catch( Exception e )
+                {
+                    System.err.println( "unable to preload the galleries: " + e );
+                }
+                StartupTimer.end( "galleries" );
+
+                if( firstSurface != null )
+                    warmUp( firstSurface );
+            }
+        } );
+        start( "preload font", new Runnable() {
+            public void run()
+            {
+                StartupTimer.begin( "font" );
+                FontProvider.getName();
+                StartupTimer.end( "font" );
+            }
+        } );
+        start( "preload metrics", new Runnable() {
+            public void run()
+            {
+                StartupTimer.begin( "metrics" );
+                RenderMetrics.getInstance();
+                StartupTimer.end( "metrics" );
+            }
+        } );
+    }
+
+    /**
+     * @return the language the GUI starts with, which is the first configured
+     *         language, for "*" the GUI falls back to English
+     */
+    static Locale firstLanguage()
+    {
+        String first = Options.languages.get( 0 );
+        return first.equals( "*" ) ? Locale.ENGLISH : new Locale( first );
+    }
+
+    /**
+     * Renders a tiny image of a surface, so that the classes of the parser and
+     * the renderer are loaded and the JIT has compiled the hottest code
+     * before the first image of the GUI is rendered.
+     */
+    static void warmUp( URL surface )
+    {
+        StartupTimer.begin( "renderer warm-up" );
+        RenderScheduler.setPriority( RenderScheduler.Priority.BACKGROUND );
+        try
+        {
+            OffscreenRenderer or = new OffscreenRenderer();
+            or.loadFromFile( surface );
+            or.draw( 64, 64, AntiAliasingMode.ADAPTIVE_SUPERSAMPLING, AntiAliasingPattern.QUINCUNX );
+        }
+        catch( Exception e )
+        {
+            System.err.println( "renderer warm-up failed: " + e );
+        }
+        StartupTimer.end( "renderer warm-up" );
+    }
+
+    static void start( String name, Runnable r )
+    {
+        Thread t = new Thread( r, name );
+        t.setDaemon( true );
+        t.start();
+    }
+}
@@ -0,0 +1,184 @@
+package de.mfo.jsurfer.gui;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.mfo.jsurfer.util.Texify;
+
+/**
+ * Prints scenes in the background. A print job takes a snapshot of the scene
+ * when it is submitted, so the visitor can go on exploring while the image
+ * is rendered. The jobs are processed one after another, because they share
+ * the files print_tmp.png, print_tmp.tex and print_tmp.jsurf in the
+ * export directory: the files of a job are written (the TeX and jsurf files
+ * while the image is rendered), then the print command is called and the
+ * next job starts after the command has finished.
+ * The progress of a job is reported to its @see{Listener} from the print
+ * thread.
+ */
+public class PrintQueue
+{
+    public enum State { QUEUED, RENDERING, PRINTING, DONE, FAILED }
+
+    public interface Listener
+    {
+        /**
+         * @param jobsAhead the number of jobs which are processed before this
+         *        job, only meaningful in state QUEUED
+         */
+        void stateChanged( State state, int jobsAhead );
+    }
+
+    final JSurferRenderPanel panel;
+    final ExecutorService printer;
+    final ExecutorService writer;
+    final AtomicInteger pending;
+    int imageSize;
+
+    public PrintQueue( JSurferRenderPanel panel )
+    {
+        this.panel = panel;
+        this.printer = Executors.newSingleThreadExecutor( daemonThreads( "print queue" ) );
+        this.writer = Executors.newSingleThreadExecutor( daemonThreads( "print file writer" ) );
+        this.pending = new AtomicInteger();
+        this.imageSize = 1280;
+    }
+
+    static ThreadFactory daemonThreads( final String name )
+    {
+        return new ThreadFactory() {
+            public Thread newThread( Runnable r )
+            {
+                Thread t = new Thread( r, name );
+                t.setDaemon( true );
+                return t;
+            }
+        };
+    }
+
+    public void setImageSize( int imageSize )
+    {
+        this.imageSize = imageSize;
+    }
+
+    /**
+     * @return the number of jobs which have been submitted, but not finished yet
+     */
+    public int getPendingJobs()
+    {
+        return pending.get();
+    }
+
+    /**
+     * Takes a snapshot of the current scene and queues it for printing.
+     * Must be called from the thread that modifies the scene.
+     * @param expression the surface expression as entered by the user, which is typeset for the print
+     * @param l receives the progress of the job or null
+     */
+    public void submit( String expression, Listener l )
+    {
+        final Properties scene = panel.getSceneProperties();
+        final String tex = Texify.texify( expression );
+        final Listener listener = l != null ? l : new Listener() {
+            public void stateChanged( State state, int jobsAhead ) {}
+        };
+        listener.stateChanged( State.QUEUED, pending.getAndIncrement() );
+        printer.execute( new Runnable() {
+            public void run()
+            {
+                try
+                {
+                    print( scene, tex, listener );
+                }
+                catch( Exception e )
+                {
+                    System.err.println( "printing failed: " + e );
+                    e.printStackTrace();
+                    listener.stateChanged( State.FAILED, 0 );
+                }
+                finally
+                {
+                    pending.decrementAndGet();
+                }
+            }
+        } );
+    }
+
+    void print( final Properties scene, final String tex, Listener listener )
+            throws Exception
+    {
+        long t_start = System.nanoTime();
+        final String print_dir = Options.printExportDir + File.separator;
+        listener.stateChanged( State.RENDERING, 0 );
+
+        // the small files are written while the image is rendered
+        Future< ? > files = writer.submit( new Callable< Void >() {
+            public Void call() throws IOException
+            {
+                File f2 = new File( print_dir + "print_tmp.tex" );
+                System.out.println( "writing TeX to " + f2.getAbsolutePath() );
+                panel.saveString( f2, tex );
+
+                File f3 = new File( print_dir + "print_tmp.jsurf" );
+                System.out.println( "writing jsurf to " + f3.getAbsolutePath() );
+                OutputStream os = new FileOutputStream( f3 );
+                try
+                {
+                    scene.store( os, "jSurfer surface description" );
+                }
+                finally
+                {
+                    os.close();
+                }
+                return null;
+            }
+        } );
+        File f = new File( print_dir + "print_tmp.png" );
+        System.out.println( "writing image to " + f.getAbsolutePath() );
+        panel.saveToPNG( f, scene, imageSize, imageSize );
+        try
+        {
+            files.get();
+        }
+        catch( ExecutionException ee )
+        {
+            throw ee.getCause() instanceof Exception ? ( Exception ) ee.getCause() : ee;
+        }
+
+        listener.stateChanged( State.PRINTING, 0 );
+        panel.getRenderMetrics().printFinished( System.nanoTime() - t_start );
+        int exitCode = runPrintCommand();
+        if( exitCode != 0 )
+            throw new IOException( "print command exited with " + exitCode );
+        listener.stateChanged( State.DONE, 0 );
+    }
+
+    /**
+     * Calls the print command and waits for it. Its output is copied to
+     * System.out, so it can neither block on a full pipe nor get lost.
+     */
+    int runPrintCommand()
+            throws IOException, InterruptedException
+    {
+        List< String > cmd = new ArrayList< String >( Arrays.asList( Options.printCmd.trim().split( "\\s+" ) ) );
+        cmd.add( Options.printExportDir );
+        ProcessBuilder pb = new ProcessBuilder( cmd );
+        pb.redirectErrorStream( true );
+        Process proc = pb.start();
+        proc.getOutputStream().close();
+        BufferedReader br = new BufferedReader( new InputStreamReader( proc.getInputStream() ) );
+        try
+        {
+            String line;
+            while( ( line = br.readLine() ) != null )
+                System.out.println( "print: " + line );
+        }
+        finally
+        {
+            br.close();
+        }
+        return proc.waitFor();
+    }
+}
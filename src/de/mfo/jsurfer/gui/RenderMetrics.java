@@ -0,0 +1,200 @@
+package de.mfo.jsurfer.gui;
+
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import javax.management.*;
+
+import de.mfo.jsurfer.util.LatencyHistogram;
+
+/**
+ * Collects timings of the render pipeline and publishes them as MBeans of
+ * the platform MBean server under the domain "de.mfo.jsurfer", so they can
+ * be watched with jconsole or any other JMX client:
+ * <ul>
+ * <li>de.mfo.jsurfer:type=RenderMetrics (counters and gauges)</li>
+ * <li>de.mfo.jsurfer:type=RenderLatency,name=... (one histogram per pass,
+ *     for the time from a repaint request until the first frame is shown
+ *     and until it has actually been painted, for PNG exports and for print
+ *     jobs)</li>
+ * </ul>
+ * There is one instance per virtual machine.
+ */
+public class RenderMetrics implements RenderMetricsMBean
+{
+    public static final String DOMAIN = "de.mfo.jsurfer";
+
+    public enum Pass
+    {
+        LOW_RES( "lowRes" ), ADAPTIVE_HI_RES( "adaptiveHiRes" ), SUPERSAMPLED_HI_RES( "supersampledHiRes" );
+
+        final String name;
+        Pass( String name ) { this.name = name; }
+    }
+
+    static RenderMetrics instance;
+
+    EnumMap< Pass, LatencyHistogram > passLatencies = new EnumMap< Pass, LatencyHistogram >( Pass.class );
+    EnumMap< Pass, Long > cancellations = new EnumMap< Pass, Long >( Pass.class );
+    LatencyHistogram firstFrameLatency = new LatencyHistogram();
+    LatencyHistogram firstPixelLatency = new LatencyHistogram();
+    LatencyHistogram exportLatency = new LatencyHistogram();
+    LatencyHistogram printLatency = new LatencyHistogram();
+    int lowResRenderSize;
+    long pixels;
+    long renderNanos;
+    volatile boolean logFrameTimes;
+
+    RenderMetrics()
+    {
+        for( Pass p : Pass.values() )
+            passLatencies.put( p, new LatencyHistogram() );
+        reset();
+    }
+
+    /**
+     * @return the metrics of this virtual machine, which are registered at
+     *         the platform MBean server on first use
+     */
+    public static synchronized RenderMetrics getInstance()
+    {
+        if( instance == null )
+        {
+            instance = new RenderMetrics();
+            instance.register( ManagementFactory.getPlatformMBeanServer() );
+        }
+        return instance;
+    }
+
+    void register( MBeanServer server )
+    {
+        try
+        {
+            server.registerMBean( this, new ObjectName( DOMAIN + ":type=RenderMetrics" ) );
+            for( Pass p : Pass.values() )
+                server.registerMBean( passLatencies.get( p ), latencyName( p.name ) );
+            server.registerMBean( firstFrameLatency, latencyName( "firstFrame" ) );
+            server.registerMBean( firstPixelLatency, latencyName( "inputToFirstPixel" ) );
+            server.registerMBean( exportLatency, latencyName( "export" ) );
+            server.registerMBean( printLatency, latencyName( "print" ) );
+        }
+        catch( JMException jme )
+        {
+            // the metrics are still collected, they are just not visible
+            System.err.println( "could not register render metrics: " + jme );
+        }
+    }
+
+    static ObjectName latencyName( String name )
+            throws MalformedObjectNameException
+    {
+        return new ObjectName( DOMAIN + ":type=RenderLatency,name=" + name );
+    }
+
+    /**
+     * Records a completely rendered frame.
+     */
+    public void frameRendered( Pass pass, int width, int height, long nanos )
+    {
+        passLatencies.get( pass ).record( nanos );
+        synchronized( this )
+        {
+            if( pass == Pass.LOW_RES )
+                lowResRenderSize = Math.max( width, height );
+            pixels += ( long ) width * height;
+            renderNanos += nanos;
+        }
+        if( logFrameTimes )
+            System.err.println( 1000000000.0 / nanos + "fps at " + width + "x" + height + " (" + pass.name + ")" );
+    }
+
+    /**
+     * Records a frame that was interrupted before it was complete.
+     */
+    public synchronized void frameCancelled( Pass pass )
+    {
+        cancellations.put( pass, cancellations.get( pass ) + 1 );
+    }
+
+    /**
+     * Records the time from a repaint request until the first frame that
+     * reflects it has been handed over for display.
+     */
+    public void firstFrameShown( long nanos )
+    {
+        firstFrameLatency.record( nanos );
+    }
+
+    /**
+     * Records the time from a repaint request (i.e. the user input that
+     * caused it) until the first frame that reflects it has been painted on
+     * the screen.
+     */
+    public void firstPixelPainted( long nanos )
+    {
+        firstPixelLatency.record( nanos );
+    }
+
+    public void exportFinished( long nanos )
+    {
+        exportLatency.record( nanos );
+    }
+
+    public void printFinished( long nanos )
+    {
+        printLatency.record( nanos );
+    }
+
+    public LatencyHistogram getPassLatency( Pass pass ) { return passLatencies.get( pass ); }
+    public LatencyHistogram getFirstFrameLatency() { return firstFrameLatency; }
+    public LatencyHistogram getFirstPixelLatency() { return firstPixelLatency; }
+    public LatencyHistogram getExportLatency() { return exportLatency; }
+    public LatencyHistogram getPrintLatency() { return printLatency; }
+
+    public synchronized long getLowResCancellations() { return cancellations.get( Pass.LOW_RES ); }
+    public synchronized long getAdaptiveHiResCancellations() { return cancellations.get( Pass.ADAPTIVE_HI_RES ); }
+    public synchronized long getSupersampledHiResCancellations() { return cancellations.get( Pass.SUPERSAMPLED_HI_RES ); }
+
+    public synchronized int getLowResRenderSize()
+    {
+        return lowResRenderSize;
+    }
+
+    public synchronized double getPixelsPerSecond()
+    {
+        return renderNanos == 0 ? 0.0 : pixels * 1000000000.0 / renderNanos;
+    }
+
+    public boolean getLogFrameTimes()
+    {
+        return logFrameTimes;
+    }
+
+    /**
+     * @param log print the frame rate of every rendered frame to stderr
+     */
+    public void setLogFrameTimes( boolean log )
+    {
+        logFrameTimes = log;
+    }
+
+    /**
+     * Resets all counters and histograms.
+     */
+    public void reset()
+    {
+        synchronized( this )
+        {
+            for( Pass p : Pass.values() )
+                cancellations.put( p, 0L );
+            lowResRenderSize = 0;
+            pixels = 0;
+            renderNanos = 0;
+        }
+        for( LatencyHistogram h : passLatencies.values() )
+            h.reset();
+        firstFrameLatency.reset();
+        firstPixelLatency.reset();
+        exportLatency.reset();
+        printLatency.reset();
+    }
+}
@@ -0,0 +1,23 @@
+package de.mfo.jsurfer.gui;
+
+/**
+ * JMX view of the @see{RenderMetrics}. The latency histograms of the
+ * individual passes are registered as separate MBeans.
+ */
+public interface RenderMetricsMBean
+{
+    public long getLowResCancellations();
+    public long getAdaptiveHiResCancellations();
+    public long getSupersampledHiResCancellations();
+
+    /** @return the edge length of the most recent interactive frame */
+    public int getLowResRenderSize();
+
+    /** @return the number of rendered pixels per second of all passes since the last reset */
+    public double getPixelsPerSecond();
+
+    public boolean getLogFrameTimes();
+    public void setLogFrameTimes( boolean log );
+
+    public void reset();
+}
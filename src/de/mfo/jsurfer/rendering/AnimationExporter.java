@@ -0,0 +1,382 @@
+package de.mfo.jsurfer.rendering;
+
+import java.io.*;
+import java.util.*;
+import javax.vecmath.*;
+
+import de.mfo.jsurf.rendering.cpu.*;
+import de.mfo.jsurfer.util.BasicIO;
+import static de.mfo.jsurf.rendering.cpu.CPUAlgebraicSurfaceRenderer.AntiAliasingMode;
+
+/**
+ * Renders an animation of a scene into a sequence of numbered PNG images
+ * (frame_00000.png, frame_00001.png, ...), e.g. to make a video of a surface
+ * that rotates or changes with its parameters.
+ * <p>
+ * The animation is described by properties:
+ * <pre>
+ * scene=calypso.jsurf                # relative to the animation file
+ * frames=121
+ * easing=smooth                      # or linear (default)
+ * keyframe.0.surface_parameter_a=0
+ * keyframe.120.surface_parameter_a=1
+ * keyframe.0.rotate_y=0
+ * keyframe.120.rotate_y=360
+ * </pre>
+ * Each keyframe sets some of the animated properties at a frame, which are
+ * interpolated between the keyframes that set them and kept constant before
+ * the first and after the last of them. The animated properties are
+ * rotation_matrix (in jsurf format, interpolated along the shortest
+ * rotation), scale_factor, surface_parameter_* and rotate_x, rotate_y and
+ * rotate_z, which turn the surface by the given angles in degrees about the
+ * axes of the image after rotation_matrix has been applied, so that they can
+ * describe full turns. Properties which are not animated are taken from the
+ * scene.
+ * <p>
+ * The frames are rendered by several workers, each with its own
+ * @see{OffscreenRenderer}. Each worker streams its frame into a temporary
+ * file, which is renamed to its final name when all previous frames are
+ * finished, so the finished frames always are a prefix of the sequence.
+ * Workers do not start frames further than twice the number of workers ahead
+ * of the oldest unfinished frame, so memory and the number of temporary files
+ * are bounded independently of the number of frames.
+ * Frames which already exist are not rendered again, if they have been
+ * rendered for the same animation and settings (see @see{MANIFEST_NAME}), so
+ * an export which has been interrupted can be resumed.
+ */
+public class AnimationExporter
+{
+    public static final String MANIFEST_NAME = ".animation";
+    public static final String FRAME_PREFIX = "frame_";
+    static final String KEYFRAME_PREFIX = "keyframe.";
+    static final String[] TURNS = { "rotate_x", "rotate_y", "rotate_z" };
+
+    final Properties scene;
+    final int frames;
+    final boolean smooth;
+    /** property name -> frame -> value */
+    final Map< String, TreeMap< Integer, String > > channels;
+    final String description;
+
+    int width = 1024;
+    int height = 1024;
+    AntiAliasingMode aam = AntiAliasingMode.ADAPTIVE_SUPERSAMPLING;
+    AntiAliasingPattern aap = AntiAliasingPattern.OG_4x4;
+    int numWorkers = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * @param scene the jsurf properties of the scene
+     * @param animation the description of the animation, its scene property is ignored
+     */
+    public AnimationExporter( Properties scene, Properties animation )
+    {
+        this.scene = scene;
+        this.frames = Integer.parseInt( required( animation, "frames" ) );
+        if( frames <= 0 )
+            throw new IllegalArgumentException( "the number of frames must be positive" );
+        String easing = animation.getProperty( "easing", "linear" ).trim();
+        if( !easing.equals( "linear" ) && !easing.equals( "smooth" ) )
+            throw new IllegalArgumentException( "unknown easing " + easing );
+        this.smooth = easing.equals( "smooth" );
+
+        this.channels = new TreeMap< String, TreeMap< Integer, String > >();
+        for( String name : animation.stringPropertyNames() )
+        {
+            if( !name.startsWith( KEYFRAME_PREFIX ) )
+                continue;
+            int dot = name.indexOf( '.', KEYFRAME_PREFIX.length() );
+            if( dot < 0 )
+                throw new IllegalArgumentException( "keyframe property " + name + " has no frame number" );
+            int frame = Integer.parseInt( name.substring( KEYFRAME_PREFIX.length(), dot ) );
+            String property = name.substring( dot + 1 );
+            if( !isAnimatable( property ) )
+                throw new IllegalArgumentException( property + " cannot be animated" );
+            TreeMap< Integer, String > keys = channels.get( property );
+            if( keys == null )
+            {
+                keys = new TreeMap< Integer, String >();
+                channels.put( property, keys );
+            }
+            keys.put( frame, animation.getProperty( name ).trim() );
+        }
+
+        StringBuilder sb = new StringBuilder( "frames=" + frames + ",easing=" + easing );
+        for( Map.Entry< String, TreeMap< Integer, String > > channel : channels.entrySet() )
+            sb.append( ',' ).append( channel.getKey() ).append( '=' ).append( channel.getValue() );
+        this.description = sb.toString();
+    }
+
+    /**
+     * Loads the animation description and the scene it refers to.
+     */
+    public static AnimationExporter load( File animationFile )
+            throws IOException
+    {
+        Properties animation = load( animationFile, new Properties() );
+        File sceneFile = new File( required( animation, "scene" ) );
+        if( !sceneFile.isAbsolute() )
+            sceneFile = new File( animationFile.getAbsoluteFile().getParentFile(), sceneFile.getPath() );
+        return new AnimationExporter( load( sceneFile, new Properties() ), animation );
+    }
+
+    static Properties load( File f, Properties props )
+            throws IOException
+    {
+        InputStream is = new FileInputStream( f );
+        try { props.load( is ); } finally { is.close(); }
+        return props;
+    }
+
+    static String required( Properties props, String name )
+    {
+        String value = props.getProperty( name );
+        if( value == null )
+            throw new IllegalArgumentException( "the animation has no property " + name );
+        return value.trim();
+    }
+
+    static boolean isAnimatable( String property )
+    {
+        return property.equals( "rotation_matrix" ) || property.equals( "scale_factor" ) || property.startsWith( ParameterSweep.PARAMETER_PREFIX ) || Arrays.asList( TURNS ).contains( property );
+    }
+
+    public void setSize( int width, int height ) { this.width = width; this.height = height; }
+    public void setAntiAliasing( AntiAliasingMode aam, AntiAliasingPattern aap ) { this.aam = aam; this.aap = aap; }
+    public void setNumWorkers( int numWorkers ) { this.numWorkers = Math.max( 1, numWorkers ); }
+
+    public int getFrames()
+    {
+        return frames;
+    }
+
+    public static String frameName( int frame )
+    {
+        return FRAME_PREFIX + String.format( "%05d", frame ) + ".png";
+    }
+
+    /**
+     * @return the jsurf properties of a frame
+     */
+    public Properties frame( int frame )
+    {
+        Properties p = new Properties();
+        p.putAll( scene );
+        Matrix4d rotation = BasicIO.fromMatrix4dString( p.getProperty( "rotation_matrix" ) );
+        double[] turns = new double[ TURNS.length ];
+        for( Map.Entry< String, TreeMap< Integer, String > > channel : channels.entrySet() )
+        {
+            String property = channel.getKey();
+            TreeMap< Integer, String > keys = channel.getValue();
+            Map.Entry< Integer, String > before = keys.floorEntry( frame );
+            Map.Entry< Integer, String > after = keys.ceilingEntry( frame );
+            if( before == null )
+                before = after;
+            if( after == null )
+                after = before;
+            double t = before.getKey().equals( after.getKey() ) ? 0.0 : ( frame - before.getKey() ) / ( double ) ( after.getKey() - before.getKey() );
+            if( smooth )
+                t = t * t * ( 3.0 - 2.0 * t );
+
+            if( property.equals( "rotation_matrix" ) )
+            {
+                rotation = interpolate( BasicIO.fromMatrix4dString( before.getValue() ), BasicIO.fromMatrix4dString( after.getValue() ), t );
+                continue;
+            }
+            double value = interpolate( Double.parseDouble( before.getValue() ), Double.parseDouble( after.getValue() ), t );
+            int turn = Arrays.asList( TURNS ).indexOf( property );
+            if( turn >= 0 )
+                turns[ turn ] = value;
+            else
+                p.setProperty( property, "" + value );
+        }
+
+        // like dragging in the GUI, turns about the image axes are multiplied from the right
+        Matrix4d tmp = new Matrix4d();
+        tmp.rotX( Math.toRadians( turns[ 0 ] ) );
+        rotation.mul( tmp );
+        tmp.rotY( Math.toRadians( turns[ 1 ] ) );
+        rotation.mul( tmp );
+        tmp.rotZ( Math.toRadians( turns[ 2 ] ) );
+        rotation.mul( tmp );
+        p.setProperty( "rotation_matrix", BasicIO.toString( rotation ) );
+        return p;
+    }
+
+    static double interpolate( double a, double b, double t )
+    {
+        return a + t * ( b - a );
+    }
+
+    static Matrix4d interpolate( Matrix4d a, Matrix4d b, double t )
+    {
+        Quat4d qa = new Quat4d();
+        qa.set( a );
+        Quat4d qb = new Quat4d();
+        qb.set( b );
+        qa.interpolate( qb, t );
+        Matrix4d m = new Matrix4d();
+        m.set( qa );
+        return m;
+    }
+
+    /**
+     * Renders the frames which do not exist yet into dir and blocks until they
+     * are finished.
+     * @return the number of frames that have been rendered
+     * @throws IOException if a frame could not be rendered or written, the
+     *         frames finished so far are kept
+     */
+    public int run( File dir )
+            throws IOException, InterruptedException
+    {
+        if( !dir.isDirectory() && !dir.mkdirs() )
+            throw new IOException( "unable to create output directory " + dir );
+
+        String key = SceneKey.of( scene, description, width + "x" + height + " " + aam + " " + aap );
+        File manifestFile = new File( dir, MANIFEST_NAME );
+        Properties manifest = manifestFile.exists() ? load( manifestFile, new Properties() ) : new Properties();
+        if( !key.equals( manifest.getProperty( "key" ) ) )
+        {
+            // the frames in dir belong to another animation
+            File[] old = dir.listFiles( new FilenameFilter() {
+                public boolean accept( File d, String name ) { return name.matches( FRAME_PREFIX + "\\d{5}\\.png(\\.part)?" ); }
+            } );
+            for( File f : old )
+                if( !f.delete() )
+                    throw new IOException( "unable to delete " + f );
+            manifest.setProperty( "key", key );
+            FileOutputStream fos = new FileOutputStream( manifestFile );
+            try { manifest.store( fos, "the animation the frames in this directory have been rendered for" ); } finally { fos.close(); }
+        }
+
+        List< Integer > todo = new ArrayList< Integer >();
+        for( int i = 0; i < frames; i++ )
+            if( !new File( dir, frameName( i ) ).exists() )
+                todo.add( i );
+        System.out.println( "frames already rendered: " + ( frames - todo.size() ) + ", to be rendered: " + todo.size() );
+        if( todo.isEmpty() )
+            return 0;
+
+        int workers = Math.min( numWorkers, todo.size() );
+        Sequence sequence = new Sequence( dir, todo, 2 * workers );
+        Thread[] threads = new Thread[ workers ];
+        long t_start = System.nanoTime();
+        for( int w = 0; w < workers; w++ )
+        {
+            threads[ w ] = new Worker( sequence );
+            threads[ w ].start();
+        }
+        for( Thread t : threads )
+            t.join();
+        if( sequence.failure != null )
+            throw sequence.failure;
+        System.out.println( "rendered " + todo.size() + " frames in " + ( System.nanoTime() - t_start ) / 1000000 + "ms using " + workers + " worker(s)" );
+        return todo.size();
+    }
+
+    /**
+     * Hands out the frames to the workers and renames them in order.
+     */
+    static class Sequence
+    {
+        final File dir;
+        final List< Integer > todo;
+        final int window;
+        final boolean[] rendered;
+        int next;
+        int committed;
+        IOException failure;
+
+        Sequence( File dir, List< Integer > todo, int window )
+        {
+            this.dir = dir;
+            this.todo = todo;
+            this.window = window;
+            this.rendered = new boolean[ todo.size() ];
+        }
+
+        /**
+         * @return the index in todo of the next frame to render or -1
+         */
+        synchronized int take()
+                throws InterruptedException
+        {
+            while( failure == null && next < todo.size() && next >= committed + window )
+                wait();
+            if( failure != null || next == todo.size() )
+                return -1;
+            return next++;
+        }
+
+        synchronized void finished( int k )
+        {
+            rendered[ k ] = true;
+            while( failure == null && committed < todo.size() && rendered[ committed ] )
+            {
+                int frame = todo.get( committed );
+                File f = new File( dir, frameName( frame ) );
+                if( !partFile( frame ).renameTo( f ) )
+                {
+                    failed( new IOException( "unable to rename " + partFile( frame ) + " to " + f ) );
+                    return;
+                }
+                committed++;
+                System.out.println( "[" + committed + "/" + todo.size() + "] " + f );
+            }
+            notifyAll();
+        }
+
+        synchronized void failed( IOException ioe )
+        {
+            if( failure == null )
+                failure = ioe;
+            notifyAll();
+        }
+
+        File partFile( int frame )
+        {
+            return new File( dir, frameName( frame ) + ".part" );
+        }
+    }
+
+    class Worker extends Thread
+    {
+        final Sequence sequence;
+        final OffscreenRenderer or;
+
+        Worker( Sequence sequence )
+        {
+            super( "animation worker" );
+            this.sequence = sequence;
+            this.or = new OffscreenRenderer();
+        }
+
+        public void run()
+        {
+            int k = -1;
+            try
+            {
+                while( ( k = sequence.take() ) >= 0 )
+                {
+                    int frame = sequence.todo.get( k );
+                    or.loadFromProperties( frame( frame ) );
+                    or.writePNG( new FileOutputStream( sequence.partFile( frame ) ), width, height, aam, aap, OffscreenRenderer.DEFAULT_TILE_SIZE );
+                    sequence.finished( k );
+                }
+            }
+            catch( InterruptedException ie )
+            {
+                sequence.failed( new InterruptedIOException( "interrupted" ) );
+            }
+            catch( Exception e )
+            {
+                int frame = k >= 0 ? sequence.todo.get( k ) : -1;
+                if( frame >= 0 )
+                    sequence.partFile( frame ).delete();
+                IOException ioe = new IOException( "unable to render frame " + frame + ": " + e );
+                ioe.initCause( e );
+                sequence.failed( ioe );
+            }
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package de.mfo.jsurfer.rendering;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.mfo.jsurf.rendering.cpu.*;
+import static de.mfo.jsurf.rendering.cpu.CPUAlgebraicSurfaceRenderer.AntiAliasingMode;
+
+/**
+ * Renders a list of jsurf files to PNG images without any GUI. The jobs are
+ * distributed over a fixed number of worker threads, each of which owns its
+ * own @see{OffscreenRenderer}, so the workers never block each other and the
+ * renderers (and the JIT) stay warm across all jobs.
+ */
+public class BatchRenderer
+{
+    public static class Job
+    {
+        public final File input;
+        public final File output;
+
+        public Job( File input, File output )
+        {
+            this.input = input;
+            this.output = output;
+        }
+    }
+
+    int width;
+    int height;
+    AntiAliasingMode aam;
+    AntiAliasingPattern aap;
+    int numWorkers;
+    RenderScheduler.Priority priority;
+    List< Job > jobs;
+    Set< Job > failedJobs;
+
+    public BatchRenderer( int width, int height, AntiAliasingMode aam, AntiAliasingPattern aap, int numWorkers )
+    {
+        this.width = width;
+        this.height = height;
+        this.aam = aam;
+        this.aap = aap;
+        this.numWorkers = Math.max( 1, numWorkers );
+        this.priority = RenderScheduler.Priority.EXPORT;
+        this.jobs = new ArrayList< Job >();
+        this.failedJobs = Collections.synchronizedSet( new HashSet< Job >() );
+    }
+
+    /**
+     * Sets the priority of the tiles of the workers in the
+     * @see{RenderScheduler}, EXPORT by default.
+     */
+    public void setPriority( RenderScheduler.Priority priority )
+    {
+        this.priority = priority;
+    }
+
+    public void addJob( File input, File output )
+    {
+        jobs.add( new Job( input, output ) );
+    }
+
+    public List< Job > getJobs()
+    {
+        return Collections.unmodifiableList( jobs );
+    }
+
+    /**
+     * @return the jobs that failed during the last call of @see{run}
+     */
+    public Set< Job > getFailedJobs()
+    {
+        synchronized( failedJobs )
+        {
+            return new HashSet< Job >( failedJobs );
+        }
+    }
+
+    /**
+     * Adds one job per input file. Directories are searched (non-recursively)
+     * for *.jsurf files. If there is only a single input file and output does
+     * not denote a directory, output is used as the image file name. Otherwise
+     * output is a directory (created if necessary) and the images are named
+     * after their input files. A null output places each image next to its
+     * input file.
+     */
+    public void addJobs( List< String > inputs, String output )
+            throws IOException
+    {
+        List< File > files = collectInputs( inputs );
+        File out = output == null ? null : new File( output );
+        boolean singleFile = files.size() == 1 && inputs.size() == 1 && !new File( inputs.get( 0 ) ).isDirectory();
+
+        if( out != null && singleFile && !out.isDirectory() )
+        {
+            addJob( files.get( 0 ), out );
+            return;
+        }
+        if( out != null && !out.isDirectory() && !out.mkdirs() )
+            throw new IOException( "unable to create output directory " + out );
+
+        for( File f : files )
+        {
+            File dir = out != null ? out : f.getAbsoluteFile().getParentFile();
+            addJob( f, new File( dir, pngNameFor( f ) ) );
+        }
+    }
+
+    public static List< File > collectInputs( List< String > inputs )
+            throws IOException
+    {
+        List< File > files = new ArrayList< File >();
+        for( String input : inputs )
+        {
+            File f = new File( input );
+            if( f.isDirectory() )
+            {
+                File[] content = f.listFiles( new FilenameFilter() {
+                    public boolean accept( File dir, String name ) { return name.endsWith( ".jsurf" ); }
+                } );
+                if( content == null )
+                    throw new IOException( "unable to list the directory " + f );
+                Arrays.sort( content );
+                files.addAll( Arrays.asList( content ) );
+            }
+            else if( f.isFile() )
+                files.add( f );
+            else
+                throw new FileNotFoundException( input );
+        }
+        return files;
+    }
+
+    static String pngNameFor( File jsurf )
+    {
+        String name = jsurf.getName();
+        if( name.endsWith( ".jsurf" ) )
+            name = name.substring( 0, name.length() - 6 );
+        return name + ".png";
+    }
+
+    /**
+     * Renders all jobs and blocks until they are finished.
+     * @return the number of jobs that failed
+     */
+    public int run()
+            throws InterruptedException
+    {
+        final ThreadLocal< OffscreenRenderer > renderers = new ThreadLocal< OffscreenRenderer >() {
+            protected OffscreenRenderer initialValue() { return new OffscreenRenderer(); }
+        };
+        final AtomicInteger done = new AtomicInteger( 0 );
+        final int total = jobs.size();
+        failedJobs.clear();
+
+        ExecutorService workers = Executors.newFixedThreadPool( Math.min( numWorkers, Math.max( 1, total ) ) );
+        long t_start = System.nanoTime();
+        for( final Job job : jobs )
+        {
+            workers.execute( new Runnable() {
+                public void run()
+                {
+                    long t_job = System.nanoTime();
+                    RenderScheduler.setPriority( priority );
+                    try
+                    {
+                        OffscreenRenderer r = renderers.get();
+                        r.loadFromFile( job.input.getAbsoluteFile().toURI().toURL() );
+                        r.saveToPNG( job.output, width, height, aam, aap );
+                        System.out.println( "[" + done.incrementAndGet() + "/" + total + "] " + job.input + " -> " + job.output + " (" + ( System.nanoTime() - t_job ) / 1000000 + "ms)" );
+                    }
+                    catch( Throwable t )
+                    {
+                        failedJobs.add( job );
+                        System.err.println( "[" + done.incrementAndGet() + "/" + total + "] unable to render " + job.input + ": " + t );
+                    }
+                }
+            } );
+        }
+        workers.shutdown();
+        workers.awaitTermination( Long.MAX_VALUE, TimeUnit.NANOSECONDS );
+        System.out.println( "rendered " + ( total - failedJobs.size() ) + " of " + total + " surfaces in " + ( System.nanoTime() - t_start ) / 1000000 + "ms using " + numWorkers + " worker(s)" );
+        return failedJobs.size();
+    }
+}
@@ -0,0 +1,87 @@
+package de.mfo.jsurfer.rendering;
+
+import java.lang.reflect.Field;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+
+import de.mfo.jsurf.algebra.*;
+import de.mfo.jsurf.rendering.cpu.*;
+
+/**
+ * A @see{CPUAlgebraicSurfaceRenderer} which takes the parsed surface
+ * expressions from the @see{ParsedExpressionCache} instead of parsing them
+ * each time the surface family is set, and which renders its tiles on the
+ * threads of the @see{RenderScheduler} instead of its own thread pool.
+ */
+public class CachingSurfaceRenderer extends CPUAlgebraicSurfaceRenderer
+{
+    ParsedExpressionCache.Entry family;
+    String familyString;
+
+    public CachingSurfaceRenderer()
+    {
+        super();
+        useRenderScheduler();
+    }
+
+    /**
+     * Replaces the thread pool of jsurf by the executor of the
+     * @see{RenderScheduler}. jsurf does not offer a way to set the pool, so the
+     * package private field is replaced via reflection. If this fails, the
+     * renderer keeps its own pool.
+     */
+    void useRenderScheduler()
+    {
+        try
+        {
+            Field f = CPUAlgebraicSurfaceRenderer.class.getDeclaredField( "threadPoolExecutor" );
+            f.setAccessible( true );
+            ExecutorService own = ( ExecutorService ) f.get( this );
+            f.set( this, RenderScheduler.getExecutor() );
+            // no thread of the pool has been started yet
+            own.shutdown();
+        }
+        catch( Exception e )
+        {
+            System.err.println( "cannot use the shared render threads: " + e );
+        }
+    }
+
+    public void setSurfaceFamily( String expression )
+            throws Exception
+    {
+        setSurfaceFamily( ParsedExpressionCache.parse( expression ) );
+        familyString = expression;
+    }
+
+    /**
+     * Sets an already parsed expression as surface family.
+     */
+    public void setSurfaceFamily( ParsedExpressionCache.Entry entry )
+    {
+        super.setSurfaceFamily( entry.operation );
+        family = entry;
+        familyString = entry.expression;
+    }
+
+    public void setSurfaceFamily( PolynomialOperation operation )
+    {
+        super.setSurfaceFamily( operation );
+        family = null;
+    }
+
+    public String getSurfaceFamilyString()
+    {
+        return family != null ? familyString : super.getSurfaceFamilyString();
+    }
+
+    /**
+     * @return a new set of the names of the parameters of the surface family,
+     *         which may be modified by the caller
+     */
+    public Set< String > getAllParameterNames()
+    {
+        ParsedExpressionCache.Entry e = family;
+        return e != null ? new HashSet< String >( e.parameters ) : super.getAllParameterNames();
+    }
+}
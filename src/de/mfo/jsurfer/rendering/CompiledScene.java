@@ -0,0 +1,561 @@
+package de.mfo.jsurfer.rendering;
+
+import java.io.*;
+import java.net.URL;
+import java.util.*;
+import java.util.zip.CRC32;
+import javax.vecmath.*;
+
+import de.mfo.jsurf.algebra.*;
+import de.mfo.jsurf.rendering.*;
+import de.mfo.jsurfer.util.BasicIO;
+
+/**
+ * A scene in a compact binary format, which can be applied to a renderer
+ * without parsing text: the camera, the materials, the lights, the scale and
+ * the rotation are stored as raw doubles and the surface family as the
+ * expression tree, which the parser produces, together with the equation as
+ * it has been written. A compiled scene is stored next to the .jsurf file it
+ * has been compiled from (with the suffix @see{SUFFIX}) and remembers the
+ * checksum of that file, so an outdated compiled scene is never used.
+ * The camera transform is not stored, because the renderers set it before
+ * each image, see @see{OffscreenRenderer.setOptimalCameraDistance}.
+ */
+public class CompiledScene
+{
+    public static final String SUFFIX = ".jsurfc";
+    static final int MAGIC = 0x4a53434d; // "JSCM"
+    static final int VERSION = 1;
+
+    // node types of the expression tree
+    static final byte ADDITION = 0;
+    static final byte SUBTRACTION = 1;
+    static final byte MULTIPLICATION = 2;
+    static final byte POWER = 3;
+    static final byte NEGATION = 4;
+    static final byte DIVISION = 5;
+    static final byte VARIABLE = 6;
+    static final byte DOUBLE_BINARY = 7;
+    static final byte DOUBLE_UNARY = 8;
+    static final byte DOUBLE_VALUE = 9;
+    static final byte DOUBLE_VARIABLE = 10;
+
+    String expression;
+    PolynomialOperation family;
+    LinkedHashMap< String, Double > parameters = new LinkedHashMap< String, Double >();
+    Camera.CameraType cameraType;
+    double cameraFoVY;
+    double cameraHeight;
+    /** color, ambient, diffuse and specular intensity and shininess of the front and back material */
+    double[] frontMaterial = new double[ 7 ];
+    double[] backMaterial = new double[ 7 ];
+    LightSource.Status[] lightStatus = new LightSource.Status[ AlgebraicSurfaceRenderer.MAX_LIGHTS ];
+    /** position, color and intensity of the lights */
+    double[][] lights = new double[ AlgebraicSurfaceRenderer.MAX_LIGHTS ][ 7 ];
+    double[] backgroundColor = new double[ 3 ];
+    double scaleFactor;
+    Matrix4d rotation;
+
+    CompiledScene() {}
+
+    /**
+     * Compiles a scene by applying it to a new renderer, so properties which
+     * are missing in props get the defaults of the renderer.
+     * @param props the scene properties as written to .jsurf files
+     */
+    public static CompiledScene compile( Properties props )
+            throws Exception
+    {
+        CachingSurfaceRenderer asr = new CachingSurfaceRenderer();
+        OffscreenRenderer.loadSurfaceProperties( props, asr );
+
+        CompiledScene cs = new CompiledScene();
+        cs.expression = asr.getSurfaceFamilyString();
+        cs.family = asr.getSurfaceFamily();
+        for( Map.Entry< String, Double > p : asr.getAssignedParameters() )
+            cs.parameters.put( p.getKey(), p.getValue() );
+        Camera c = asr.getCamera();
+        cs.cameraType = c.getCameraType();
+        cs.cameraFoVY = c.getFoVY();
+        cs.cameraHeight = c.getHeight();
+        get( asr.getFrontMaterial(), cs.frontMaterial );
+        get( asr.getBackMaterial(), cs.backMaterial );
+        for( int i = 0; i < AlgebraicSurfaceRenderer.MAX_LIGHTS; i++ )
+        {
+            LightSource l = asr.getLightSource( i );
+            cs.lightStatus[ i ] = l.getStatus();
+            Point3d p = l.getPosition();
+            Color3f col = l.getColor();
+            cs.lights[ i ] = new double[] { p.x, p.y, p.z, col.x, col.y, col.z, l.getIntensity() };
+        }
+        Color3f bg = asr.getBackgroundColor();
+        cs.backgroundColor = new double[] { bg.x, bg.y, bg.z };
+        cs.scaleFactor = Float.parseFloat( props.getProperty( "scale_factor" ) );
+        cs.rotation = BasicIO.fromMatrix4dString( props.getProperty( "rotation_matrix" ) );
+        return cs;
+    }
+
+    static void get( Material m, double[] v )
+    {
+        Color3f c = m.getColor();
+        v[ 0 ] = c.x; v[ 1 ] = c.y; v[ 2 ] = c.z;
+        v[ 3 ] = m.getAmbientIntensity();
+        v[ 4 ] = m.getDiffuseIntensity();
+        v[ 5 ] = m.getSpecularIntensity();
+        v[ 6 ] = m.getShininess();
+    }
+
+    static void set( Material m, double[] v )
+    {
+        m.setColor( new Color3f( ( float ) v[ 0 ], ( float ) v[ 1 ], ( float ) v[ 2 ] ) );
+        m.setAmbientIntensity( ( float ) v[ 3 ] );
+        m.setDiffuseIntensity( ( float ) v[ 4 ] );
+        m.setSpecularIntensity( ( float ) v[ 5 ] );
+        m.setShininess( ( float ) v[ 6 ] );
+    }
+
+    /**
+     * Applies everything except for the scale and the rotation to the
+     * renderer like @see{OffscreenRenderer.loadSurfaceProperties}.
+     */
+    public void apply( AlgebraicSurfaceRenderer asr )
+    {
+        if( asr instanceof CachingSurfaceRenderer )
+            ( ( CachingSurfaceRenderer ) asr ).setSurfaceFamily( ParsedExpressionCache.put( expression, family ) );
+        else
+            asr.setSurfaceFamily( family );
+        for( Map.Entry< String, Double > p : parameters.entrySet() )
+            asr.setParameterValue( p.getKey(), p.getValue() );
+
+        Camera c = asr.getCamera();
+        c.setCameraType( cameraType );
+        c.setFoVY( ( float ) cameraFoVY );
+        c.setHeight( cameraHeight );
+        set( asr.getFrontMaterial(), frontMaterial );
+        set( asr.getBackMaterial(), backMaterial );
+        for( int i = 0; i < AlgebraicSurfaceRenderer.MAX_LIGHTS; i++ )
+        {
+            LightSource l = asr.getLightSource( i );
+            double[] v = lights[ i ];
+            l.setStatus( lightStatus[ i ] );
+            l.setPosition( new Point3d( v[ 0 ], v[ 1 ], v[ 2 ] ) );
+            l.setColor( new Color3f( ( float ) v[ 3 ], ( float ) v[ 4 ], ( float ) v[ 5 ] ) );
+            l.setIntensity( ( float ) v[ 6 ] );
+        }
+        asr.setBackgroundColor( new Color3f( ( float ) backgroundColor[ 0 ], ( float ) backgroundColor[ 1 ], ( float ) backgroundColor[ 2 ] ) );
+    }
+
+    public double getScaleFactor() { return scaleFactor; }
+    public Matrix4d getRotation() { return new Matrix4d( rotation ); }
+
+    /**
+     * @param sourceChecksum the @see{checksum} of the .jsurf file the scene has been compiled from
+     */
+    public void write( OutputStream os, long sourceChecksum )
+            throws IOException
+    {
+        DataOutputStream dos = new DataOutputStream( new BufferedOutputStream( os ) );
+        dos.writeInt( MAGIC );
+        dos.writeInt( VERSION );
+        dos.writeLong( sourceChecksum );
+        dos.writeUTF( expression );
+        writeOperation( dos, family );
+        dos.writeInt( parameters.size() );
+        for( Map.Entry< String, Double > p : parameters.entrySet() )
+        {
+            dos.writeUTF( p.getKey() );
+            dos.writeDouble( p.getValue() );
+        }
+        dos.writeUTF( cameraType.name() );
+        dos.writeDouble( cameraFoVY );
+        dos.writeDouble( cameraHeight );
+        writeDoubles( dos, frontMaterial );
+        writeDoubles( dos, backMaterial );
+        dos.writeInt( lights.length );
+        for( int i = 0; i < lights.length; i++ )
+        {
+            dos.writeUTF( lightStatus[ i ].name() );
+            writeDoubles( dos, lights[ i ] );
+        }
+        writeDoubles( dos, backgroundColor );
+        dos.writeDouble( scaleFactor );
+        for( int row = 0; row < 4; row++ )
+            for( int col = 0; col < 4; col++ )
+                dos.writeDouble( rotation.getElement( row, col ) );
+        dos.flush();
+    }
+
+    /**
+     * @return the scene or null, if it has been compiled from a different
+     *         .jsurf file than the one with the given checksum
+     * @throws IOException if the data is not a compiled scene of this version
+     */
+    public static CompiledScene read( InputStream is, long sourceChecksum )
+            throws IOException
+    {
+        DataInputStream dis = new DataInputStream( new BufferedInputStream( is ) );
+        if( dis.readInt() != MAGIC )
+            throw new IOException( "not a compiled scene" );
+        int version = dis.readInt();
+        if( version != VERSION )
+            throw new IOException( "unsupported version " + version + " of compiled scene" );
+        if( dis.readLong() != sourceChecksum )
+            return null;
+
+        try
+        {
+            CompiledScene cs = new CompiledScene();
+            cs.expression = dis.readUTF();
+            cs.family = readOperation( dis );
+            for( int n = dis.readInt(); n > 0; n-- )
+            {
+                String name = dis.readUTF();
+                cs.parameters.put( name, dis.readDouble() );
+            }
+            cs.cameraType = Camera.CameraType.valueOf( dis.readUTF() );
+            cs.cameraFoVY = dis.readDouble();
+            cs.cameraHeight = dis.readDouble();
+            readDoubles( dis, cs.frontMaterial );
+            readDoubles( dis, cs.backMaterial );
+            int numLights = dis.readInt();
+            for( int i = 0; i < numLights; i++ )
+            {
+                LightSource.Status status = LightSource.Status.valueOf( dis.readUTF() );
+                double[] v = new double[ 7 ];
+                readDoubles( dis, v );
+                if( i < cs.lights.length )
+                {
+                    cs.lightStatus[ i ] = status;
+                    cs.lights[ i ] = v;
+                }
+            }
+            for( int i = numLights; i < cs.lights.length; i++ )
+                cs.lightStatus[ i ] = LightSource.Status.OFF;
+            readDoubles( dis, cs.backgroundColor );
+            cs.scaleFactor = dis.readDouble();
+            cs.rotation = new Matrix4d();
+            for( int row = 0; row < 4; row++ )
+                for( int col = 0; col < 4; col++ )
+                    cs.rotation.setElement( row, col, dis.readDouble() );
+            return cs;
+        }
+        catch( IllegalArgumentException iae )
+        {
+            throw new IOException( "invalid compiled scene: " + iae.getMessage() );
+        }
+    }
+
+    static void writeDoubles( DataOutputStream dos, double[] v )
+            throws IOException
+    {
+        for( double d : v )
+            dos.writeDouble( d );
+    }
+
+    static void readDoubles( DataInputStream dis, double[] v )
+            throws IOException
+    {
+        for( int i = 0; i < v.length; i++ )
+            v[ i ] = dis.readDouble();
+    }
+
+    /**
+     * Writes the expression tree in prefix order.
+     */
+    static void writeOperation( DataOutputStream dos, PolynomialOperation op )
+            throws IOException
+    {
+        // the double operations have to be checked first, because they are polynomial operations, too
+        if( op instanceof DoubleValue )
+        {
+            dos.writeByte( DOUBLE_VALUE );
+            dos.writeDouble( ( ( DoubleValue ) op ).value );
+        }
+        else if( op instanceof DoubleVariable )
+        {
+            dos.writeByte( DOUBLE_VARIABLE );
+            dos.writeUTF( ( ( DoubleVariable ) op ).name );
+        }
+        else if( op instanceof DoubleBinaryOperation )
+        {
+            DoubleBinaryOperation o = ( DoubleBinaryOperation ) op;
+            dos.writeByte( DOUBLE_BINARY );
+            dos.writeUTF( o.operator.name() );
+            writeOperation( dos, o.firstOperand );
+            writeOperation( dos, o.secondOperand );
+        }
+        else if( op instanceof DoubleUnaryOperation )
+        {
+            DoubleUnaryOperation o = ( DoubleUnaryOperation ) op;
+            dos.writeByte( DOUBLE_UNARY );
+            dos.writeUTF( o.operator.name() );
+            writeOperation( dos, o.operand );
+        }
+        else if( op instanceof PolynomialAddition )
+        {
+            dos.writeByte( ADDITION );
+            writeOperation( dos, ( ( PolynomialAddition ) op ).firstOperand );
+            writeOperation( dos, ( ( PolynomialAddition ) op ).secondOperand );
+        }
+        else if( op instanceof PolynomialSubtraction )
+        {
+            dos.writeByte( SUBTRACTION );
+            writeOperation( dos, ( ( PolynomialSubtraction ) op ).firstOperand );
+            writeOperation( dos, ( ( PolynomialSubtraction ) op ).secondOperand );
+        }
+        else if( op instanceof PolynomialMultiplication )
+        {
+            dos.writeByte( MULTIPLICATION );
+            writeOperation( dos, ( ( PolynomialMultiplication ) op ).firstOperand );
+            writeOperation( dos, ( ( PolynomialMultiplication ) op ).secondOperand );
+        }
+        else if( op instanceof PolynomialPower )
+        {
+            dos.writeByte( POWER );
+            dos.writeInt( ( ( PolynomialPower ) op ).exponent );
+            writeOperation( dos, ( ( PolynomialPower ) op ).base );
+        }
+        else if( op instanceof PolynomialNegation )
+        {
+            dos.writeByte( NEGATION );
+            writeOperation( dos, ( ( PolynomialNegation ) op ).operand );
+        }
+        else if( op instanceof PolynomialDoubleDivision )
+        {
+            dos.writeByte( DIVISION );
+            writeOperation( dos, ( ( PolynomialDoubleDivision ) op ).dividend );
+            writeOperation( dos, ( ( PolynomialDoubleDivision ) op ).divisor );
+        }
+        else if( op instanceof PolynomialVariable )
+        {
+            dos.writeByte( VARIABLE );
+            dos.writeUTF( ( ( PolynomialVariable ) op ).variable.name() );
+        }
+        else
+        {
+            throw new IOException( "unknown operation " + op.getClass().getName() );
+        }
+    }
+
+    static PolynomialOperation readOperation( DataInputStream dis )
+            throws IOException
+    {
+        byte type = dis.readByte();
+        switch( type )
+        {
+            case ADDITION:
+                return new PolynomialAddition( readOperation( dis ), readOperation( dis ) );
+            case SUBTRACTION:
+                return new PolynomialSubtraction( readOperation( dis ), readOperation( dis ) );
+            case MULTIPLICATION:
+                return new PolynomialMultiplication( readOperation( dis ), readOperation( dis ) );
+            case POWER:
+            {
+                int exponent = dis.readInt();
+                return new PolynomialPower( readOperation( dis ), exponent );
+            }
+            case NEGATION:
+                return new PolynomialNegation( readOperation( dis ) );
+            case DIVISION:
+                return new PolynomialDoubleDivision( readOperation( dis ), readDoubleOperation( dis ) );
+            case VARIABLE:
+                return new PolynomialVariable( PolynomialVariable.Var.valueOf( dis.readUTF() ) );
+            case DOUBLE_BINARY:
+            {
+                DoubleBinaryOperation.Op op = DoubleBinaryOperation.Op.valueOf( dis.readUTF() );
+                return new DoubleBinaryOperation( op, readDoubleOperation( dis ), readDoubleOperation( dis ) );
+            }
+            case DOUBLE_UNARY:
+            {
+                DoubleUnaryOperation.Op op = DoubleUnaryOperation.Op.valueOf( dis.readUTF() );
+                return new DoubleUnaryOperation( op, readDoubleOperation( dis ) );
+            }
+            case DOUBLE_VALUE:
+                return new DoubleValue( dis.readDouble() );
+            case DOUBLE_VARIABLE:
+                return new DoubleVariable( dis.readUTF() );
+            default:
+                throw new IOException( "unknown operation type " + type );
+        }
+    }
+
+    static DoubleOperation readDoubleOperation( DataInputStream dis )
+            throws IOException
+    {
+        PolynomialOperation op = readOperation( dis );
+        if( !( op instanceof DoubleOperation ) )
+            throw new IOException( "polynomial operation where a double operation is expected" );
+        return ( DoubleOperation ) op;
+    }
+
+    /**
+     * @return the checksum of the contents of a .jsurf file
+     */
+    public static long checksum( byte[] source )
+    {
+        CRC32 crc = new CRC32();
+        crc.update( source );
+        return ( ( long ) source.length << 32 ) ^ crc.getValue();
+    }
+
+    /**
+     * @return the URL of the compiled scene, which belongs to a .jsurf file
+     */
+    public static URL compiledURLOf( URL jsurf )
+            throws IOException
+    {
+        String s = jsurf.toString();
+        if( s.endsWith( ".jsurf" ) )
+            s = s.substring( 0, s.length() - ".jsurf".length() );
+        return new URL( s + SUFFIX );
+    }
+
+    /**
+     * @return the file of the compiled scene, which belongs to a .jsurf file
+     */
+    public static File compiledFileOf( File jsurf )
+    {
+        String name = jsurf.getName();
+        if( name.endsWith( ".jsurf" ) )
+            name = name.substring( 0, name.length() - ".jsurf".length() );
+        return new File( jsurf.getParentFile(), name + SUFFIX );
+    }
+
+    /**
+     * @param source the contents of the .jsurf file at url
+     * @return the compiled scene next to the .jsurf file, or null if there is
+     *         none or it is outdated or invalid
+     */
+    public static CompiledScene find( URL url, byte[] source )
+    {
+        InputStream is;
+        try
+        {
+            is = compiledURLOf( url ).openStream();
+        }
+        catch( IOException ioe )
+        {
+            return null;
+        }
+        try
+        {
+            return read( is, checksum( source ) );
+        }
+        catch( IOException ioe )
+        {
+            System.err.println( "ignoring compiled scene of " + url + ": " + ioe.getMessage() );
+            return null;
+        }
+        finally
+        {
+            try { is.close(); } catch( IOException ioe ) {}
+        }
+    }
+
+    /**
+     * Compiles a .jsurf file and writes the compiled scene next to it.
+     */
+    public static void compile( File jsurf )
+            throws Exception
+    {
+        byte[] source = readFully( new FileInputStream( jsurf ) );
+        Properties props = new Properties();
+        props.load( new ByteArrayInputStream( source ) );
+        compile( props, source, compiledFileOf( jsurf ) );
+    }
+
+    /**
+     * Compiles the scene props, which has been stored as source, and writes
+     * it to target.
+     */
+    public static void compile( Properties props, byte[] source, File target )
+            throws Exception
+    {
+        CompiledScene cs = compile( props );
+        File tmp = new File( target.getParentFile(), target.getName() + ".part" );
+        OutputStream os = new FileOutputStream( tmp );
+        try
+        {
+            cs.write( os, checksum( source ) );
+        }
+        finally
+        {
+            os.close();
+        }
+        target.delete();
+        if( !tmp.renameTo( target ) )
+            throw new IOException( "unable to rename " + tmp + " to " + target );
+    }
+
+    /**
+     * Reads a stream until its end and closes it.
+     */
+    public static byte[] readFully( InputStream is )
+            throws IOException
+    {
+        try
+        {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream( 4096 );
+            byte[] buffer = new byte[ 4096 ];
+            int n;
+            while( ( n = is.read( buffer ) ) > 0 )
+                bos.write( buffer, 0, n );
+            return bos.toByteArray();
+        }
+        finally
+        {
+            is.close();
+        }
+    }
+
+    /**
+     * Compiles all .jsurf files in a folder whose compiled scenes are missing
+     * or outdated.
+     * @return the number of files which could not be compiled
+     */
+    public static int compileFolder( File folder )
+    {
+        File[] files = folder.listFiles( new FileFilter() {
+            public boolean accept( File f ) { return f.isFile() && f.getName().endsWith( ".jsurf" ); }
+        } );
+        if( files == null )
+        {
+            System.err.println( folder + " is not a folder" );
+            return 1;
+        }
+        Arrays.sort( files );
+        int failed = 0;
+        for( File f : files )
+        {
+            try
+            {
+                byte[] source = readFully( new FileInputStream( f ) );
+                File target = compiledFileOf( f );
+                if( target.isFile() )
+                {
+                    InputStream is = new FileInputStream( target );
+                    try
+                    {
+                        if( read( is, checksum( source ) ) != null )
+                            continue;
+                    }
+                    catch( IOException ioe ) {}
+                    finally
+                    {
+                        is.close();
+                    }
+                }
+                Properties props = new Properties();
+                props.load( new ByteArrayInputStream( source ) );
+                compile( props, source, target );
+                System.out.println( "compiled " + f );
+            }
+            catch( Exception e )
+            {
+                System.err.println( "unable to compile " + f + ": " + e );
+                failed++;
+            }
+        }
+        return failed;
+    }
+}
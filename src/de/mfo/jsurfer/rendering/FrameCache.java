@@ -0,0 +1,293 @@
+package de.mfo.jsurfer.rendering;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+import de.mfo.jsurf.rendering.cpu.*;
+import static de.mfo.jsurf.rendering.cpu.CPUAlgebraicSurfaceRenderer.AntiAliasingMode;
+
+/**
+ * Keeps rendered images so that a scene that has already been rendered
+ * (e.g. after switching back to a gallery entry or undoing a change) can be
+ * shown without rendering it again. The images are identified by the
+ * @see{SceneKey} of the scene properties together with the image size and
+ * the anti-aliasing settings, see @see{keyOf}.
+ * The cache has a memory tier, which is limited by the number of bytes of the
+ * images and evicts the least recently used images first, and an optional
+ * disk tier of compressed images in a directory, which is written in the
+ * background and also limited in size. Instances are thread safe.
+ */
+public class FrameCache
+{
+    static final int MAGIC = 0x4a534643; // "JSFC"
+    static final String SUFFIX = ".frame";
+
+    static class Frame
+    {
+        final int width;
+        final int height;
+        final int[] rgb;
+
+        Frame( int width, int height, int[] rgb )
+        {
+            this.width = width;
+            this.height = height;
+            this.rgb = rgb;
+        }
+
+        long bytes()
+        {
+            return 4L * rgb.length;
+        }
+    }
+
+    long maxMemoryBytes;
+    long memoryBytes;
+    LinkedHashMap< String, Frame > memory;
+    File diskDir;
+    long maxDiskBytes;
+    ExecutorService diskWriter;
+    long hits;
+    long diskHits;
+    long misses;
+
+    /**
+     * @param maxMemoryBytes the maximum size of all images held in memory
+     * @param diskDir the directory of the disk tier or null, if there should be no disk tier
+     * @param maxDiskBytes the maximum size of all files in diskDir
+     */
+    public FrameCache( long maxMemoryBytes, File diskDir, long maxDiskBytes )
+    {
+        this.maxMemoryBytes = maxMemoryBytes;
+        this.memoryBytes = 0;
+        this.memory = new LinkedHashMap< String, Frame >( 16, 0.75f, true );
+        if( diskDir != null && maxDiskBytes > 0 && ( diskDir.isDirectory() || diskDir.mkdirs() ) )
+        {
+            this.diskDir = diskDir;
+            this.maxDiskBytes = maxDiskBytes;
+            this.diskWriter = Executors.newSingleThreadExecutor( new ThreadFactory() {
+                public Thread newThread( Runnable r )
+                {
+                    Thread t = new Thread( r, "FrameCache disk writer" );
+                    t.setDaemon( true );
+                    t.setPriority( Thread.MIN_PRIORITY );
+                    return t;
+                }
+            } );
+        }
+        else if( diskDir != null && maxDiskBytes > 0 )
+        {
+            System.err.println( "unable to create frame cache directory " + diskDir );
+        }
+    }
+
+    /**
+     * Creates a cache with the disk tier in the directory .fxsurfer-cache in
+     * the user's home directory.
+     * @param memoryMB the size of the memory tier in megabytes
+     * @param diskMB the size of the disk tier in megabytes, 0 disables the disk tier
+     */
+    public static FrameCache create( int memoryMB, int diskMB )
+    {
+        File dir = diskMB > 0 ? new File( System.getProperty( "user.home" ), ".fxsurfer-cache" ) : null;
+        return new FrameCache( memoryMB * 1024L * 1024L, dir, diskMB * 1024L * 1024L );
+    }
+
+    /**
+     * @param scene the scene properties as written to .jsurf files
+     */
+    public static String keyOf( Properties scene, int width, int height, AntiAliasingMode aam, AntiAliasingPattern aap )
+    {
+        return SceneKey.of( scene, width + "x" + height, aam.toString(), aap.toString() );
+    }
+
+    /**
+     * @return the pixels of the cached image, which must not be modified, or
+     *         null, if the image is not in the cache
+     */
+    public int[] get( String key, int width, int height )
+    {
+        Frame f;
+        synchronized( this )
+        {
+            f = memory.get( key );
+            if( f != null )
+                hits++;
+        }
+        if( f == null && diskDir != null )
+        {
+            f = readFromDisk( key );
+            if( f != null )
+            {
+                synchronized( this )
+                {
+                    diskHits++;
+                }
+                putInMemory( key, f );
+            }
+        }
+        if( f == null || f.width != width || f.height != height )
+        {
+            synchronized( this )
+            {
+                misses++;
+            }
+            return null;
+        }
+        return f.rgb;
+    }
+
+    /**
+     * @return true, if an image of this size is small enough to be cached
+     *         without pushing out a large part of the memory tier
+     */
+    public boolean isCacheable( int width, int height )
+    {
+        return 4L * width * height <= maxMemoryBytes / 4;
+    }
+
+    /**
+     * Adds a copy of the first width * height pixels of rgbBuffer to the cache.
+     */
+    public void put( final String key, int[] rgbBuffer, int width, int height )
+    {
+        int[] rgb = new int[ width * height ];
+        System.arraycopy( rgbBuffer, 0, rgb, 0, rgb.length );
+        final Frame f = new Frame( width, height, rgb );
+        putInMemory( key, f );
+        if( diskWriter != null )
+        {
+            diskWriter.execute( new Runnable() {
+                public void run() { writeToDisk( key, f ); }
+            } );
+        }
+    }
+
+    synchronized void putInMemory( String key, Frame f )
+    {
+        if( f.bytes() > maxMemoryBytes )
+            return;
+        Frame old = memory.put( key, f );
+        if( old != null )
+            memoryBytes -= old.bytes();
+        memoryBytes += f.bytes();
+        Iterator< Frame > it = memory.values().iterator();
+        while( memoryBytes > maxMemoryBytes && it.hasNext() )
+        {
+            memoryBytes -= it.next().bytes();
+            it.remove();
+        }
+    }
+
+    File fileFor( String key )
+    {
+        return new File( diskDir, key + SUFFIX );
+    }
+
+    Frame readFromDisk( String key )
+    {
+        File file = fileFor( key );
+        if( !file.isFile() )
+            return null;
+        try
+        {
+            DataInputStream dis = new DataInputStream( new BufferedInputStream( new InflaterInputStream( new FileInputStream( file ) ), 1 << 16 ) );
+            try
+            {
+                if( dis.readInt() != MAGIC )
+                    throw new IOException( "not a frame cache file" );
+                int width = dis.readInt();
+                int height = dis.readInt();
+                int[] rgb = new int[ width * height ];
+                for( int i = 0; i < rgb.length; i++ )
+                    rgb[ i ] = dis.readInt();
+                file.setLastModified( System.currentTimeMillis() ); // keep recently used files
+                return new Frame( width, height, rgb );
+            }
+            finally
+            {
+                dis.close();
+            }
+        }
+        catch( IOException ioe )
+        {
+            System.err.println( "unable to read cached frame " + file + ": " + ioe );
+            file.delete();
+            return null;
+        }
+    }
+
+    void writeToDisk( String key, Frame f )
+    {
+        File file = fileFor( key );
+        File tmp = new File( diskDir, key + ".tmp" );
+        try
+        {
+            DataOutputStream dos = new DataOutputStream( new BufferedOutputStream( new DeflaterOutputStream( new FileOutputStream( tmp ) ), 1 << 16 ) );
+            try
+            {
+                dos.writeInt( MAGIC );
+                dos.writeInt( f.width );
+                dos.writeInt( f.height );
+                for( int p : f.rgb )
+                    dos.writeInt( p );
+            }
+            finally
+            {
+                dos.close();
+            }
+            file.delete();
+            if( !tmp.renameTo( file ) )
+                throw new IOException( "unable to rename " + tmp + " to " + file );
+        }
+        catch( IOException ioe )
+        {
+            System.err.println( "unable to write cached frame " + file + ": " + ioe );
+            tmp.delete();
+            return;
+        }
+        trimDisk();
+    }
+
+    /**
+     * Deletes the least recently used files until the disk tier fits into its limit.
+     */
+    void trimDisk()
+    {
+        File[] files = diskDir.listFiles( new FilenameFilter() {
+            public boolean accept( File dir, String name ) { return name.endsWith( SUFFIX ); }
+        } );
+        if( files == null )
+            return;
+        long total = 0;
+        for( File file : files )
+            total += file.length();
+        if( total <= maxDiskBytes )
+            return;
+        Arrays.sort( files, new Comparator< File >() {
+            public int compare( File a, File b ) { return a.lastModified() < b.lastModified() ? -1 : a.lastModified() > b.lastModified() ? 1 : 0; }
+        } );
+        for( int i = 0; i < files.length && total > maxDiskBytes; i++ )
+        {
+            long length = files[ i ].length();
+            if( files[ i ].delete() )
+                total -= length;
+        }
+    }
+
+    /**
+     * Removes all images from the memory tier.
+     */
+    public synchronized void clear()
+    {
+        memory.clear();
+        memoryBytes = 0;
+    }
+
+    public synchronized String toString()
+    {
+        return "FrameCache[" + memory.size() + " frames, " + ( memoryBytes >> 20 ) + "MB in memory, hits=" + hits + ", disk hits=" + diskHits + ", misses=" + misses + ( diskDir != null ? ", disk=" + diskDir : "" ) + "]";
+    }
+}
@@ -0,0 +1,317 @@
+package de.mfo.jsurfer.rendering;
+
+import java.util.*;
+import javax.vecmath.*;
+
+import de.mfo.jsurf.algebra.*;
+import de.mfo.jsurf.rendering.*;
+import de.mfo.jsurf.rendering.cpu.*;
+import de.mfo.jsurf.rendering.cpu.clipping.*;
+
+/**
+ * Keeps the visible surface point, the normal and the side of the surface
+ * of every pixel of an image, so that the image can be shaded again with
+ * other materials, lights or background color without finding the
+ * intersections of the rays with the surface again, which is by far the most
+ * expensive part of rendering.
+ * The buffer is traced like jsurf renders an image, but with a single ray per
+ * pixel, so @see{shade} produces the image without anti-aliasing.
+ * The buffer is filled row by row (see @see{begin}, @see{traceRow} and
+ * @see{finish}), so the caller can give up between two rows. It is not
+ * thread safe.
+ */
+public class GBuffer
+{
+    static final byte BACKGROUND = 0;
+    static final byte FRONT = 1;
+    static final byte BACK = 2;
+
+    String key;
+    int width;
+    int height;
+    /** BACKGROUND, FRONT or BACK for each pixel */
+    byte[] side;
+    /** camera space coordinates of the surface points, three per pixel */
+    float[] position;
+    /** camera space unit normals facing the viewer, three per pixel */
+    float[] normal;
+    /** camera space eye point of perspective cameras */
+    final Point3d eye = new Point3d();
+    /** camera space direction towards the viewer of orthographic cameras, null for perspective cameras */
+    Vector3d viewDirection;
+
+    // state of the buffer being traced
+    RayCreator rayCreator;
+    RowSubstitutor surfaceRowSubstitutor;
+    RowSubstitutorForGradient gradientRowSubstitutor;
+    RealRootFinder rootFinder;
+    Clipper clipper;
+
+    /**
+     * @return a key that identifies the geometry and the view of the scene,
+     *         i.e. the scene without materials, lights and background color
+     */
+    public static String keyOf( Properties scene )
+    {
+        Properties p = new Properties();
+        for( String name : scene.stringPropertyNames() )
+            if( !name.startsWith( "front_material_" ) && !name.startsWith( "back_material_" ) && !name.startsWith( "light_" ) && !name.equals( "background_color" ) )
+                p.setProperty( name, scene.getProperty( name ) );
+        return SceneKey.of( p );
+    }
+
+    /**
+     * @return true, if the buffer has been traced completely for a scene with
+     *         this key and size
+     */
+    public boolean isBufferOf( String key, int width, int height )
+    {
+        return key.equals( this.key ) && this.width == width && this.height == height;
+    }
+
+    public void clear()
+    {
+        key = null;
+        side = null;
+        position = null;
+        normal = null;
+        rayCreator = null;
+        surfaceRowSubstitutor = null;
+        gradientRowSubstitutor = null;
+    }
+
+    /**
+     * Starts tracing the surface of asr with the given transformations. The
+     * previous content of the buffer becomes invalid.
+     */
+    public void begin( CPUAlgebraicSurfaceRenderer asr, Matrix4d transform, Matrix4d surfaceTransform, int width, int height )
+    {
+        key = null;
+        this.width = width;
+        this.height = height;
+        int n = width * height;
+        if( side == null || side.length != n )
+        {
+            side = new byte[ n ];
+            position = new float[ 3 * n ];
+            normal = new float[ 3 * n ];
+        }
+        rayCreator = RayCreator.createRayCreator( transform, surfaceTransform, asr.getCamera(), width, height );
+        surfaceRowSubstitutor = new TransformedPolynomialRowSubstitutor( asr.getSurfaceExpression(), rayCreator.getXForSomeA(), rayCreator.getYForSomeA(), rayCreator.getZForSomeA() );
+        gradientRowSubstitutor = new TransformedPolynomialRowSubstitutorForGradient( asr.getGradientXExpression(), asr.getGradientYExpression(), asr.getGradientZExpression(), rayCreator.getXForSomeA(), rayCreator.getYForSomeA(), rayCreator.getZForSomeA() );
+        rootFinder = asr.getSurfaceTotalDegree() < 2 ? new ClosedFormRootFinder() : new DescartesRootFinder( false );
+        clipper = new ClipToSphere();
+
+        Ray r00 = rayCreator.createCameraSpaceRay( rayCreator.transformU( 0.0 ), rayCreator.transformV( 0.0 ) );
+        Ray r11 = rayCreator.createCameraSpaceRay( rayCreator.transformU( 1.0 ), rayCreator.transformV( 1.0 ) );
+        eye.set( r00.at( rayCreator.getEyeLocationOnRay() ) );
+        if( r00.o.distanceSquared( r11.o ) > 1e-12 )
+        {
+            // parallel rays, the eye is at a different point for each ray
+            viewDirection = new Vector3d( r00.d );
+            viewDirection.negate();
+            viewDirection.normalize();
+        }
+        else
+        {
+            viewDirection = null;
+        }
+    }
+
+    /**
+     * Traces the rays of one row of pixels like jsurf does.
+     */
+    public void traceRow( int y )
+    {
+        double v = rayCreator.transformV( y / ( height - 1.0 ) );
+        ColumnSubstitutor surfaceRow = surfaceRowSubstitutor.setV( v );
+        ColumnSubstitutorForGradient gradientRow = gradientRowSubstitutor.setV( v );
+        double eyeLocation = rayCreator.getEyeLocationOnRay();
+        for( int x = 0; x < width; x++ )
+        {
+            int i = y * width + x;
+            side[ i ] = BACKGROUND;
+            double u = rayCreator.transformU( x / ( width - 1.0 ) );
+            List< Vector2d > intervals = clipper.clipRay( rayCreator.createClippingSpaceRay( u, v ) );
+            if( intervals.isEmpty() )
+                continue;
+            UnivariatePolynomial p = surfaceRow.setU( u );
+            for( Vector2d interval : intervals )
+            {
+                if( interval.x < eyeLocation && eyeLocation < interval.y )
+                    interval.x = eyeLocation;
+                double t = rootFinder.findFirstRootIn( p, interval.x, interval.y );
+                if( Double.isNaN( t ) )
+                    continue;
+
+                Ray ray = rayCreator.createCameraSpaceRay( u, v );
+                Point3d hit = ray.at( t );
+                Vector3d n = rayCreator.surfaceSpaceNormalToCameraSpaceNormal( gradientRow.setU( u ).setT( t ) );
+                if( n.lengthSquared() > 0.0 )
+                    n.normalize();
+                Vector3d view = viewDirection;
+                if( view == null )
+                {
+                    view = new Vector3d( eye );
+                    view.sub( hit );
+                    view.normalize();
+                }
+                if( n.dot( view ) > 0.0 )
+                {
+                    side[ i ] = FRONT;
+                }
+                else
+                {
+                    side[ i ] = BACK;
+                    n.negate();
+                }
+                position[ 3 * i ] = ( float ) hit.x;
+                position[ 3 * i + 1 ] = ( float ) hit.y;
+                position[ 3 * i + 2 ] = ( float ) hit.z;
+                normal[ 3 * i ] = ( float ) n.x;
+                normal[ 3 * i + 1 ] = ( float ) n.y;
+                normal[ 3 * i + 2 ] = ( float ) n.z;
+                break;
+            }
+        }
+    }
+
+    /**
+     * Marks the buffer as complete.
+     * @param key the key of the traced scene, see @see{keyOf}
+     */
+    public void finish( String key )
+    {
+        this.key = key;
+        rayCreator = null;
+        surfaceRowSubstitutor = null;
+        gradientRowSubstitutor = null;
+    }
+
+    /**
+     * Shades the buffer with the current materials, lights and background
+     * color of asr using jsurf's lighting model.
+     * @param rgb receives width x height pixels
+     */
+    public void shade( AlgebraicSurfaceRenderer asr, int[] rgb )
+    {
+        Material front = asr.getFrontMaterial();
+        Material back = asr.getBackMaterial();
+        List< LightSource > lights = new ArrayList< LightSource >();
+        for( int l = 0; l < AlgebraicSurfaceRenderer.MAX_LIGHTS; l++ )
+        {
+            LightSource ls = asr.getLightSource( l );
+            if( ls != null && ls.getStatus() == LightSource.Status.ON )
+                lights.add( ls );
+        }
+        // like jsurf, the back side uses the ambient intensity of the front material
+        Lighting frontLighting = new Lighting( front, front.getAmbientIntensity(), lights );
+        Lighting backLighting = new Lighting( back, front.getAmbientIntensity(), lights );
+        int background = asr.getBackgroundColor().get().getRGB();
+
+        Vector3d view = new Vector3d();
+        for( int i = 0; i < width * height; i++ )
+        {
+            if( side[ i ] == BACKGROUND )
+            {
+                rgb[ i ] = background;
+                continue;
+            }
+            if( viewDirection != null )
+            {
+                view.set( viewDirection );
+            }
+            else
+            {
+                view.set( eye.x - position[ 3 * i ], eye.y - position[ 3 * i + 1 ], eye.z - position[ 3 * i + 2 ] );
+                view.normalize();
+            }
+            rgb[ i ] = ( side[ i ] == FRONT ? frontLighting : backLighting ).shade( position, normal, 3 * i, view );
+        }
+    }
+
+    /**
+     * The products of the colors of a material and the lights, see
+     * jsurf's LightProducts.
+     */
+    static class Lighting
+    {
+        final float ambientR, ambientG, ambientB;
+        final double[] lightPositions;
+        final float[] diffuse;
+        final float[] specular;
+        final double shininess;
+
+        Lighting( Material m, float ambientIntensity, List< LightSource > lights )
+        {
+            Color3f c = m.getColor();
+            ambientR = c.x * ambientIntensity;
+            ambientG = c.y * ambientIntensity;
+            ambientB = c.z * ambientIntensity;
+            lightPositions = new double[ 3 * lights.size() ];
+            diffuse = new float[ 3 * lights.size() ];
+            specular = new float[ 3 * lights.size() ];
+            for( int l = 0; l < lights.size(); l++ )
+            {
+                LightProducts lp = new LightProducts( lights.get( l ), m );
+                Point3d pos = lights.get( l ).getPosition();
+                lightPositions[ 3 * l ] = pos.x;
+                lightPositions[ 3 * l + 1 ] = pos.y;
+                lightPositions[ 3 * l + 2 ] = pos.z;
+                Color3f d = lp.getDiffuseProduct();
+                Color3f s = lp.getSpecularProduct();
+                diffuse[ 3 * l ] = d.x;
+                diffuse[ 3 * l + 1 ] = d.y;
+                diffuse[ 3 * l + 2 ] = d.z;
+                specular[ 3 * l ] = s.x;
+                specular[ 3 * l + 1 ] = s.y;
+                specular[ 3 * l + 2 ] = s.z;
+            }
+            shininess = m.getShininess();
+        }
+
+        /**
+         * @return the packed RGB color of the surface point at offset i of
+         *         the position and normal arrays seen from direction view
+         */
+        int shade( float[] position, float[] normal, int i, Vector3d view )
+        {
+            float r = ambientR, g = ambientG, b = ambientB;
+            double nx = normal[ i ], ny = normal[ i + 1 ], nz = normal[ i + 2 ];
+            for( int l = 0; l < lightPositions.length; l += 3 )
+            {
+                double lx = lightPositions[ l ] - position[ i ];
+                double ly = lightPositions[ l + 1 ] - position[ i + 1 ];
+                double lz = lightPositions[ l + 2 ] - position[ i + 2 ];
+                double len = Math.sqrt( lx * lx + ly * ly + lz * lz );
+                lx /= len;
+                ly /= len;
+                lz /= len;
+                float diff = ( float ) ( nx * lx + ny * ly + nz * lz );
+                if( diff <= 0.0f )
+                    continue;
+                r += diff * diffuse[ l ];
+                g += diff * diffuse[ l + 1 ];
+                b += diff * diffuse[ l + 2 ];
+
+                double hx = lx + view.x, hy = ly + view.y, hz = lz + view.z;
+                double hlen = Math.sqrt( hx * hx + hy * hy + hz * hz );
+                double nh = ( nx * hx + ny * hy + nz * hz ) / hlen;
+                if( nh > 0.0 )
+                {
+                    float spec = ( float ) Math.pow( nh, shininess );
+                    r += spec * specular[ l ];
+                    g += spec * specular[ l + 1 ];
+                    b += spec * specular[ l + 2 ];
+                }
+            }
+            return 0xff000000 | ( toByte( r ) << 16 ) | ( toByte( g ) << 8 ) | toByte( b );
+        }
+
+        /** like java.awt.Color( float, float, float ) after clamping to 1 */
+        static int toByte( float c )
+        {
+            return ( int ) ( Math.min( c, 1.0f ) * 255 + 0.5 );
+        }
+    }
+}
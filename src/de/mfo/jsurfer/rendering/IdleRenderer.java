@@ -0,0 +1,182 @@
+package de.mfo.jsurfer.rendering;
+
+import java.util.*;
+
+import de.mfo.jsurf.rendering.*;
+import de.mfo.jsurf.rendering.cpu.*;
+import static de.mfo.jsurf.rendering.cpu.CPUAlgebraicSurfaceRenderer.AntiAliasingMode;
+
+/**
+ * Renders a fixed number of small variations of a scene in the background,
+ * e.g. to have previews ready before the user asks for them. The rendering
+ * can be paused while the CPU is needed for something more important (the
+ * image currently being rendered is interrupted and rendered again later)
+ * and it can be canceled when the results are not needed anymore.
+ * The images are rendered with the settings of the interactive low
+ * resolution pass and with the BACKGROUND priority of the
+ * @see{RenderScheduler}.
+ */
+public abstract class IdleRenderer
+{
+    final Properties scene;
+    final int size;
+    final int count;
+    int background;
+    volatile int numRendered;
+    volatile boolean canceled;
+    boolean paused;
+    OffscreenRenderer or;
+
+    /**
+     * @param scene the scene properties as written to .jsurf files
+     * @param size the edge length of the square images
+     * @param count the number of images
+     */
+    protected IdleRenderer( Properties scene, int size, int count )
+    {
+        this.scene = scene;
+        this.size = size;
+        this.count = count;
+    }
+
+    /**
+     * Sets up the renderer, which has been loaded with the scene, for the
+     * i-th image.
+     */
+    protected abstract void setUp( OffscreenRenderer or, int i )
+            throws Exception;
+
+    /**
+     * Receives the i-th image.
+     */
+    protected abstract void rendered( int i, int[] rgb );
+
+    /**
+     * @return true, if the i-th image is already known and need not be rendered
+     */
+    protected boolean isRendered( int i )
+    {
+        return false;
+    }
+
+    public int getSize()
+    {
+        return size;
+    }
+
+    /**
+     * @return the packed RGB background color of the scene
+     */
+    public int getBackground()
+    {
+        return background;
+    }
+
+    /**
+     * @return true, if all images have been rendered
+     */
+    public boolean isComplete()
+    {
+        return numRendered == count;
+    }
+
+    /**
+     * Renders all images in the calling thread. Returns early, if the
+     * rendering is canceled.
+     */
+    public void build()
+            throws Exception
+    {
+        synchronized( this )
+        {
+            or = new OffscreenRenderer();
+            or.loadFromProperties( scene );
+            background = or.getAlgebraicSurfaceRenderer().getBackgroundColor().get().getRGB();
+        }
+        RenderScheduler.Priority priority = RenderScheduler.setPriority( RenderScheduler.Priority.BACKGROUND );
+        try
+        {
+            for( int i = 0; i < count && !canceled; )
+            {
+                waitWhilePaused();
+                if( canceled )
+                    break;
+                if( isRendered( i ) )
+                {
+                    numRendered++;
+                    i++;
+                    continue;
+                }
+                setUp( or, i );
+                try
+                {
+                    rendered( i, or.draw( size, size, AntiAliasingMode.ADAPTIVE_SUPERSAMPLING, AntiAliasingPattern.QUINCUNX ) );
+                    numRendered++;
+                    i++;
+                }
+                catch( RenderingInterruptedException rie )
+                {
+                    // paused or canceled, render this image again later
+                }
+            }
+        }
+        finally
+        {
+            RenderScheduler.setPriority( priority );
+            synchronized( this )
+            {
+                or = null;
+            }
+        }
+    }
+
+    /**
+     * Calls @see{build} in a new low priority daemon thread.
+     */
+    public Thread start( String name )
+    {
+        Thread t = new Thread( name ) {
+            public void run()
+            {
+                try
+                {
+                    build();
+                }
+                catch( Exception e )
+                {
+                    e.printStackTrace();
+                }
+            }
+        };
+        t.setDaemon( true );
+        t.setPriority( Thread.MIN_PRIORITY );
+        t.start();
+        return t;
+    }
+
+    synchronized void waitWhilePaused()
+            throws InterruptedException
+    {
+        while( paused && !canceled )
+            wait();
+    }
+
+    /**
+     * @param paused stop rendering (the current image is interrupted)
+     */
+    public synchronized void setPaused( boolean paused )
+    {
+        this.paused = paused;
+        if( paused && or != null )
+            or.getAlgebraicSurfaceRenderer().stopDrawing();
+        notifyAll();
+    }
+
+    public synchronized void cancel()
+    {
+        canceled = true;
+        if( or != null )
+            or.getAlgebraicSurfaceRenderer().stopDrawing();
+        notifyAll();
+    }
+}
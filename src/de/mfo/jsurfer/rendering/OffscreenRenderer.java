@@ -0,0 +1,375 @@
+package de.mfo.jsurfer.rendering;
+
+import java.io.*;
+import java.net.URL;
+import java.util.*;
+import javax.vecmath.*;
+
+import de.mfo.jsurf.rendering.*;
+import de.mfo.jsurf.rendering.cpu.*;
+import de.mfo.jsurfer.util.BasicIO;
+import de.mfo.jsurfer.util.StreamingPNGWriter;
+import static de.mfo.jsurf.rendering.cpu.CPUAlgebraicSurfaceRenderer.AntiAliasingMode;
+
+/**
+ * Renders algebraic surfaces described by jsurf properties without creating
+ * any Swing or JavaFX component. The scene setup (rotation, scale, camera
+ * distance) is the same as in @see{de.mfo.jsurfer.gui.JSurferRenderPanel},
+ * so images rendered here look exactly like the ones shown in the GUI.
+ * Instances are not thread safe. Use one instance per thread.
+ */
+public class OffscreenRenderer
+{
+    CPUAlgebraicSurfaceRenderer asr;
+    Matrix4d rotation;
+    Matrix4d scale;
+
+    public OffscreenRenderer()
+    {
+        asr = new CachingSurfaceRenderer();
+        rotation = new Matrix4d();
+        rotation.setIdentity();
+        scale = new Matrix4d();
+        scale.setIdentity();
+    }
+
+    public CPUAlgebraicSurfaceRenderer getAlgebraicSurfaceRenderer()
+    {
+        return asr;
+    }
+
+    public Matrix4d getRotation()
+    {
+        return new Matrix4d( rotation );
+    }
+
+    public void setRotation( Matrix4d m )
+    {
+        rotation = new Matrix4d( m );
+    }
+
+    /**
+     * Sets the scale in the same logarithmic units as used by the GUI and the
+     * "scale_factor" property of jsurf files.
+     */
+    public void setScale( double scaleFactor )
+    {
+        scale.setScale( Math.pow( 10, clampScale( scaleFactor ) ) );
+    }
+
+    public double getScale()
+    {
+        return Math.log10( scale.getScale() );
+    }
+
+    public Matrix4d getScaleMatrix()
+    {
+        return new Matrix4d( scale );
+    }
+
+    public static double clampScale( double scaleFactor )
+    {
+        if( scaleFactor < -2.0 ) scaleFactor = -2.0;
+        if( scaleFactor > 2.0 ) scaleFactor = 2.0;
+        return scaleFactor;
+    }
+
+    /**
+     * Loads a .jsurf file or, if there is an up to date @see{CompiledScene}
+     * next to it, the compiled scene.
+     */
+    public void loadFromFile( URL url )
+            throws IOException, Exception
+    {
+        byte[] source = CompiledScene.readFully( url.openStream() );
+        CompiledScene cs = CompiledScene.find( url, source );
+        if( cs != null )
+        {
+            loadFromCompiledScene( cs );
+            return;
+        }
+        Properties props = new Properties();
+        props.load( new ByteArrayInputStream( source ) );
+        loadFromProperties( props );
+    }
+
+    public void loadFromCompiledScene( CompiledScene cs )
+    {
+        cs.apply( asr );
+        setScale( cs.getScaleFactor() );
+        setRotation( cs.getRotation() );
+    }
+
+    public void loadFromProperties( Properties props )
+            throws Exception
+    {
+        loadSurfaceProperties( props, asr );
+        setScale( Float.parseFloat( props.getProperty( "scale_factor" ) ) );
+        setRotation( BasicIO.fromMatrix4dString( props.getProperty( "rotation_matrix" ) ) );
+    }
+
+    /**
+     * Applies everything of a jsurf description to the renderer except for the
+     * scale and the rotation, which are not part of the renderer's state.
+     */
+    public static void loadSurfaceProperties( Properties props, AlgebraicSurfaceRenderer asr )
+            throws Exception
+    {
+        asr.setSurfaceFamily( props.getProperty( "surface_equation" ) );
+
+        String parameter_prefix = "surface_parameter_";
+        for( Map.Entry< Object, Object > entry : props.entrySet() )
+        {
+            String name = (String) entry.getKey();
+            if( name.startsWith( parameter_prefix ) )
+                asr.setParameterValue( name.substring( parameter_prefix.length() ), Float.parseFloat( ( String ) entry.getValue() ) );
+        }
+
+        asr.getCamera().loadProperties( props, "camera_", "" );
+        asr.getFrontMaterial().loadProperties( props, "front_material_", "" );
+        asr.getBackMaterial().loadProperties( props, "back_material_", "" );
+        for( int i = 0; i < AlgebraicSurfaceRenderer.MAX_LIGHTS; i++ )
+        {
+            asr.getLightSource( i ).setStatus( LightSource.Status.OFF );
+            asr.getLightSource( i ).loadProperties( props, "light_", "_" + i );
+        }
+        asr.setBackgroundColor( BasicIO.fromColor3fString( props.getProperty( "background_color" ) ) );
+    }
+
+    public static void setOptimalCameraDistance( Camera c )
+    {
+        float cameraDistance;
+        switch( c.getCameraType() )
+        {
+            case ORTHOGRAPHIC_CAMERA:
+                cameraDistance = 1.0f;
+                break;
+            case PERSPECTIVE_CAMERA:
+                cameraDistance = ( float ) ( 1.0 / Math.sin( ( Math.PI / 180.0 ) * ( c.getFoVY() / 2.0 ) ) );
+                break;
+            default:
+                throw new RuntimeException();
+        }
+        c.lookAt( new Point3d( 0, 0, cameraDistance ), new Point3d( 0, 0, -1 ), new Vector3d( 0, 1, 0 ) );
+    }
+
+    /**
+     * Renders the current scene into a packed RGB buffer of at least
+     * width * height entries. Row 0 is the bottom row of the image.
+     */
+    public void draw( int[] rgbBuffer, int width, int height, AntiAliasingMode aam, AntiAliasingPattern aap )
+            throws RenderingInterruptedException
+    {
+        asr.setTransform( rotation );
+        asr.setSurfaceTransform( scale );
+        asr.setAntiAliasingMode( aam );
+        asr.setAntiAliasingPattern( aap );
+        setOptimalCameraDistance( asr.getCamera() );
+        asr.draw( rgbBuffer, width, height );
+    }
+
+    public int[] draw( int width, int height, AntiAliasingMode aam, AntiAliasingPattern aap )
+            throws RenderingInterruptedException
+    {
+        int[] rgbBuffer = new int[ width * height ];
+        draw( rgbBuffer, width, height, aam, aap );
+        return rgbBuffer;
+    }
+
+    /**
+     * Renders a square tile of a square image of size imageSize x imageSize.
+     * The tile is rendered as an image on its own with a narrower orthographic
+     * camera whose rays are shifted to the tile, so each pixel sees exactly the
+     * same ray as when rendering the whole image at once.
+     * The renderer assumes that the view axis passes through the origin of the
+     * surface: if it does not, the camera and clipping space ray origins are
+     * displaced by the shift once more. This is compensated by moving the
+     * clipping sphere and the light sources by the same amount.
+     * @param x0 the column of the tile's left pixel, may be negative
+     * @param y0 the row of the tile's bottom pixel, may be negative
+     */
+    public void drawTile( int[] tileBuffer, int tileSize, int imageSize, int x0, int y0, AntiAliasingMode aam, AntiAliasingPattern aap )
+            throws RenderingInterruptedException
+    {
+        asr.setAntiAliasingMode( aam );
+        asr.setAntiAliasingPattern( aap );
+        drawTile( asr, rotation, scale, tileBuffer, tileSize, imageSize, x0, y0 );
+    }
+
+    /**
+     * Renders a tile like @see{drawTile} using the given renderer and scene
+     * transformations. The anti-aliasing settings of asr are used as they are.
+     * The camera, the lights and the transforms of asr are changed while the
+     * tile is rendered, so asr must not be used by other threads meanwhile.
+     */
+    public static void drawTile( CPUAlgebraicSurfaceRenderer asr, Matrix4d rotation, Matrix4d scale, int[] tileBuffer, int tileSize, int imageSize, int x0, int y0 )
+            throws RenderingInterruptedException
+    {
+        if( !canRenderTiled( asr.getCamera(), imageSize, imageSize ) || tileSize < 2 )
+            throw new IllegalArgumentException( "tiled rendering is not possible for a " + tileSize + " tile of a " + imageSize + " image" );
+
+        Camera c = asr.getCamera();
+        double cameraHeight = c.getHeight();
+        double step = cameraHeight / ( imageSize - 1 );
+        double tileHeight = step * ( tileSize - 1 );
+        Vector3d shift = new Vector3d( -cameraHeight / 2.0 + x0 * step + tileHeight / 2.0, -cameraHeight / 2.0 + y0 * step + tileHeight / 2.0, 0.0 );
+
+        // clipping space = rotation * translation( -shift ) * camera space
+        Matrix4d tileTransform = new Matrix4d();
+        tileTransform.setIdentity();
+        Vector3d negatedShift = new Vector3d( shift );
+        negatedShift.negate();
+        tileTransform.setTranslation( negatedShift );
+        tileTransform.mul( rotation, tileTransform );
+
+        // surface space = translation( 2 * scale * rotation * shift ) * scale * clipping space,
+        // i.e. surface space rays are the same as for the whole image
+        Vector3d surfaceShift = new Vector3d( shift );
+        rotation.transform( surfaceShift );
+        scale.transform( surfaceShift );
+        surfaceShift.scale( 2.0 );
+        Matrix4d tileSurfaceTransform = new Matrix4d( scale );
+        tileSurfaceTransform.setTranslation( surfaceShift );
+
+        Point3d[] lightPositions = new Point3d[ AlgebraicSurfaceRenderer.MAX_LIGHTS ];
+        for( int i = 0; i < lightPositions.length; i++ )
+        {
+            LightSource l = asr.getLightSource( i );
+            lightPositions[ i ] = new Point3d( l.getPosition() );
+            Point3d p = new Point3d( lightPositions[ i ] );
+            p.add( shift );
+            l.setPosition( p );
+        }
+
+        asr.setTransform( tileTransform );
+        asr.setSurfaceTransform( tileSurfaceTransform );
+        setOptimalCameraDistance( c );
+        c.setHeight( tileHeight );
+        try
+        {
+            asr.draw( tileBuffer, tileSize, tileSize );
+        }
+        finally
+        {
+            c.setHeight( cameraHeight );
+            asr.setTransform( rotation );
+            asr.setSurfaceTransform( scale );
+            for( int i = 0; i < lightPositions.length; i++ )
+                asr.getLightSource( i ).setPosition( lightPositions[ i ] );
+        }
+    }
+
+    /**
+     * Tiles can only be aligned exactly for square images seen through an
+     * orthographic camera (which is what all gallery surfaces use).
+     */
+    public boolean canRenderTiled( int width, int height )
+    {
+        return canRenderTiled( asr.getCamera(), width, height );
+    }
+
+    public static boolean canRenderTiled( Camera c, int width, int height )
+    {
+        return width == height && width > 1 && c.getCameraType() == Camera.CameraType.ORTHOGRAPHIC_CAMERA;
+    }
+
+    public static final int DEFAULT_TILE_SIZE = 512;
+
+    public void saveToPNG( File f, int width, int height, AntiAliasingMode aam, AntiAliasingPattern aap )
+            throws IOException
+    {
+        saveToPNG( f, width, height, aam, aap, DEFAULT_TILE_SIZE );
+    }
+
+    /**
+     * Renders the scene strip by strip and streams each strip into the PNG
+     * encoder, so memory usage is bounded by width * tileSize pixels instead of
+     * width * height. If the image can not be tiled, it is rendered at once.
+     */
+    public void saveToPNG( File f, int width, int height, AntiAliasingMode aam, AntiAliasingPattern aap, int tileSize )
+            throws IOException
+    {
+        writePNG( new FileOutputStream( f ), width, height, aam, aap, tileSize );
+    }
+
+    /**
+     * Renders the scene like @see{saveToPNG} and writes the PNG to os, which is
+     * closed afterwards. Nothing is written before the first strip has been
+     * rendered and the encoder is flushed after each strip, so the receiver
+     * gets the image while it is rendered.
+     */
+    public void writePNG( OutputStream os, int width, int height, AntiAliasingMode aam, AntiAliasingPattern aap, int tileSize )
+            throws IOException
+    {
+        tileSize = Math.max( 2, Math.min( tileSize, height ) );
+        StreamingPNGWriter pngWriter = null;
+        boolean success = false;
+        try
+        {
+            if( !canRenderTiled( width, height ) || tileSize == height )
+            {
+                int[] rgbBuffer = draw( width, height, aam, aap );
+                pngWriter = new StreamingPNGWriter( os, width, height );
+                for( int y = height - 1; y >= 0; y-- )
+                    pngWriter.writeRow( rgbBuffer, y * width );
+            }
+            else
+            {
+                int imageSize = width;
+                int[] tileBuffer = new int[ tileSize * tileSize ];
+                int[] stripBuffer = new int[ imageSize * tileSize ];
+                // the renderer's row 0 is the bottom row, but PNG is written top to bottom
+                for( int yTop = imageSize; yTop > 0; yTop -= tileSize )
+                {
+                    int y0 = yTop - tileSize;
+                    for( int x0 = 0; x0 < imageSize; x0 += tileSize )
+                    {
+                        drawTile( tileBuffer, tileSize, imageSize, x0, y0, aam, aap );
+                        int columns = Math.min( tileSize, imageSize - x0 );
+                        for( int y = 0; y < tileSize; y++ )
+                            System.arraycopy( tileBuffer, y * tileSize, stripBuffer, y * imageSize + x0, columns );
+                    }
+                    if( pngWriter == null )
+                        pngWriter = new StreamingPNGWriter( os, imageSize, imageSize );
+                    for( int y = tileSize - 1; y >= 0 && y0 + y >= 0; y-- )
+                        pngWriter.writeRow( stripBuffer, y * imageSize );
+                    pngWriter.flush();
+                }
+            }
+            success = true;
+        }
+        finally
+        {
+            if( pngWriter == null )
+                os.close();
+            else if( success )
+                pngWriter.close();
+            else
+                pngWriter.abort();
+        }
+    }
+
+    /**
+     * Writes a packed RGB buffer as produced by the renderer to a PNG file.
+     * The rows are flipped while encoding, so no intermediate image is needed.
+     */
+    public static void saveToPNG( File f, int[] rgbBuffer, int width, int height )
+            throws IOException
+    {
+        StreamingPNGWriter pngWriter = new StreamingPNGWriter( new FileOutputStream( f ), width, height );
+        boolean success = false;
+        try
+        {
+            for( int y = height - 1; y >= 0; y-- )
+                pngWriter.writeRow( rgbBuffer, y * width );
+            success = true;
+        }
+        finally
+        {
+            if( success )
+                pngWriter.close();
+            else
+                pngWriter.abort();
+        }
+    }
+}
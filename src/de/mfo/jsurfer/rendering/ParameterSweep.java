@@ -0,0 +1,157 @@
+package de.mfo.jsurfer.rendering;
+
+import java.util.*;
+
+/**
+ * Low resolution images of a scene for evenly spaced values between 0 and 1
+ * of each of its surface parameters, where only one parameter at a time
+ * differs from the scene. While a parameter is changed interactively, the
+ * image of the closest value can be shown immediately.
+ * The values closest to the current value of each parameter are rendered
+ * first, alternating between the parameters.
+ * The images of a previous sweep whose scene only differed in the value of
+ * the same parameter are reused, so e.g. after a parameter has been changed,
+ * only the images of the other parameters have to be rendered again.
+ */
+public class ParameterSweep extends IdleRenderer
+{
+    public static final String PARAMETER_PREFIX = "surface_parameter_";
+
+    final String sceneKey;
+    final String[] parameters;
+    final String[] keys;
+    final int steps;
+    /** which parameter and which step is rendered as i-th image */
+    final int[] parameterOf;
+    final int[] stepOf;
+    final int[][][] frames;
+
+    /**
+     * @param scene the scene properties as written to .jsurf files
+     * @param size the edge length of the square images
+     * @param steps the number of values per parameter (including 0 and 1)
+     * @param previous a previous sweep whose images should be reused or null
+     */
+    public ParameterSweep( Properties scene, int size, int steps, ParameterSweep previous )
+    {
+        super( scene, size, steps * parametersOf( scene ).size() );
+        List< String > names = parametersOf( scene );
+        this.sceneKey = SceneKey.of( scene );
+        this.parameters = names.toArray( new String[ names.size() ] );
+        this.keys = new String[ parameters.length ];
+        this.steps = steps;
+        this.parameterOf = new int[ count ];
+        this.stepOf = new int[ count ];
+        this.frames = new int[ parameters.length ][ steps ][];
+
+        for( int p = 0; p < parameters.length; p++ )
+        {
+            keys[ p ] = keyOf( scene, parameters[ p ] );
+
+            // order the steps by their distance to the current value
+            final double current = valueOf( scene, parameters[ p ] ) * ( steps - 1 );
+            Integer[] order = new Integer[ steps ];
+            for( int k = 0; k < steps; k++ )
+                order[ k ] = k;
+            Arrays.sort( order, new Comparator< Integer >() {
+                public int compare( Integer a, Integer b ) { return Double.compare( Math.abs( a - current ), Math.abs( b - current ) ); }
+            } );
+            for( int k = 0; k < steps; k++ )
+            {
+                parameterOf[ k * parameters.length + p ] = p;
+                stepOf[ k * parameters.length + p ] = order[ k ];
+            }
+
+            if( previous != null && previous.size == size && previous.steps == steps )
+            {
+                for( int q = 0; q < previous.parameters.length; q++ )
+                    if( previous.keys[ q ].equals( keys[ p ] ) )
+                        frames[ p ] = previous.getFrames( q );
+            }
+        }
+    }
+
+    synchronized int[][] getFrames( int p )
+    {
+        return frames[ p ].clone();
+    }
+
+    protected synchronized boolean isRendered( int i )
+    {
+        return frames[ parameterOf[ i ] ][ stepOf[ i ] ] != null;
+    }
+
+    /**
+     * @return the names of the surface parameters of the scene
+     */
+    public static List< String > parametersOf( Properties scene )
+    {
+        List< String > names = new ArrayList< String >();
+        for( String name : scene.stringPropertyNames() )
+            if( name.startsWith( PARAMETER_PREFIX ) )
+                names.add( name.substring( PARAMETER_PREFIX.length() ) );
+        Collections.sort( names );
+        return names;
+    }
+
+    static double valueOf( Properties scene, String parameter )
+    {
+        return Double.parseDouble( scene.getProperty( PARAMETER_PREFIX + parameter ).trim() );
+    }
+
+    /**
+     * @return a key that identifies the scene without the value of one of its
+     *         parameters
+     */
+    static String keyOf( Properties scene, String parameter )
+    {
+        Properties p = new Properties();
+        p.putAll( scene );
+        p.remove( PARAMETER_PREFIX + parameter );
+        return SceneKey.of( p, parameter );
+    }
+
+    protected void setUp( OffscreenRenderer or, int i )
+            throws Exception
+    {
+        for( String parameter : parameters )
+            or.getAlgebraicSurfaceRenderer().setParameterValue( parameter, valueOf( scene, parameter ) );
+        or.getAlgebraicSurfaceRenderer().setParameterValue( parameters[ parameterOf[ i ] ], stepOf[ i ] / ( double ) ( steps - 1 ) );
+    }
+
+    protected synchronized void rendered( int i, int[] rgb )
+    {
+        frames[ parameterOf[ i ] ][ stepOf[ i ] ] = rgb;
+    }
+
+    /**
+     * @return true, if the sweep has been started for exactly this scene
+     */
+    public boolean isSweepOf( Properties scene )
+    {
+        return sceneKey.equals( SceneKey.of( scene ) );
+    }
+
+    /**
+     * Looks for an image of a scene which differs from the swept scene in
+     * the value of a single parameter.
+     * @return the size x size pixels of the image, which must not be
+     *         modified, or null, if there is no such image (yet)
+     */
+    public int[] getPreview( Properties scene )
+    {
+        if( isSweepOf( scene ) )
+            return null; // the exact image is being shown anyway
+        for( int p = 0; p < parameters.length; p++ )
+        {
+            if( scene.getProperty( PARAMETER_PREFIX + parameters[ p ] ) == null || !keys[ p ].equals( keyOf( scene, parameters[ p ] ) ) )
+                continue;
+            double value = Math.max( 0.0, Math.min( 1.0, valueOf( scene, parameters[ p ] ) ) );
+            synchronized( this )
+            {
+                return frames[ p ][ ( int ) Math.round( value * ( steps - 1 ) ) ];
+            }
+        }
+        return null;
+    }
+}
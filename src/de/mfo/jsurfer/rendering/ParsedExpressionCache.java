@@ -0,0 +1,116 @@
+package de.mfo.jsurfer.rendering;
+
+import java.util.*;
+
+import de.mfo.jsurf.algebra.*;
+import de.mfo.jsurf.parser.*;
+
+/**
+ * Remembers the results of parsing surface expressions, so that switching
+ * between gallery entries, undoing a change or retyping an expression does
+ * not parse it again. The parsed expression trees are never modified by
+ * jsurf (its visitors create new trees), so the entries are shared by all
+ * renderers. Expressions which only differ in whitespace share an entry.
+ * The cache holds the @see{MAX_ENTRIES} most recently used expressions and
+ * is thread safe.
+ */
+public class ParsedExpressionCache
+{
+    public static final int MAX_ENTRIES = 64;
+
+    public static class Entry
+    {
+        /** the expression as it has been passed to @see{parse} first */
+        public final String expression;
+        public final PolynomialOperation operation;
+        public final int degree;
+        /** the names of the parameters, unmodifiable */
+        public final Set< String > parameters;
+
+        Entry( String expression, PolynomialOperation operation )
+        {
+            this.expression = expression;
+            this.operation = operation;
+            this.degree = operation.accept( new DegreeCalculator(), ( Void ) null );
+            this.parameters = Collections.unmodifiableSet( new HashSet< String >( operation.accept( new DoubleVariableExtractor(), ( Void ) null ) ) );
+        }
+    }
+
+    static final LinkedHashMap< String, Entry > entries = new LinkedHashMap< String, Entry >( 16, 0.75f, true ) {
+        protected boolean removeEldestEntry( Map.Entry< String, ParsedExpressionCache.Entry > eldest )
+        {
+            return size() > MAX_ENTRIES;
+        }
+    };
+    static long hits;
+    static long misses;
+
+    static String normalize( String expression )
+    {
+        return expression.replaceAll( "\\s+", "" );
+    }
+
+    /**
+     * @return the cached entry of the expression, the expression is parsed
+     *         if it is not in the cache
+     * @throws Exception if the expression cannot be parsed
+     */
+    public static Entry parse( String expression )
+            throws Exception
+    {
+        String key = normalize( expression );
+        synchronized( entries )
+        {
+            Entry e = entries.get( key );
+            if( e != null )
+            {
+                hits++;
+                return e;
+            }
+            misses++;
+        }
+        // parse outside of the lock, in the worst case an expression is parsed twice
+        Entry e = new Entry( expression, AlgebraicExpressionParser.parse( expression ) );
+        synchronized( entries )
+        {
+            entries.put( key, e );
+        }
+        return e;
+    }
+
+    /**
+     * Adds an expression, which has already been parsed elsewhere (e.g. read
+     * from a @see{CompiledScene}), unless it is in the cache.
+     * @return the cached entry of the expression
+     */
+    public static Entry put( String expression, PolynomialOperation operation )
+    {
+        String key = normalize( expression );
+        synchronized( entries )
+        {
+            Entry e = entries.get( key );
+            if( e == null )
+            {
+                e = new Entry( expression, operation );
+                entries.put( key, e );
+            }
+            return e;
+        }
+    }
+
+    public static void clear()
+    {
+        synchronized( entries )
+        {
+            entries.clear();
+        }
+    }
+
+    public static String statistics()
+    {
+        synchronized( entries )
+        {
+            return "ParsedExpressionCache[" + entries.size() + " expressions, hits=" + hits + ", misses=" + misses + "]";
+        }
+    }
+}
@@ -0,0 +1,287 @@
+package de.mfo.jsurfer.rendering;
+
+import java.io.*;
+import java.util.*;
+
+import de.mfo.jsurf.rendering.cpu.*;
+import static de.mfo.jsurf.rendering.cpu.CPUAlgebraicSurfaceRenderer.AntiAliasingMode;
+
+/**
+ * Measures the rendering time of jsurf files, by default of the shipped
+ * gallery, for every combination of image size, background load and
+ * anti-aliasing pass of the interactive renderer. The frames are drawn with
+ * the @see{RenderScheduler} priority of the pass, while the given number of
+ * background renderers keep drawing the same surface with priority
+ * BACKGROUND, so the results show how well the scheduler keeps interactive
+ * frames fast under load.
+ * Each combination is warmed up before it is measured and the results are
+ * reported per surface, so a regression on a single (e.g. high degree)
+ * surface does not disappear in an average.
+ * The renderers are loaded exactly like the @see{JSurferRenderPanel} loads
+ * its surface (via @see{OffscreenRenderer#loadSurfaceProperties}).
+ */
+public class RenderBenchmark
+{
+    /**
+     * The anti-aliasing settings of the passes of the interactive renderer.
+     */
+    public enum Pass
+    {
+        LOW_RES( AntiAliasingMode.ADAPTIVE_SUPERSAMPLING, AntiAliasingPattern.QUINCUNX, RenderScheduler.Priority.INTERACTIVE_LOW_RES ),
+        ADAPTIVE_HI_RES( AntiAliasingMode.ADAPTIVE_SUPERSAMPLING, AntiAliasingPattern.OG_4x4, RenderScheduler.Priority.INTERACTIVE_HI_RES ),
+        SUPERSAMPLED_HI_RES( AntiAliasingMode.SUPERSAMPLING, AntiAliasingPattern.OG_4x4, RenderScheduler.Priority.INTERACTIVE_HI_RES );
+
+        public final AntiAliasingMode aam;
+        public final AntiAliasingPattern aap;
+        public final RenderScheduler.Priority priority;
+
+        Pass( AntiAliasingMode aam, AntiAliasingPattern aap, RenderScheduler.Priority priority )
+        {
+            this.aam = aam;
+            this.aap = aap;
+            this.priority = priority;
+        }
+    }
+
+    public static class Result
+    {
+        public final String surface;
+        public final Pass pass;
+        public final int size;
+        /** the number of background renderers */
+        public final int background;
+        /** rendering times of the single frames in seconds, sorted */
+        public final double[] frameTimes;
+        /** frames per second of the interactive renderer */
+        public final double throughput;
+
+        Result( String surface, Pass pass, int size, int background, double[] frameTimes, double throughput )
+        {
+            this.surface = surface;
+            this.pass = pass;
+            this.size = size;
+            this.background = background;
+            this.frameTimes = frameTimes;
+            this.throughput = throughput;
+        }
+
+        public double median()
+        {
+            return frameTimes[ frameTimes.length / 2 ];
+        }
+
+        public String toString()
+        {
+            return String.format( Locale.US, "%-28s %-20s %5d %3d %10.2f %10.2f %10.2f %8.2f",
+                surface, pass, size, background, 1000.0 * frameTimes[ 0 ], 1000.0 * median(), 1000.0 * frameTimes[ frameTimes.length - 1 ], throughput );
+        }
+
+        public static String header()
+        {
+            return String.format( Locale.US, "%-28s %-20s %5s %3s %10s %10s %10s %8s",
+                "surface", "pass", "size", "bg", "min[ms]", "median[ms]", "max[ms]", "frames/s" );
+        }
+    }
+
+    int[] sizes = { 128, 256, 512 };
+    int[] backgroundCounts = { 0, Runtime.getRuntime().availableProcessors() };
+    Pass[] passes = Pass.values();
+    int warmupIterations = 2;
+    int iterations = 5;
+
+    public void setSizes( int[] sizes ) { this.sizes = sizes; }
+    public void setBackgroundCounts( int[] backgroundCounts ) { this.backgroundCounts = backgroundCounts; }
+    public void setPasses( Pass[] passes ) { this.passes = passes; }
+    public void setWarmupIterations( int warmupIterations ) { this.warmupIterations = warmupIterations; }
+    public void setIterations( int iterations ) { this.iterations = Math.max( 1, iterations ); }
+
+    /**
+     * Benchmarks all combinations for a single jsurf file and prints a line
+     * per combination to out.
+     */
+    public List< Result > run( File jsurf_file, PrintStream out )
+            throws Exception
+    {
+        Properties props = new Properties();
+        InputStream is = new FileInputStream( jsurf_file );
+        try { props.load( is ); } finally { is.close(); }
+        String name = jsurf_file.getName().replaceAll( "\\.jsurf$", "" );
+
+        List< Result > results = new ArrayList< Result >();
+        OffscreenRenderer interactive = new OffscreenRenderer();
+        interactive.loadFromProperties( props );
+        for( int background : backgroundCounts )
+        {
+            // all renderers share the threads of the render scheduler, so the background
+            // renderers only slow down the interactive one as far as the scheduler lets them
+            OffscreenRenderer[] ors = new OffscreenRenderer[ background ];
+            for( int i = 0; i < background; i++ )
+            {
+                ors[ i ] = new OffscreenRenderer();
+                ors[ i ].loadFromProperties( props );
+            }
+            for( Pass pass : passes )
+            {
+                for( int size : sizes )
+                {
+                    Result r = measure( name, interactive, ors, pass, size );
+                    results.add( r );
+                    out.println( r );
+                }
+            }
+        }
+        return results;
+    }
+
+    Result measure( String name, OffscreenRenderer interactive, final OffscreenRenderer[] background, final Pass pass, final int size )
+            throws Exception
+    {
+        int[] buffer = new int[ size * size ];
+        final boolean[] stop = { false };
+        Thread[] threads = new Thread[ background.length ];
+        for( int i = 0; i < background.length; i++ )
+        {
+            final OffscreenRenderer or = background[ i ];
+            threads[ i ] = new Thread( "benchmark background " + i ) {
+                public void run()
+                {
+                    RenderScheduler.setPriority( RenderScheduler.Priority.BACKGROUND );
+                    int[] b = new int[ size * size ];
+                    while( !isStopped( stop ) )
+                    {
+                        try
+                        {
+                            or.draw( b, size, size, pass.aam, pass.aap );
+                        }
+                        catch( de.mfo.jsurf.rendering.RenderingInterruptedException rie ) {}
+                    }
+                }
+            };
+            threads[ i ].setDaemon( true );
+            threads[ i ].start();
+        }
+
+        RenderScheduler.Priority previous = RenderScheduler.setPriority( pass.priority );
+        try
+        {
+            for( int i = 0; i < warmupIterations; i++ )
+                interactive.draw( buffer, size, size, pass.aam, pass.aap );
+
+            double[] frameTimes = new double[ iterations ];
+            long t_start = System.nanoTime();
+            for( int i = 0; i < iterations; i++ )
+            {
+                long t_frame = System.nanoTime();
+                interactive.draw( buffer, size, size, pass.aam, pass.aap );
+                frameTimes[ i ] = ( System.nanoTime() - t_frame ) / 1000000000.0;
+            }
+            double seconds = ( System.nanoTime() - t_start ) / 1000000000.0;
+            Arrays.sort( frameTimes );
+            return new Result( name, pass, size, background.length, frameTimes, frameTimes.length / seconds );
+        }
+        finally
+        {
+            RenderScheduler.setPriority( previous );
+            synchronized( stop )
+            {
+                stop[ 0 ] = true;
+            }
+            for( OffscreenRenderer or : background )
+                or.getAlgebraicSurfaceRenderer().stopDrawing();
+            for( Thread t : threads )
+                t.join();
+        }
+    }
+
+    static boolean isStopped( boolean[] stop )
+    {
+        synchronized( stop )
+        {
+            return stop[ 0 ];
+        }
+    }
+
+    static int[] parseInts( String s )
+    {
+        String[] parts = s.split( "," );
+        int[] result = new int[ parts.length ];
+        for( int i = 0; i < parts.length; i++ )
+            result[ i ] = Integer.parseInt( parts[ i ].trim() );
+        return result;
+    }
+
+    static Pass[] parsePasses( String s )
+    {
+        String[] parts = s.split( "," );
+        Pass[] result = new Pass[ parts.length ];
+        for( int i = 0; i < parts.length; i++ )
+            result[ i ] = Pass.valueOf( parts[ i ].trim().toUpperCase() );
+        return result;
+    }
+
+    /**
+     * Usage: RenderBenchmark [--sizes 128,256,512] [--background 0,4]
+     *        [--passes LOW_RES,ADAPTIVE_HI_RES,SUPERSAMPLED_HI_RES]
+     *        [--warmup 2] [--iterations 5] [--filter regex] [jsurf_file_or_folder ...]
+     */
+    public static void main( String[] args )
+    {
+        RenderBenchmark rb = new RenderBenchmark();
+        List< String > inputs = new ArrayList< String >();
+        String filter = ".*";
+        try
+        {
+            for( int i = 0; i < args.length; i++ )
+            {
+                if( args[ i ].equals( "--sizes" ) )
+                    rb.setSizes( parseInts( args[ ++i ] ) );
+                else if( args[ i ].equals( "--background" ) )
+                    rb.setBackgroundCounts( parseInts( args[ ++i ] ) );
+                else if( args[ i ].equals( "--passes" ) )
+                    rb.setPasses( parsePasses( args[ ++i ] ) );
+                else if( args[ i ].equals( "--warmup" ) )
+                    rb.setWarmupIterations( Integer.parseInt( args[ ++i ] ) );
+                else if( args[ i ].equals( "--iterations" ) )
+                    rb.setIterations( Integer.parseInt( args[ ++i ] ) );
+                else if( args[ i ].equals( "--filter" ) )
+                    filter = args[ ++i ];
+                else
+                    inputs.add( args[ i ] );
+            }
+        }
+        catch( RuntimeException re )
+        {
+            System.err.println( "usage: RenderBenchmark [--sizes 128,256,512] [--background 0,4] [--passes LOW_RES,ADAPTIVE_HI_RES,SUPERSAMPLED_HI_RES] [--warmup 2] [--iterations 5] [--filter regex] [jsurf_file_or_folder ...]" );
+            System.exit( -1 );
+        }
+        if( inputs.isEmpty() )
+            inputs.add( "src/de/mfo/jsurfer/gallery" );
+
+        int exitCode = 0;
+        try
+        {
+            System.out.println( "java " + System.getProperty( "java.version" ) + ", " + Runtime.getRuntime().availableProcessors() + " cores" );
+            System.out.println( Result.header() );
+            for( File f : BatchRenderer.collectInputs( inputs ) )
+            {
+                if( !f.getName().matches( filter ) )
+                    continue;
+                try
+                {
+                    rb.run( f, System.out );
+                }
+                catch( Exception e )
+                {
+                    System.err.println( f + ": " + e );
+                    exitCode = 1;
+                }
+            }
+        }
+        catch( IOException ioe )
+        {
+            System.err.println( ioe );
+            exitCode = -1;
+        }
+        System.exit( exitCode );
+    }
+}
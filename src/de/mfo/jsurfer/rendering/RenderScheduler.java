@@ -0,0 +1,163 @@
+package de.mfo.jsurfer.rendering;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The threads which render the tiles of all renderers of the process. jsurf
+ * gives every renderer a pool of twice as many threads as there are cores,
+ * so the interactive renderer, the export renderer and the background
+ * renderers together used several times more threads than cores and competed
+ * for them on equal terms. Instead, all @see{CachingSurfaceRenderer}s hand
+ * their tiles to this scheduler, which runs them on one thread per core and
+ * always starts the queued tile of the most important @see{Priority} first
+ * (tiles of the same priority in the order they have been submitted).
+ * A tile that is already running is not interrupted, so interactive work
+ * waits at most for the running tiles of less important work.
+ * The priority of the tiles is the priority of the thread that calls
+ * draw, see @see{setPriority}.
+ * A thread may also set a @see{Cancellation}: its tiles, which have not
+ * started when the cancellation applies, are cancelled instead of run, so
+ * the draw call ends with a RenderingInterruptedException. Unlike
+ * stopDrawing, this also covers tiles which are submitted after the image
+ * has become obsolete.
+ */
+public class RenderScheduler
+{
+    /**
+     * The classes of rendering work, most important first.
+     */
+    public enum Priority { INTERACTIVE_LOW_RES, INTERACTIVE_HI_RES, EXPORT, BACKGROUND }
+
+    /**
+     * Tells whether the tiles of an image are still needed.
+     */
+    public interface Cancellation
+    {
+        boolean isCancelled();
+    }
+
+    static final ThreadLocal< Cancellation > threadCancellation = new ThreadLocal< Cancellation >();
+
+    static final ThreadLocal< Priority > threadPriority = new ThreadLocal< Priority >() {
+        protected Priority initialValue() { return Priority.EXPORT; }
+    };
+
+    static final AtomicLong sequence = new AtomicLong();
+    static final ThreadPoolExecutor pool;
+    static final ExecutorService executor;
+    static
+    {
+        final int threads = Runtime.getRuntime().availableProcessors();
+        pool = new ThreadPoolExecutor( threads, threads, 0L, TimeUnit.MILLISECONDS, new PriorityBlockingQueue< Runnable >(), new ThreadFactory() {
+            int count;
+            public synchronized Thread newThread( Runnable r )
+            {
+                Thread t = new Thread( r, "render scheduler " + ( count++ ) );
+                t.setDaemon( true );
+                return t;
+            }
+        } );
+        executor = new AbstractExecutorService() {
+            public void execute( Runnable r )
+            {
+                pool.execute( new Task( r, threadPriority.get(), threadCancellation.get() ) );
+            }
+
+            // the pool is shared, so the renderers cannot shut it down
+            public void shutdown() {}
+            public List< Runnable > shutdownNow() { return Collections.emptyList(); }
+            public boolean isShutdown() { return false; }
+            public boolean isTerminated() { return false; }
+            public boolean awaitTermination( long timeout, TimeUnit unit ) { return false; }
+        };
+    }
+
+    static class Task implements Runnable, Comparable< Task >
+    {
+        final Runnable runnable;
+        final Priority priority;
+        final Cancellation cancellation;
+        final long number;
+
+        Task( Runnable runnable, Priority priority, Cancellation cancellation )
+        {
+            this.runnable = runnable;
+            this.priority = priority;
+            this.cancellation = cancellation;
+            this.number = sequence.getAndIncrement();
+        }
+
+        public void run()
+        {
+            // jsurf waits for its tiles with get(), so a tile must be cancelled, not just skipped
+            if( cancellation != null && runnable instanceof Future && cancellation.isCancelled() )
+                ( ( Future< ? > ) runnable ).cancel( false );
+            else
+                runnable.run();
+        }
+
+        public int compareTo( Task t )
+        {
+            if( priority != t.priority )
+                return priority.compareTo( t.priority );
+            return number < t.number ? -1 : ( number == t.number ? 0 : 1 );
+        }
+    }
+
+    /**
+     * Sets the priority of the tiles of all images, which are drawn by the
+     * calling thread from now on. Threads which never set a priority render
+     * with priority EXPORT.
+     * @return the previous priority of the calling thread
+     */
+    public static Priority setPriority( Priority priority )
+    {
+        Priority previous = threadPriority.get();
+        threadPriority.set( priority );
+        return previous;
+    }
+
+    /**
+     * Sets the cancellation of the tiles of all images, which are drawn by
+     * the calling thread from now on.
+     * @param cancellation the cancellation or null, if the tiles are only stopped by stopDrawing
+     * @return the previous cancellation of the calling thread
+     */
+    public static Cancellation setCancellation( Cancellation cancellation )
+    {
+        Cancellation previous = threadCancellation.get();
+        threadCancellation.set( cancellation );
+        return previous;
+    }
+
+    public static Priority getPriority()
+    {
+        return threadPriority.get();
+    }
+
+    /**
+     * @return the executor, which renderers use to run their tiles
+     */
+    public static ExecutorService getExecutor()
+    {
+        return executor;
+    }
+
+    /**
+     * @return the number of threads which render tiles
+     */
+    public static int getThreadCount()
+    {
+        return pool.getMaximumPoolSize();
+    }
+
+    /**
+     * @return the number of tiles waiting for a thread
+     */
+    public static int getQueuedTiles()
+    {
+        return pool.getQueue().size();
+    }
+}
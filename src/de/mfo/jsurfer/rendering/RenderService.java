@@ -0,0 +1,485 @@
+package de.mfo.jsurfer.rendering;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.*;
+
+import de.mfo.jsurf.rendering.*;
+import de.mfo.jsurf.rendering.cpu.*;
+import static de.mfo.jsurf.rendering.cpu.CPUAlgebraicSurfaceRenderer.AntiAliasingMode;
+
+/**
+ * Renders scenes to PNG for HTTP clients, e.g. web front-ends or kiosk
+ * screens, using the HTTP server of the JDK.
+ * <p>
+ * POST /render with a jsurf file as body renders the scene. The query may
+ * contain size (or width and height, default 512), aa and aa-mode (the
+ * anti-aliasing pattern and mode, default OG_4x4 and ADAPTIVE_SUPERSAMPLING)
+ * and timeout (milliseconds, default 30000). GET /status returns some
+ * statistics as text.
+ * <p>
+ * The requests are rendered by a fixed number of workers, each with its own
+ * @see{OffscreenRenderer}. At most queueCapacity requests wait for a worker,
+ * further requests are rejected with 503. A request which has not been
+ * rendered before its timeout expires is answered with 504. The image is
+ * streamed to the client strip by strip, so a client which has disconnected
+ * is noticed after the next strip and its rendering is stopped. Finished
+ * images are kept in a cache, which is keyed on the scene, the size and the
+ * anti-aliasing settings.
+ */
+public class RenderService
+{
+    public static final int DEFAULT_PORT = 8765;
+    public static final int DEFAULT_SIZE = 512;
+    public static final int MAX_SIZE = 4096;
+    public static final long DEFAULT_TIMEOUT_MS = 30000;
+    public static final long MAX_TIMEOUT_MS = 600000;
+    /** the strips are small, so disconnected clients are noticed quickly */
+    static final int TILE_SIZE = 256;
+
+    final HttpServer server;
+    final ExecutorService httpThreads;
+    final ThreadPoolExecutor workers;
+    final ScheduledExecutorService timer;
+    final ThreadLocal< OffscreenRenderer > renderers;
+    final PNGCache cache;
+
+    final AtomicLong rendered = new AtomicLong();
+    final AtomicLong cacheHits = new AtomicLong();
+    final AtomicLong rejected = new AtomicLong();
+    final AtomicLong timedOut = new AtomicLong();
+    final AtomicLong disconnected = new AtomicLong();
+    final AtomicLong failed = new AtomicLong();
+
+    /**
+     * @param numWorkers the number of requests rendered at the same time
+     * @param queueCapacity the number of requests which may wait for a worker
+     * @param cacheBytes the maximum size of the cached PNG images
+     */
+    public RenderService( InetSocketAddress address, int numWorkers, int queueCapacity, long cacheBytes )
+            throws IOException
+    {
+        server = HttpServer.create( address, 0 );
+        httpThreads = Executors.newFixedThreadPool( 2, daemonThreads( "render service http" ) );
+        workers = new ThreadPoolExecutor( numWorkers, numWorkers, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue< Runnable >( Math.max( 1, queueCapacity ) ), daemonThreads( "render service worker" ) );
+        timer = Executors.newSingleThreadScheduledExecutor( daemonThreads( "render service timer" ) );
+        renderers = new ThreadLocal< OffscreenRenderer >() {
+            protected OffscreenRenderer initialValue() { return new OffscreenRenderer(); }
+        };
+        cache = new PNGCache( cacheBytes );
+
+        server.setExecutor( httpThreads );
+        server.createContext( "/render", new HttpHandler() {
+            public void handle( HttpExchange exchange ) throws IOException { handleRender( exchange ); }
+        } );
+        server.createContext( "/status", new HttpHandler() {
+            public void handle( HttpExchange exchange ) throws IOException { sendText( exchange, 200, statistics() ); }
+        } );
+    }
+
+    static ThreadFactory daemonThreads( final String name )
+    {
+        return new ThreadFactory() {
+            int count;
+            public synchronized Thread newThread( Runnable r )
+            {
+                Thread t = new Thread( r, name + " " + ( count++ ) );
+                t.setDaemon( true );
+                return t;
+            }
+        };
+    }
+
+    public void start()
+    {
+        server.start();
+    }
+
+    /**
+     * Stops accepting requests. The requests being rendered are finished
+     * within delaySeconds, the queued ones are dropped.
+     */
+    public void stop( int delaySeconds )
+    {
+        server.stop( delaySeconds );
+        workers.shutdownNow();
+        timer.shutdownNow();
+        httpThreads.shutdownNow();
+    }
+
+    public InetSocketAddress getAddress()
+    {
+        return server.getAddress();
+    }
+
+    public String statistics()
+    {
+        return "RenderService[rendered=" + rendered + ", cacheHits=" + cacheHits + ", rejected=" + rejected + ", timedOut=" + timedOut
+                + ", disconnected=" + disconnected + ", failed=" + failed + ", queued=" + workers.getQueue().size() + ", " + cache + "]";
+    }
+
+    void handleRender( HttpExchange exchange )
+            throws IOException
+    {
+        try
+        {
+            if( !"POST".equals( exchange.getRequestMethod() ) )
+            {
+                exchange.getResponseHeaders().set( "Allow", "POST" );
+                sendText( exchange, 405, "POST a jsurf file to render it" );
+                return;
+            }
+            Map< String, String > query = parseQuery( exchange.getRequestURI().getRawQuery() );
+            int size = Integer.parseInt( value( query, "size", "" + DEFAULT_SIZE ) );
+            int width = Integer.parseInt( value( query, "width", "" + size ) );
+            int height = Integer.parseInt( value( query, "height", "" + size ) );
+            AntiAliasingPattern aap = AntiAliasingPattern.valueOf( value( query, "aa", "OG_4x4" ) );
+            AntiAliasingMode aam = AntiAliasingMode.valueOf( value( query, "aa-mode", "ADAPTIVE_SUPERSAMPLING" ) );
+            long timeout = Long.parseLong( value( query, "timeout", "" + DEFAULT_TIMEOUT_MS ) );
+            if( width <= 0 || height <= 0 || width > MAX_SIZE || height > MAX_SIZE )
+                throw new IllegalArgumentException( "the image size must be between 1 and " + MAX_SIZE );
+            if( timeout <= 0 )
+                throw new IllegalArgumentException( "the timeout must be positive" );
+
+            Properties scene = new Properties();
+            InputStream is = exchange.getRequestBody();
+            try
+            {
+                scene.load( is );
+            }
+            finally
+            {
+                is.close();
+            }
+            if( scene.getProperty( "surface_equation" ) == null )
+                throw new IllegalArgumentException( "the jsurf file has no surface_equation" );
+
+            String key = FrameCache.keyOf( scene, width, height, aam, aap );
+            byte[] png = cache.get( key );
+            if( png != null )
+            {
+                cacheHits.incrementAndGet();
+                exchange.getResponseHeaders().set( "Content-Type", "image/png" );
+                exchange.getResponseHeaders().set( "X-Cache", "hit" );
+                exchange.sendResponseHeaders( 200, png.length );
+                OutputStream os = exchange.getResponseBody();
+                os.write( png );
+                os.close();
+                return;
+            }
+
+            long deadline = System.nanoTime() + Math.min( timeout, MAX_TIMEOUT_MS ) * 1000000L;
+            try
+            {
+                workers.execute( new Job( exchange, scene, key, width, height, aam, aap, deadline ) );
+            }
+            catch( RejectedExecutionException ree )
+            {
+                rejected.incrementAndGet();
+                exchange.getResponseHeaders().set( "Retry-After", "1" );
+                sendText( exchange, 503, "too many requests" );
+            }
+        }
+        catch( IllegalArgumentException iae )
+        {
+            // also thrown for malformed numbers and unknown anti-aliasing settings
+            sendText( exchange, 400, "invalid request: " + iae.getMessage() );
+        }
+    }
+
+    /**
+     * Renders a request and streams the image to the client.
+     */
+    class Job implements Runnable
+    {
+        final HttpExchange exchange;
+        final Properties scene;
+        final String key;
+        final int width;
+        final int height;
+        final AntiAliasingMode aam;
+        final AntiAliasingPattern aap;
+        final long deadline;
+        volatile boolean expired;
+        boolean clientGone;
+
+        Job( HttpExchange exchange, Properties scene, String key, int width, int height, AntiAliasingMode aam, AntiAliasingPattern aap, long deadline )
+        {
+            this.exchange = exchange;
+            this.scene = scene;
+            this.key = key;
+            this.width = width;
+            this.height = height;
+            this.aam = aam;
+            this.aap = aap;
+            this.deadline = deadline;
+        }
+
+        public void run()
+        {
+            ResponseStream rs = new ResponseStream( this, cache.isCacheable( 3L * width * height ) );
+            try
+            {
+                long remaining = deadline - System.nanoTime();
+                if( remaining <= 0 )
+                {
+                    timedOut.incrementAndGet();
+                    sendText( exchange, 504, "the request has not been rendered in time" );
+                    return;
+                }
+                final OffscreenRenderer or = renderers.get();
+                try
+                {
+                    or.loadFromProperties( scene );
+                }
+                catch( Exception e )
+                {
+                    sendText( exchange, 400, "invalid jsurf file: " + e.getMessage() );
+                    return;
+                }
+                ScheduledFuture< ? > alarm = timer.schedule( new Runnable() {
+                    public void run()
+                    {
+                        expired = true;
+                        or.getAlgebraicSurfaceRenderer().stopDrawing();
+                    }
+                }, remaining, TimeUnit.NANOSECONDS );
+                try
+                {
+                    or.writePNG( rs, width, height, aam, aap, TILE_SIZE );
+                }
+                finally
+                {
+                    alarm.cancel( false );
+                }
+                rendered.incrementAndGet();
+                if( rs.copy != null )
+                    cache.put( key, rs.copy.toByteArray() );
+            }
+            catch( Exception e )
+            {
+                // RenderingInterruptedException or an IOException of the response
+                if( clientGone )
+                {
+                    disconnected.incrementAndGet();
+                }
+                else if( expired )
+                {
+                    timedOut.incrementAndGet();
+                    if( !rs.isCommitted() )
+                        sendQuietly( 504, "the request has not been rendered in time" );
+                }
+                else
+                {
+                    failed.incrementAndGet();
+                    System.err.println( "rendering " + key + " failed: " + e );
+                    if( !rs.isCommitted() )
+                        sendQuietly( 500, "rendering failed: " + e );
+                }
+            }
+            finally
+            {
+                // a response that has been committed but not completed is aborted
+                exchange.close();
+            }
+        }
+
+        void sendQuietly( int status, String text )
+        {
+            try
+            {
+                sendText( exchange, status, text );
+            }
+            catch( IOException ioe )
+            {
+                clientGone = true;
+            }
+        }
+    }
+
+    /**
+     * The body of a response, which sends the response headers on the first
+     * write, i.e. after the first strip of the image has been rendered, and
+     * keeps a copy of the image for the cache. Writing fails as soon as the
+     * deadline of the job has expired.
+     */
+    static class ResponseStream extends OutputStream
+    {
+        final Job job;
+        final ByteArrayOutputStream copy;
+        OutputStream body;
+
+        ResponseStream( Job job, boolean keepCopy )
+        {
+            this.job = job;
+            this.copy = keepCopy ? new ByteArrayOutputStream() : null;
+        }
+
+        boolean isCommitted()
+        {
+            return body != null;
+        }
+
+        public void write( int b )
+                throws IOException
+        {
+            write( new byte[] { ( byte ) b }, 0, 1 );
+        }
+
+        public void write( byte[] b, int off, int len )
+                throws IOException
+        {
+            if( job.expired )
+                throw new IOException( "the deadline has expired" );
+            try
+            {
+                if( body == null )
+                {
+                    job.exchange.getResponseHeaders().set( "Content-Type", "image/png" );
+                    job.exchange.getResponseHeaders().set( "X-Cache", "miss" );
+                    job.exchange.sendResponseHeaders( 200, 0 );
+                    body = job.exchange.getResponseBody();
+                }
+                body.write( b, off, len );
+            }
+            catch( IOException ioe )
+            {
+                job.clientGone = true;
+                throw ioe;
+            }
+            if( copy != null )
+                copy.write( b, off, len );
+        }
+
+        public void flush()
+                throws IOException
+        {
+            if( body == null )
+                return;
+            try
+            {
+                body.flush();
+            }
+            catch( IOException ioe )
+            {
+                job.clientGone = true;
+                throw ioe;
+            }
+        }
+
+        public void close()
+                throws IOException
+        {
+            if( body == null )
+                return;
+            try
+            {
+                body.close();
+            }
+            catch( IOException ioe )
+            {
+                job.clientGone = true;
+                throw ioe;
+            }
+        }
+    }
+
+    /**
+     * The most recently used PNG images up to a total size.
+     */
+    static class PNGCache
+    {
+        final long maxBytes;
+        long bytes;
+        final LinkedHashMap< String, byte[] > entries = new LinkedHashMap< String, byte[] >( 16, 0.75f, true );
+
+        PNGCache( long maxBytes )
+        {
+            this.maxBytes = maxBytes;
+        }
+
+        /**
+         * @return false, if an image of this size (in bytes, uncompressed)
+         *         is not worth keeping a copy for the cache
+         */
+        boolean isCacheable( long rawBytes )
+        {
+            // PNG compresses the smooth images well, larger ones are still dropped in put
+            return maxBytes > 0 && rawBytes / 4 <= maxBytes;
+        }
+
+        synchronized byte[] get( String key )
+        {
+            return entries.get( key );
+        }
+
+        synchronized void put( String key, byte[] png )
+        {
+            if( png.length > maxBytes / 4 )
+                return;
+            byte[] old = entries.put( key, png );
+            if( old != null )
+                bytes -= old.length;
+            bytes += png.length;
+            Iterator< byte[] > it = entries.values().iterator();
+            while( bytes > maxBytes && it.hasNext() )
+            {
+                bytes -= it.next().length;
+                it.remove();
+            }
+        }
+
+        public synchronized String toString()
+        {
+            return "cache=" + entries.size() + " images/" + bytes / 1024 + "KB";
+        }
+    }
+
+    static Map< String, String > parseQuery( String rawQuery )
+    {
+        Map< String, String > query = new HashMap< String, String >();
+        if( rawQuery == null )
+            return query;
+        try
+        {
+            for( String pair : rawQuery.split( "&" ) )
+            {
+                int eq = pair.indexOf( '=' );
+                if( eq > 0 )
+                    query.put( URLDecoder.decode( pair.substring( 0, eq ), "UTF-8" ), URLDecoder.decode( pair.substring( eq + 1 ), "UTF-8" ) );
+            }
+        }
+        catch( UnsupportedEncodingException uee )
+        {
+            throw new RuntimeException( uee );
+        }
+        return query;
+    }
+
+    static String value( Map< String, String > query, String name, String defaultValue )
+    {
+        String v = query.get( name );
+        return v != null ? v : defaultValue;
+    }
+
+    static void sendText( HttpExchange exchange, int status, String text )
+            throws IOException
+    {
+        byte[] bytes = ( text + "\n" ).getBytes( "UTF-8" );
+        exchange.getResponseHeaders().set( "Content-Type", "text/plain; charset=utf-8" );
+        exchange.sendResponseHeaders( status, bytes.length );
+        OutputStream os = exchange.getResponseBody();
+        try
+        {
+            os.write( bytes );
+        }
+        finally
+        {
+            os.close();
+        }
+    }
+}
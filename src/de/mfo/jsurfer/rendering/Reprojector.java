@@ -0,0 +1,408 @@
+package de.mfo.jsurfer.rendering;
+
+import java.util.*;
+import javax.vecmath.*;
+
+import de.mfo.jsurf.algebra.*;
+import de.mfo.jsurf.rendering.*;
+import de.mfo.jsurf.rendering.cpu.*;
+import de.mfo.jsurf.rendering.cpu.clipping.*;
+
+/**
+ * Warps the last interactive frame to a new rotation and scale, so that the
+ * surface follows the mouse at once while the exact frame is still being
+ * rendered.
+ * jsurf does not report the depth of its pixels, so after a frame has been
+ * rendered, the rays through a coarse grid of its pixels are intersected
+ * with the surface once more (see @see{capture}) and the depth of the other
+ * pixels is interpolated from the grid. Each pixel showing the surface is
+ * then moved to the place where its surface point appears in the new view
+ * (see @see{reproject}). Parts of the surface which have been hidden in the
+ * last frame show the background until the exact frame arrives.
+ * The class is not thread safe, it is meant to be used by the render worker.
+ */
+public class Reprojector
+{
+    /** maximum number of grid points per row and per column */
+    static final int GRID_SIZE = 64;
+
+    /**
+     * The rays through the pixels of an image, which are affine functions of
+     * the pixel coordinates: ray( x, y ) = o + x * ox + y * oy + t * ( d + x * dx + y * dy )
+     */
+    static class PixelRays
+    {
+        final Vector3d o = new Vector3d();
+        final Vector3d ox = new Vector3d();
+        final Vector3d oy = new Vector3d();
+        final Vector3d d = new Vector3d();
+        final Vector3d dx = new Vector3d();
+        final Vector3d dy = new Vector3d();
+
+        PixelRays( RayCreator rc, int width, int height, boolean clippingSpace )
+        {
+            Ray r00 = ray( rc, 0, 0, width, height, clippingSpace );
+            Ray r10 = ray( rc, 1, 0, width, height, clippingSpace );
+            Ray r01 = ray( rc, 0, 1, width, height, clippingSpace );
+            o.set( r00.o );
+            d.set( r00.d );
+            ox.sub( r10.o, r00.o );
+            oy.sub( r01.o, r00.o );
+            dx.sub( r10.d, r00.d );
+            dy.sub( r01.d, r00.d );
+        }
+
+        static Ray ray( RayCreator rc, double x, double y, int width, int height, boolean clippingSpace )
+        {
+            double u = rc.transformU( x / ( width - 1.0 ) );
+            double v = rc.transformV( y / ( height - 1.0 ) );
+            return clippingSpace ? rc.createClippingSpaceRay( u, v ) : rc.createSurfaceSpaceRay( u, v );
+        }
+
+        /**
+         * @return true, if all rays start at the same point
+         */
+        boolean isPerspective()
+        {
+            return ox.lengthSquared() + oy.lengthSquared() < 1e-6 * ( dx.lengthSquared() + dy.lengthSquared() );
+        }
+
+        /**
+         * @return the matrix which maps a point p - o to ( t, t * x, t * y ),
+         *         if the rays start at the same point, or to ( x, y, t ), if
+         *         the rays are parallel, where p is on the ray through (x,y)
+         *         at t, or null, if there is no such matrix
+         */
+        Matrix3d projection()
+        {
+            Matrix3d m = new Matrix3d();
+            if( isPerspective() )
+            {
+                m.setColumn( 0, d );
+                m.setColumn( 1, dx );
+                m.setColumn( 2, dy );
+            }
+            else
+            {
+                m.setColumn( 0, ox );
+                m.setColumn( 1, oy );
+                m.setColumn( 2, d );
+            }
+            if( Math.abs( m.determinant() ) < 1e-300 )
+                return null;
+            m.invert();
+            return m;
+        }
+    }
+
+    String key;
+    int width;
+    int height;
+    int[] rgb;
+    int background;
+    double scale;
+    PixelRays rays;
+    PixelRays clippingRays;
+    int step;
+    int cols;
+    int rows;
+    /** ray parameter of the visible surface point at each grid point, NaN if the ray misses the surface */
+    double[] depth;
+
+    /** depth of the pixels of the reprojected image, +infinity for pixels no surface point has been moved to */
+    float[] targetDepth;
+    boolean[] covered;
+
+    /**
+     * @return a key that identifies the scene without its rotation and scale
+     */
+    public static String keyOf( Properties scene )
+    {
+        Properties p = new Properties();
+        p.putAll( scene );
+        p.remove( "rotation_matrix" );
+        p.remove( "scale_factor" );
+        return SceneKey.of( p );
+    }
+
+    /**
+     * @return true, if the last captured frame shows a scene with this key
+     */
+    public boolean isCaptureOf( String key )
+    {
+        return rgb != null && key.equals( this.key );
+    }
+
+    public int getWidth()
+    {
+        return width;
+    }
+
+    public int getHeight()
+    {
+        return height;
+    }
+
+    public void clear()
+    {
+        key = null;
+        rgb = null;
+        depth = null;
+        rays = null;
+        clippingRays = null;
+    }
+
+    /**
+     * Remembers a frame which has just been rendered by asr and computes the
+     * depth of the surface on a coarse grid of its pixels. The renderer must
+     * still have the settings of the frame.
+     * @param key the key of the scene of the frame, see @see{keyOf}
+     */
+    public void capture( CPUAlgebraicSurfaceRenderer asr, String key, int[] rgb, int width, int height )
+    {
+        if( width < 2 || height < 2 )
+        {
+            clear();
+            return;
+        }
+        RayCreator rc = RayCreator.createRayCreator( asr.getTransform(), asr.getSurfaceTransform(), asr.getCamera(), width, height );
+        RowSubstitutor substitutor = new TransformedPolynomialRowSubstitutor( asr.getSurfaceExpression(), rc.getXForSomeA(), rc.getYForSomeA(), rc.getZForSomeA() );
+        RealRootFinder rootFinder = asr.getSurfaceTotalDegree() < 2 ? new ClosedFormRootFinder() : new DescartesRootFinder( false );
+        Clipper clipper = new ClipToSphere();
+        double eye = rc.getEyeLocationOnRay();
+
+        int step = Math.max( 2, ( Math.max( width, height ) + GRID_SIZE - 1 ) / GRID_SIZE );
+        int cols = ( width + step - 2 ) / step + 1;
+        int rows = ( height + step - 2 ) / step + 1;
+        double[] depth = new double[ cols * rows ];
+        for( int r = 0; r < rows; r++ )
+        {
+            int y = Math.min( r * step, height - 1 );
+            ColumnSubstitutor row = substitutor.setV( rc.transformV( y / ( height - 1.0 ) ) );
+            for( int c = 0; c < cols; c++ )
+                depth[ r * cols + c ] = firstHit( rc, row, clipper, rootFinder, Math.min( c * step, width - 1 ), y, width, height, eye );
+        }
+
+        if( this.rgb == null || this.rgb.length != width * height )
+            this.rgb = new int[ width * height ];
+        System.arraycopy( rgb, 0, this.rgb, 0, width * height );
+        this.key = key;
+        this.width = width;
+        this.height = height;
+        this.background = asr.getBackgroundColor().get().getRGB() & 0xffffff;
+        this.scale = asr.getSurfaceTransform().getScale();
+        this.rays = new PixelRays( rc, width, height, false );
+        this.clippingRays = new PixelRays( rc, width, height, true );
+        this.step = step;
+        this.cols = cols;
+        this.rows = rows;
+        this.depth = depth;
+    }
+
+    /**
+     * Intersects the ray through a pixel with the surface like jsurf does.
+     * @return the ray parameter of the first visible intersection or NaN
+     */
+    static double firstHit( RayCreator rc, ColumnSubstitutor row, Clipper clipper, RealRootFinder rootFinder, int x, int y, int width, int height, double eye )
+    {
+        List< Vector2d > intervals = clipper.clipRay( PixelRays.ray( rc, x, y, width, height, true ) );
+        if( intervals.isEmpty() )
+            return Double.NaN;
+        UnivariatePolynomial p = row.setU( rc.transformU( x / ( width - 1.0 ) ) );
+        for( Vector2d interval : intervals )
+        {
+            if( interval.x < eye && eye < interval.y )
+                interval.x = eye;
+            double t = rootFinder.findFirstRootIn( p, interval.x, interval.y );
+            if( !Double.isNaN( t ) )
+                return t;
+        }
+        return Double.NaN;
+    }
+
+    /**
+     * Interpolates the depth of a pixel from the surrounding grid points.
+     * Next to the silhouette of the surface, where some of them miss the
+     * surface, the depth of the closest grid point hitting it is taken.
+     */
+    double depthAt( int x, int y )
+    {
+        int c0 = x / step;
+        int r0 = y / step;
+        int c1 = Math.min( c0 + 1, cols - 1 );
+        int r1 = Math.min( r0 + 1, rows - 1 );
+        int x0 = c0 * step;
+        int y0 = r0 * step;
+        int x1 = Math.min( c1 * step, width - 1 );
+        int y1 = Math.min( r1 * step, height - 1 );
+        double fx = x1 > x0 ? ( x - x0 ) / ( double ) ( x1 - x0 ) : 0.0;
+        double fy = y1 > y0 ? ( y - y0 ) / ( double ) ( y1 - y0 ) : 0.0;
+        double d00 = depth[ r0 * cols + c0 ];
+        double d10 = depth[ r0 * cols + c1 ];
+        double d01 = depth[ r1 * cols + c0 ];
+        double d11 = depth[ r1 * cols + c1 ];
+        if( !Double.isNaN( d00 + d10 + d01 + d11 ) )
+            return ( 1 - fy ) * ( ( 1 - fx ) * d00 + fx * d10 ) + fy * ( ( 1 - fx ) * d01 + fx * d11 );
+
+        double[] ds = { d00, d10, d01, d11 };
+        double[] dist = { fx + fy, 1 - fx + fy, fx + 1 - fy, 2 - fx - fy };
+        double best = Double.NaN;
+        double bestDist = Double.POSITIVE_INFINITY;
+        for( int i = 0; i < 4; i++ )
+        {
+            if( !Double.isNaN( ds[ i ] ) && dist[ i ] < bestDist )
+            {
+                best = ds[ i ];
+                bestDist = dist[ i ];
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Draws the captured frame as it is seen with another rotation and scale.
+     * @param dst receives getWidth() x getHeight() pixels
+     * @return false, if there is no captured frame
+     */
+    public boolean reproject( Matrix4d transform, Matrix4d surfaceTransform, Camera camera, int[] dst )
+    {
+        if( rgb == null )
+            return false;
+        RayCreator rc = RayCreator.createRayCreator( transform, surfaceTransform, camera, width, height );
+        PixelRays target = new PixelRays( rc, width, height, false );
+        PixelRays clipping = new PixelRays( rc, width, height, true );
+        Matrix3d projection = target.projection();
+        if( projection == null )
+            return false;
+        boolean perspective = target.isPerspective();
+        double eye = rc.getEyeLocationOnRay();
+
+        // when zooming in, every pixel has to cover several pixels of the new image
+        double magnification = scale / surfaceTransform.getScale();
+        int footprint = magnification > 1.0 ? ( int ) Math.ceil( magnification - 1e-6 ) : 1;
+
+        int n = width * height;
+        if( targetDepth == null || targetDepth.length != n )
+        {
+            targetDepth = new float[ n ];
+            covered = new boolean[ n ];
+        }
+        Arrays.fill( targetDepth, Float.POSITIVE_INFINITY );
+
+        PixelRays src = rays;
+        Vector3d p = new Vector3d();
+        for( int y = 0; y < height; y++ )
+        {
+            for( int x = 0; x < width; x++ )
+            {
+                int color = rgb[ y * width + x ];
+                if( ( color & 0xffffff ) == background )
+                    continue;
+                double t = depthAt( x, y );
+                if( Double.isNaN( t ) )
+                    continue;
+
+                // the surface point of the pixel relative to the ray origin of the new view
+                p.x = src.o.x + x * src.ox.x + y * src.oy.x + t * ( src.d.x + x * src.dx.x + y * src.dy.x ) - target.o.x;
+                p.y = src.o.y + x * src.ox.y + y * src.oy.y + t * ( src.d.y + x * src.dx.y + y * src.dy.y ) - target.o.y;
+                p.z = src.o.z + x * src.ox.z + y * src.oy.z + t * ( src.d.z + x * src.dx.z + y * src.dy.z ) - target.o.z;
+                projection.transform( p );
+                double tx, ty, s;
+                if( perspective )
+                {
+                    if( p.x <= 0.0 )
+                        continue;
+                    s = p.x;
+                    tx = p.y / s;
+                    ty = p.z / s;
+                }
+                else
+                {
+                    tx = p.x;
+                    ty = p.y;
+                    s = p.z;
+                }
+                // the interpolated depth may put points slightly outside of the clipping sphere,
+                // so only those points are clipped which are moved further outside by the new view
+                if( s < eye )
+                    continue;
+                double distanceSq = clippingDistanceSq( clipping, tx, ty, s );
+                if( distanceSq > 1.0 && distanceSq > clippingDistanceSq( clippingRays, x, y, t ) + 1e-9 )
+                    continue;
+
+                int x0 = ( int ) Math.floor( tx + 0.5 ) - ( footprint - 1 ) / 2;
+                int y0 = ( int ) Math.floor( ty + 0.5 ) - ( footprint - 1 ) / 2;
+                for( int v = Math.max( 0, y0 ); v < Math.min( height, y0 + footprint ); v++ )
+                {
+                    for( int u = Math.max( 0, x0 ); u < Math.min( width, x0 + footprint ); u++ )
+                    {
+                        int i = v * width + u;
+                        if( s < targetDepth[ i ] )
+                        {
+                            targetDepth[ i ] = ( float ) s;
+                            dst[ i ] = color;
+                        }
+                    }
+                }
+            }
+        }
+        fillCracks( dst );
+        return true;
+    }
+
+    /**
+     * @return the squared distance of the point on the ray through (x,y) at t from the center of the clipping sphere
+     */
+    static double clippingDistanceSq( PixelRays c, double x, double y, double t )
+    {
+        double px = c.o.x + x * c.ox.x + y * c.oy.x + t * ( c.d.x + x * c.dx.x + y * c.dy.x );
+        double py = c.o.y + x * c.ox.y + y * c.oy.y + t * ( c.d.y + x * c.dx.y + y * c.dy.y );
+        double pz = c.o.z + x * c.ox.z + y * c.oy.z + t * ( c.d.z + x * c.dx.z + y * c.dy.z );
+        return px * px + py * py + pz * pz;
+    }
+
+    /**
+     * Closes the gaps which open between neighboring pixels when the surface
+     * is turned towards the viewer: an empty pixel surrounded mostly by
+     * covered pixels takes the color of the frontmost of them. The remaining
+     * empty pixels are set to the background color.
+     */
+    void fillCracks( int[] dst )
+    {
+        for( int i = 0; i < targetDepth.length; i++ )
+            covered[ i ] = targetDepth[ i ] != Float.POSITIVE_INFINITY;
+        for( int y = 0; y < height; y++ )
+        {
+            for( int x = 0; x < width; x++ )
+            {
+                int i = y * width + x;
+                if( covered[ i ] )
+                    continue;
+                int neighbors = 0;
+                int front = -1;
+                for( int v = Math.max( 0, y - 1 ); v <= Math.min( height - 1, y + 1 ); v++ )
+                {
+                    for( int u = Math.max( 0, x - 1 ); u <= Math.min( width - 1, x + 1 ); u++ )
+                    {
+                        int j = v * width + u;
+                        if( covered[ j ] )
+                        {
+                            neighbors++;
+                            if( front < 0 || targetDepth[ j ] < targetDepth[ front ] )
+                                front = j;
+                        }
+                    }
+                }
+                if( neighbors >= 5 )
+                {
+                    dst[ i ] = dst[ front ];
+                    targetDepth[ i ] = targetDepth[ front ];
+                }
+                else
+                {
+                    dst[ i ] = 0xff000000 | background;
+                }
+            }
+        }
+    }
+}
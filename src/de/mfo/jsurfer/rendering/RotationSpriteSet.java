@@ -0,0 +1,148 @@
+package de.mfo.jsurfer.rendering;
+
+import java.util.*;
+import javax.vecmath.*;
+
+/**
+ * A set of small images ("sprites") of a scene, which has been rendered for
+ * view directions evenly distributed over the sphere. Any rotation of the
+ * scene is approximated by the sprite whose view direction is closest,
+ * turned in the image plane to compensate for the remaining rotation about
+ * the view axis. So a preview of every rotation can be shown immediately,
+ * which only differs from the exact image by the slightly different view
+ * direction and the shading of the (fixed) light sources.
+ */
+public class RotationSpriteSet extends IdleRenderer
+{
+    final String key;
+    final Vector3d[] directions;
+    final Matrix4d[] rotations;
+    final int[][] sprites;
+
+    /**
+     * @param scene the scene properties as written to .jsurf files, the rotation is ignored
+     * @param size the edge length of the square sprites
+     * @param count the number of view directions
+     */
+    public RotationSpriteSet( Properties scene, int size, int count )
+    {
+        super( scene, size, count );
+        this.key = keyOf( scene );
+        this.directions = new Vector3d[ count ];
+        this.rotations = new Matrix4d[ count ];
+        this.sprites = new int[ count ][];
+
+        // points of a Fibonacci spiral are distributed almost evenly over the sphere
+        double goldenAngle = Math.PI * ( 3.0 - Math.sqrt( 5.0 ) );
+        for( int i = 0; i < count; i++ )
+        {
+            double z = 1.0 - ( 2.0 * i + 1.0 ) / count;
+            double r = Math.sqrt( 1.0 - z * z );
+            directions[ i ] = new Vector3d( r * Math.cos( goldenAngle * i ), r * Math.sin( goldenAngle * i ), z );
+            rotations[ i ] = rotationFromViewAxis( directions[ i ] );
+        }
+    }
+
+    /**
+     * @return a key that identifies the scene without its rotation, i.e. two
+     *         scenes with the same key only differ by their rotation
+     */
+    public static String keyOf( Properties scene )
+    {
+        Properties p = new Properties();
+        p.putAll( scene );
+        p.remove( "rotation_matrix" );
+        return SceneKey.of( p );
+    }
+
+    public String getKey()
+    {
+        return key;
+    }
+
+    protected void setUp( OffscreenRenderer or, int i )
+    {
+        or.setRotation( rotations[ i ] );
+    }
+
+    protected synchronized void rendered( int i, int[] rgb )
+    {
+        sprites[ i ] = rgb;
+    }
+
+    /**
+     * Draws a preview of the scene for the given rotation into the packed RGB
+     * buffer (row 0 is the bottom row) of an image of size width x height.
+     * @return false, if there is no rendered sprite yet
+     */
+    public boolean drawPreview( Matrix4d rotation, int[] rgbBuffer, int width, int height )
+    {
+        // the rotation maps camera to surface coordinates, so the view axis is its third column
+        Vector3d dir = new Vector3d( rotation.m02, rotation.m12, rotation.m22 );
+        int best = -1;
+        double bestDot = Double.NEGATIVE_INFINITY;
+        int[] sprite = null;
+        synchronized( this )
+        {
+            for( int i = 0; i < sprites.length; i++ )
+            {
+                if( sprites[ i ] != null && directions[ i ].dot( dir ) > bestDot )
+                {
+                    best = i;
+                    bestDot = directions[ i ].dot( dir );
+                }
+            }
+            if( best < 0 )
+                return false;
+            sprite = sprites[ best ];
+        }
+
+        // the remaining rotation is (almost) a rotation about the view axis
+        Matrix3d r = new Matrix3d();
+        rotation.getRotationScale( r );
+        r.transpose();
+        Matrix3d ri = new Matrix3d();
+        rotations[ best ].getRotationScale( ri );
+        r.mul( ri );
+        double angle = Math.atan2( r.m10, r.m00 );
+        double cos = Math.cos( angle ), sin = Math.sin( angle );
+
+        // the camera shows the same range vertically at all sizes, the sprite is square
+        double halfW = ( width - 1 ) / 2.0, halfH = ( height - 1 ) / 2.0;
+        double unit = Math.max( halfH, 0.5 );
+        double halfS = ( size - 1 ) / 2.0;
+        for( int y = 0; y < height; y++ )
+        {
+            double v = ( y - halfH ) / unit;
+            int row = y * width;
+            for( int x = 0; x < width; x++ )
+            {
+                double u = ( x - halfW ) / unit;
+                int sx = ( int ) Math.round( halfS + halfS * ( cos * u + sin * v ) );
+                int sy = ( int ) Math.round( halfS + halfS * ( -sin * u + cos * v ) );
+                rgbBuffer[ row + x ] = sx >= 0 && sx < size && sy >= 0 && sy < size ? sprite[ sy * size + sx ] : background;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return a rotation that maps the positive z axis (the axis pointing
+     *         towards the viewer) onto dir, i.e. a rotation of the scene that
+     *         shows the surface as seen from direction dir
+     */
+    static Matrix4d rotationFromViewAxis( Vector3d dir )
+    {
+        Vector3d z = new Vector3d( 0, 0, 1 );
+        Vector3d axis = new Vector3d();
+        axis.cross( z, dir );
+        double angle = Math.acos( Math.max( -1.0, Math.min( 1.0, dir.dot( z ) ) ) );
+        if( axis.length() < 1e-9 )
+            axis.set( 1, 0, 0 ); // dir is parallel to the z axis
+        axis.normalize();
+        Matrix4d m = new Matrix4d();
+        m.setIdentity();
+        m.set( new AxisAngle4d( axis, angle ) );
+        return m;
+    }
+}
@@ -0,0 +1,55 @@
+package de.mfo.jsurfer.rendering;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Computes a canonical content hash of a scene given as jsurf properties.
+ * Key order, comments and the time stamp written by @see{Properties#store}
+ * do not influence the hash, so two descriptions of the same scene always
+ * map to the same key.
+ */
+public class SceneKey
+{
+    /**
+     * @param props the jsurf properties of the scene
+     * @param extra additional settings that influence the result, e.g. the
+     *        image size or the anti-aliasing mode
+     * @return the hex encoded SHA-1 hash of the scene and the extra settings
+     */
+    public static String of( Properties props, String... extra )
+    {
+        TreeMap< String, String > sorted = new TreeMap< String, String >();
+        for( String name : props.stringPropertyNames() )
+            sorted.put( name, props.getProperty( name ).trim() );
+
+        StringBuilder sb = new StringBuilder();
+        for( Map.Entry< String, String > entry : sorted.entrySet() )
+            sb.append( entry.getKey() ).append( '=' ).append( entry.getValue() ).append( '\n' );
+        for( String s : extra )
+            sb.append( '#' ).append( s ).append( '\n' );
+        return sha1( sb.toString() );
+    }
+
+    static String sha1( String s )
+    {
+        try
+        {
+            byte[] digest = MessageDigest.getInstance( "SHA-1" ).digest( s.getBytes( "UTF-8" ) );
+            StringBuilder hex = new StringBuilder( 2 * digest.length );
+            for( byte b : digest )
+                hex.append( Character.forDigit( ( b >> 4 ) & 0xf, 16 ) ).append( Character.forDigit( b & 0xf, 16 ) );
+            return hex.toString();
+        }
+        catch( NoSuchAlgorithmException nsae )
+        {
+            throw new RuntimeException( nsae );
+        }
+        catch( UnsupportedEncodingException uee )
+        {
+            throw new RuntimeException( uee );
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package de.mfo.jsurfer.rendering;
+
+import java.io.*;
+import java.util.*;
+
+import de.mfo.jsurf.rendering.cpu.*;
+import static de.mfo.jsurf.rendering.cpu.CPUAlgebraicSurfaceRenderer.AntiAliasingMode;
+
+/**
+ * Generates the *_icon.png thumbnails of the gallery. The thumbnails are
+ * rendered in parallel by a @see{BatchRenderer} with one renderer per core.
+ * A thumbnail is only regenerated if the @see{SceneKey} of its .jsurf file
+ * (or the thumbnail settings) changed since the last run. The keys are kept
+ * in a manifest file next to the thumbnails.
+ */
+public class ThumbnailGenerator
+{
+    public static final String MANIFEST_NAME = ".thumbnails";
+
+    int size = 120;
+    AntiAliasingMode aam = AntiAliasingMode.ADAPTIVE_SUPERSAMPLING;
+    AntiAliasingPattern aap = AntiAliasingPattern.RG_2x2;
+    int numWorkers = Runtime.getRuntime().availableProcessors();
+    boolean force = false;
+
+    public void setSize( int size ) { this.size = size; }
+    public void setNumWorkers( int numWorkers ) { this.numWorkers = numWorkers; }
+
+    /**
+     * @param force regenerate all thumbnails regardless of the manifest
+     */
+    public void setForce( boolean force ) { this.force = force; }
+
+    /**
+     * @return the number of thumbnails that could not be generated
+     */
+    public int generate( String jsurf_folder, String png_folder )
+            throws IOException, InterruptedException
+    {
+        File jsurfDir = new File( jsurf_folder );
+        File pngDir = new File( png_folder );
+        if( !jsurfDir.isDirectory() )
+            throw new FileNotFoundException( jsurfDir + " does not exist or is not a directory" );
+        pngDir.mkdirs();
+
+        File manifestFile = new File( pngDir, MANIFEST_NAME );
+        Properties manifest = new Properties();
+        if( manifestFile.exists() && !force )
+        {
+            InputStream is = new FileInputStream( manifestFile );
+            try { manifest.load( is ); } finally { is.close(); }
+        }
+
+        String settings = size + "x" + size + " " + aam + " " + aap;
+        BatchRenderer br = new BatchRenderer( size, size, aam, aap, numWorkers );
+        // the gallery may be explored while the thumbnails are generated
+        br.setPriority( RenderScheduler.Priority.BACKGROUND );
+        Map< BatchRenderer.Job, String > newKeys = new HashMap< BatchRenderer.Job, String >();
+        int skipped = 0;
+        for( File jsurf_file : BatchRenderer.collectInputs( Collections.singletonList( jsurf_folder ) ) )
+        {
+            String filename = jsurf_file.getName();
+            String name = filename.substring( 0, filename.length() - 6 );
+            File png_file = new File( pngDir, name + "_icon.png" );
+
+            Properties props = new Properties();
+            InputStream is = new FileInputStream( jsurf_file );
+            try { props.load( is ); } finally { is.close(); }
+            String key = SceneKey.of( props, settings );
+
+            if( png_file.exists() && key.equals( manifest.getProperty( name ) ) )
+            {
+                skipped++;
+                continue;
+            }
+            br.addJob( jsurf_file, png_file );
+            newKeys.put( br.getJobs().get( br.getJobs().size() - 1 ), key );
+        }
+        System.out.println( "thumbnails up to date: " + skipped + ", to be generated: " + newKeys.size() );
+
+        int failed = 0;
+        if( !newKeys.isEmpty() )
+        {
+            failed = br.run();
+            Set< BatchRenderer.Job > failedJobs = br.getFailedJobs();
+            for( Map.Entry< BatchRenderer.Job, String > entry : newKeys.entrySet() )
+            {
+                String filename = entry.getKey().input.getName();
+                String name = filename.substring( 0, filename.length() - 6 );
+                if( failedJobs.contains( entry.getKey() ) )
+                    manifest.remove( name );
+                else
+                    manifest.setProperty( name, entry.getValue() );
+            }
+            FileOutputStream fos = new FileOutputStream( manifestFile );
+            try { manifest.store( fos, "SceneKeys of the jsurf files the thumbnails were generated from" ); } finally { fos.close(); }
+        }
+        return failed;
+    }
+
+    /**
+     * Usage: ThumbnailGenerator [--force] jsurf_folder [png_folder]
+     */
+    public static void main( String[] args )
+    {
+        ThumbnailGenerator tg = new ThumbnailGenerator();
+        List< String > folders = new ArrayList< String >();
+        for( String arg : args )
+        {
+            if( arg.equals( "--force" ) )
+                tg.setForce( true );
+            else
+                folders.add( arg );
+        }
+        if( folders.isEmpty() || folders.size() > 2 )
+        {
+            System.err.println( "usage: ThumbnailGenerator [--force] jsurf_folder [png_folder]" );
+            System.exit( -1 );
+        }
+        int exitCode;
+        try
+        {
+            exitCode = tg.generate( folders.get( 0 ), folders.get( folders.size() - 1 ) ) == 0 ? 0 : 1;
+        }
+        catch( Exception e )
+        {
+            System.err.println( e );
+            exitCode = -1;
+        }
+        // report failed thumbnails to the calling build script
+        System.exit( exitCode );
+    }
+}
@@ -0,0 +1,112 @@
+package de.mfo.jsurfer.util;
+
+/**
+ * Records durations in exponentially growing buckets, so the memory needed is
+ * constant no matter how many values are recorded. The percentiles are
+ * estimated by the upper bound of the bucket they fall into, which is at most
+ * 19% (a factor of 2^(1/4)) too high. Instances are thread safe.
+ */
+public class LatencyHistogram implements LatencyHistogramMBean
+{
+    /** upper bound of the first bucket in nanoseconds (0.1ms) */
+    static final double FIRST_BOUND = 100000.0;
+    static final double BUCKET_FACTOR = Math.pow( 2.0, 0.25 );
+    /** the last bucket starts at about 0.1ms * 2^20, i.e. after more than 100s */
+    static final int NUM_BUCKETS = 82;
+
+    long[] buckets = new long[ NUM_BUCKETS ];
+    long count;
+    long sum;
+    long min;
+    long max;
+    long last;
+
+    public LatencyHistogram()
+    {
+        reset();
+    }
+
+    public synchronized void record( long nanos )
+    {
+        if( nanos < 0 )
+            nanos = 0;
+        int bucket = nanos <= FIRST_BOUND ? 0 : ( int ) Math.ceil( Math.log( nanos / FIRST_BOUND ) / Math.log( BUCKET_FACTOR ) );
+        buckets[ Math.min( bucket, NUM_BUCKETS - 1 ) ]++;
+        count++;
+        sum += nanos;
+        min = Math.min( min, nanos );
+        max = Math.max( max, nanos );
+        last = nanos;
+    }
+
+    public synchronized void reset()
+    {
+        java.util.Arrays.fill( buckets, 0 );
+        count = 0;
+        sum = 0;
+        min = Long.MAX_VALUE;
+        max = 0;
+        last = 0;
+    }
+
+    public synchronized long getCount()
+    {
+        return count;
+    }
+
+    public synchronized double getMeanMillis()
+    {
+        return count == 0 ? 0.0 : toMillis( ( double ) sum / count );
+    }
+
+    public synchronized double getMinMillis()
+    {
+        return count == 0 ? 0.0 : toMillis( min );
+    }
+
+    public synchronized double getMaxMillis()
+    {
+        return toMillis( max );
+    }
+
+    public synchronized double getLastMillis()
+    {
+        return toMillis( last );
+    }
+
+    public double getPercentile50Millis() { return getPercentileMillis( 0.5 ); }
+    public double getPercentile90Millis() { return getPercentileMillis( 0.9 ); }
+    public double getPercentile99Millis() { return getPercentileMillis( 0.99 ); }
+
+    /**
+     * @param p a value between 0 and 1
+     * @return an estimate of the p-th quantile of the recorded values
+     */
+    public synchronized double getPercentileMillis( double p )
+    {
+        if( count == 0 )
+            return 0.0;
+        long rank = Math.max( 1, ( long ) Math.ceil( p * count ) );
+        long seen = 0;
+        for( int i = 0; i < NUM_BUCKETS; i++ )
+        {
+            seen += buckets[ i ];
+            if( seen >= rank )
+            {
+                // the bucket bound is only an estimate, so never report more than the actual maximum
+                return toMillis( Math.min( max, FIRST_BOUND * Math.pow( BUCKET_FACTOR, i ) ) );
+            }
+        }
+        return toMillis( max );
+    }
+
+    static double toMillis( double nanos )
+    {
+        return nanos / 1000000.0;
+    }
+
+    public synchronized String toString()
+    {
+        return "n=" + count + ", mean=" + getMeanMillis() + "ms, p50=" + getPercentile50Millis() + "ms, p99=" + getPercentile99Millis() + "ms, max=" + getMaxMillis() + "ms";
+    }
+}
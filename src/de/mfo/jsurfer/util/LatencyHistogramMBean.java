@@ -0,0 +1,17 @@
+package de.mfo.jsurfer.util;
+
+/**
+ * JMX view of a @see{LatencyHistogram}. All times are in milliseconds.
+ */
+public interface LatencyHistogramMBean
+{
+    public long getCount();
+    public double getMeanMillis();
+    public double getMinMillis();
+    public double getMaxMillis();
+    public double getLastMillis();
+    public double getPercentile50Millis();
+    public double getPercentile90Millis();
+    public double getPercentile99Millis();
+    public void reset();
+}
@@ -9,80 +9,176 @@ import java.awt.Point;
 import javax.vecmath.*;
 
 /**
- *
+ * Accumulates the rotation of a mouse (or touch) drag. The mouse events
+ * only update the rotation in place, so they neither allocate anything nor
+ * wait for the renderer, and any number of events between two frames is
+ * coalesced into the latest rotation. The renderer copies the rotation into
+ * its own matrix via @see{getRotation(Matrix4d)} and may extrapolate it to
+ * the time when its frame will be shown, based on the recent speed of the
+ * drag.
+ * The dragger is thread safe.
  * @author Christian Stussak <christian at knorf.de>
  */
 public class RotateSphericalDragger
 {
-    Point lastLocation;
-    Matrix4d rotation;
+    /** extrapolation is limited to this time span in nanoseconds */
+    static final long MAX_EXTRAPOLATION = 150000000L;
+    /** weight of the newest sample in the smoothed drag speed */
+    static final double SPEED_SMOOTHING = 0.5;
+    /** the drag speed is sampled over at least this time span in nanoseconds */
+    static final long MIN_SAMPLE_INTERVAL = 8000000L;
+
+    int lastX;
+    int lastY;
+    long lastTime;
+    int sampleX;
+    int sampleY;
+    long sampleTime;
+    /** smoothed drag speed in pixels per nanosecond, 0 if the drag has stopped */
+    double xPixelsPerNano;
+    double yPixelsPerNano;
+    boolean dragging;
+    final Matrix4d rotation;
+    final Matrix4d tmp;
     double xSpeed;
     double ySpeed;
-    
+
     public RotateSphericalDragger()
     {
         this( 1, 1 );
     }
-    
+
     public RotateSphericalDragger( double xSpeed, double ySpeed )
     {
-        lastLocation = new Point();
         rotation = new Matrix4d();
         rotation.setIdentity();
+        tmp = new Matrix4d();
         this.xSpeed = xSpeed;
         this.ySpeed = ySpeed;
     }
-    
+
     public void startDrag( Point p )
     {
-        lastLocation = new Point( p );
+        startDrag( p.x, p.y );
     }
-    
+
+    public synchronized void startDrag( int x, int y )
+    {
+        lastX = x;
+        lastY = y;
+        lastTime = System.nanoTime();
+        sampleX = x;
+        sampleY = y;
+        sampleTime = lastTime;
+        xPixelsPerNano = 0.0;
+        yPixelsPerNano = 0.0;
+        dragging = true;
+    }
+
     public void dragTo( Point p )
     {
-        double xAngle = ( lastLocation.x - p.x ) * xSpeed;
-        double yAngle = ( lastLocation.y - p.y ) * ySpeed;
-        
-        Matrix4d rotX = new Matrix4d();
-        rotX.setIdentity();
-        rotX.rotX( ( Math.PI / 180.0 ) * yAngle );
-
-        Matrix4d rotY = new Matrix4d();
-        rotY.setIdentity();
-        rotY.rotY( ( Math.PI / 180.0 ) * xAngle );
-        
-        rotation.mul( rotX );
-        rotation.mul( rotY );
-        
-        lastLocation = new Point( p );
-    }
-    
-    public Matrix4d getRotation()
+        dragTo( p.x, p.y );
+    }
+
+    public synchronized void dragTo( int x, int y )
+    {
+        long now = System.nanoTime();
+        int dx = lastX - x;
+        int dy = lastY - y;
+        rotate( rotation, dx, dy );
+
+        // events may arrive in bursts, so the speed is not measured between single events
+        long dt = now - sampleTime;
+        if( dt >= MIN_SAMPLE_INTERVAL )
+        {
+            xPixelsPerNano = SPEED_SMOOTHING * ( sampleX - x ) / dt + ( 1.0 - SPEED_SMOOTHING ) * xPixelsPerNano;
+            yPixelsPerNano = SPEED_SMOOTHING * ( sampleY - y ) / dt + ( 1.0 - SPEED_SMOOTHING ) * yPixelsPerNano;
+            sampleX = x;
+            sampleY = y;
+            sampleTime = now;
+        }
+        lastX = x;
+        lastY = y;
+        lastTime = now;
+    }
+
+    /**
+     * Ends the drag, the rotation is not extrapolated anymore.
+     */
+    public synchronized void stopDrag()
+    {
+        dragging = false;
+        xPixelsPerNano = 0.0;
+        yPixelsPerNano = 0.0;
+    }
+
+    /**
+     * Applies the rotation of a drag by dx, dy pixels to m.
+     */
+    void rotate( Matrix4d m, double dx, double dy )
+    {
+        tmp.setIdentity();
+        tmp.rotX( ( Math.PI / 180.0 ) * dy * ySpeed );
+        m.mul( tmp );
+        tmp.setIdentity();
+        tmp.rotY( ( Math.PI / 180.0 ) * dx * xSpeed );
+        m.mul( tmp );
+    }
+
+    public synchronized Matrix4d getRotation()
     {
         return new Matrix4d( rotation );
     }
-    
-    public void setRotation( Matrix4d m )
+
+    /**
+     * Copies the current rotation into m.
+     * @return m
+     */
+    public synchronized Matrix4d getRotation( Matrix4d m )
     {
-        rotation = new Matrix4d( m );
+        m.set( rotation );
+        return m;
     }
-    
-    public double getXSpeed()
+
+    /**
+     * Copies the rotation that is expected at the given time into m, i.e. the
+     * current rotation continued with the recent speed of the drag.
+     * @param nanos a time in terms of System.nanoTime()
+     * @return m
+     */
+    public synchronized Matrix4d getRotation( Matrix4d m, long nanos )
+    {
+        m.set( rotation );
+        // a drag that has paused is not extrapolated
+        if( dragging && System.nanoTime() - lastTime < MAX_EXTRAPOLATION )
+        {
+            long dt = Math.max( 0, Math.min( MAX_EXTRAPOLATION, nanos - lastTime ) );
+            rotate( m, xPixelsPerNano * dt, yPixelsPerNano * dt );
+        }
+        return m;
+    }
+
+    public synchronized void setRotation( Matrix4d m )
+    {
+        rotation.set( m );
+    }
+
+    public synchronized double getXSpeed()
     {
         return xSpeed;
     }
-    
-    public void setXSpeed( double xSpeed )
+
+    public synchronized void setXSpeed( double xSpeed )
     {
         this.xSpeed = xSpeed;
     }
-    
-    public double getYSpeed()
+
+    public synchronized double getYSpeed()
     {
         return ySpeed;
     }
-    
-    public void setYSpeed( double ySpeed )
+
+    public synchronized void setYSpeed( double ySpeed )
     {
         this.ySpeed = ySpeed;
     }
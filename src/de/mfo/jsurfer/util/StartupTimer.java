@@ -0,0 +1,168 @@
+package de.mfo.jsurfer.util;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.text.SimpleDateFormat;
+import java.util.*;
+
+/**
+ * Records the phases of the start of the program, which may run in different
+ * threads, relative to the start of the virtual machine. When the program has
+ * become interactive (see @see{interactive}), a breakdown of the phases is
+ * printed and, if a log file has been set, a summary line is appended to it,
+ * so the time to interactive can be tracked over many starts.
+ * Instances are not needed, all methods are static and thread safe.
+ */
+public class StartupTimer
+{
+    static class Phase
+    {
+        final String name;
+        final String thread;
+        final long start;
+        long end = -1;
+
+        Phase( String name, String thread, long start )
+        {
+            this.name = name;
+            this.thread = thread;
+            this.start = start;
+        }
+    }
+
+    /** System.nanoTime() at the start of the virtual machine */
+    static final long origin;
+    static
+    {
+        long sinceStart = System.currentTimeMillis() - ManagementFactory.getRuntimeMXBean().getStartTime();
+        origin = System.nanoTime() - sinceStart * 1000000L;
+    }
+
+    static final List< Phase > phases = new ArrayList< Phase >();
+    static long interactive = -1;
+    static File logFile;
+
+    /**
+     * Starts a phase in the calling thread.
+     * @return the time since the start of the virtual machine in nanoseconds
+     */
+    public static synchronized long begin( String name )
+    {
+        long now = System.nanoTime() - origin;
+        phases.add( new Phase( name, Thread.currentThread().getName(), now ) );
+        return now;
+    }
+
+    /**
+     * Ends the most recently started phase of this name.
+     * @return the time since the start of the virtual machine in nanoseconds
+     */
+    public static synchronized long end( String name )
+    {
+        long now = System.nanoTime() - origin;
+        for( int i = phases.size() - 1; i >= 0; i-- )
+        {
+            Phase p = phases.get( i );
+            if( p.name.equals( name ) && p.end < 0 )
+            {
+                p.end = now;
+                break;
+            }
+        }
+        return now;
+    }
+
+    /**
+     * @param f the file a summary of each start is appended to or null
+     */
+    public static synchronized void setLogFile( File f )
+    {
+        logFile = f;
+    }
+
+    /**
+     * Marks the program as interactive, e.g. when the first image has been
+     * shown. Only the first call has an effect: it prints the report and
+     * appends it to the log file.
+     */
+    public static void interactive()
+    {
+        String report;
+        String summary;
+        File f;
+        synchronized( StartupTimer.class )
+        {
+            if( interactive >= 0 )
+                return;
+            interactive = System.nanoTime() - origin;
+            report = report();
+            summary = summary();
+            f = logFile;
+        }
+        System.out.print( report );
+        if( f == null )
+            return;
+        try
+        {
+            Writer w = new OutputStreamWriter( new FileOutputStream( f, true ), "UTF-8" );
+            try
+            {
+                w.write( summary );
+            }
+            finally
+            {
+                w.close();
+            }
+        }
+        catch( IOException ioe )
+        {
+            System.err.println( "unable to write startup times to " + f + ": " + ioe );
+        }
+    }
+
+    /**
+     * @return the time from the start of the virtual machine until it has
+     *         become interactive in milliseconds or -1
+     */
+    public static synchronized long getTimeToInteractive()
+    {
+        return interactive < 0 ? -1 : interactive / 1000000;
+    }
+
+    /**
+     * @return a table of the phases ordered by their start
+     */
+    public static synchronized String report()
+    {
+        List< Phase > sorted = new ArrayList< Phase >( phases );
+        Collections.sort( sorted, new Comparator< Phase >() {
+            public int compare( Phase p, Phase q ) { return p.start < q.start ? -1 : ( p.start == q.start ? 0 : 1 ); }
+        } );
+        StringBuilder sb = new StringBuilder( "startup times (ms since the start of the virtual machine):\n" );
+        sb.append( String.format( "  %7s %7s %7s  %-28s %s\n", "start", "end", "took", "phase", "thread" ) );
+        for( Phase p : sorted )
+        {
+            if( p.end < 0 )
+                sb.append( String.format( "  %7d %7s %7s  %-28s %s\n", p.start / 1000000, "-", "-", p.name, p.thread ) );
+            else
+                sb.append( String.format( "  %7d %7d %7d  %-28s %s\n", p.start / 1000000, p.end / 1000000, ( p.end - p.start ) / 1000000, p.name, p.thread ) );
+        }
+        if( interactive >= 0 )
+            sb.append( "  interactive after " ).append( interactive / 1000000 ).append( "ms\n" );
+        return sb.toString();
+    }
+
+    /**
+     * @return one line with the date, the time to interactive and the
+     *         duration of each finished phase
+     */
+    static String summary()
+    {
+        StringBuilder sb = new StringBuilder( new SimpleDateFormat( "yyyy-MM-dd'T'HH:mm:ss" ).format( new Date() ) );
+        sb.append( " interactive=" ).append( interactive / 1000000 );
+        for( Phase p : phases )
+            if( p.end >= 0 )
+                sb.append( ' ' ).append( p.name.replace( ' ', '_' ) ).append( '=' ).append( ( p.end - p.start ) / 1000000 );
+        return sb.append( '\n' ).toString();
+    }
+}
@@ -0,0 +1,180 @@
+package de.mfo.jsurfer.util;
+
+import java.io.*;
+import java.util.zip.*;
+
+/**
+ * Writes an 8 bit RGB PNG image row by row from top to bottom. Only one row
+ * of the image is held in memory at a time, so arbitrarily large images can
+ * be written as long as the caller can produce their rows incrementally.
+ */
+public class StreamingPNGWriter
+{
+    static final byte[] SIGNATURE = { (byte) 137, 80, 78, 71, 13, 10, 26, 10 };
+    static final int IDAT_SIZE = 1 << 16;
+
+    /**
+     * Collects the compressed image data and emits it as IDAT chunks.
+     */
+    class IDATOutputStream extends OutputStream
+    {
+        byte[] buffer = new byte[ IDAT_SIZE ];
+        int count = 0;
+
+        public void write( int b ) throws IOException
+        {
+            if( count == buffer.length )
+                flushChunk();
+            buffer[ count++ ] = (byte) b;
+        }
+
+        public void write( byte[] b, int off, int len ) throws IOException
+        {
+            while( len > 0 )
+            {
+                if( count == buffer.length )
+                    flushChunk();
+                int n = Math.min( len, buffer.length - count );
+                System.arraycopy( b, off, buffer, count, n );
+                count += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        void flushChunk() throws IOException
+        {
+            if( count > 0 )
+                writeChunk( "IDAT", buffer, count );
+            count = 0;
+        }
+    }
+
+    DataOutputStream out;
+    int width;
+    int height;
+    int rowsWritten;
+    byte[] rowBytes;
+    Deflater deflater;
+    IDATOutputStream idat;
+    DeflaterOutputStream compressor;
+
+    public StreamingPNGWriter( OutputStream os, int width, int height )
+            throws IOException
+    {
+        if( width <= 0 || height <= 0 )
+            throw new IllegalArgumentException( "invalid image size " + width + "x" + height );
+        this.out = new DataOutputStream( new BufferedOutputStream( os, IDAT_SIZE ) );
+        this.width = width;
+        this.height = height;
+        this.rowsWritten = 0;
+        this.rowBytes = new byte[ 1 + 3 * width ];
+
+        out.write( SIGNATURE );
+        ByteArrayOutputStream ihdr = new ByteArrayOutputStream( 13 );
+        DataOutputStream dos = new DataOutputStream( ihdr );
+        dos.writeInt( width );
+        dos.writeInt( height );
+        dos.writeByte( 8 ); // bit depth
+        dos.writeByte( 2 ); // color type: RGB
+        dos.writeByte( 0 ); // compression: deflate
+        dos.writeByte( 0 ); // filter method: adaptive
+        dos.writeByte( 0 ); // no interlace
+        writeChunk( "IHDR", ihdr.toByteArray(), 13 );
+
+        deflater = new Deflater( Deflater.DEFAULT_COMPRESSION );
+        idat = new IDATOutputStream();
+        compressor = new DeflaterOutputStream( idat, deflater, IDAT_SIZE );
+    }
+
+    public int getWidth() { return width; }
+    public int getHeight() { return height; }
+
+    /**
+     * Writes the next row (from top to bottom) of the image.
+     * @param rgb packed RGB pixels, the alpha channel is ignored
+     * @param offset the index of the leftmost pixel of the row in rgb
+     */
+    public void writeRow( int[] rgb, int offset )
+            throws IOException
+    {
+        if( rowsWritten == height )
+            throw new IllegalStateException( "all " + height + " rows have already been written" );
+
+        // use the "Sub" filter, which compresses the smooth shading well and needs no previous row
+        rowBytes[ 0 ] = 1;
+        int r = 0, g = 0, b = 0;
+        for( int x = 0, i = 1; x < width; x++ )
+        {
+            int p = rgb[ offset + x ];
+            int nr = ( p >> 16 ) & 0xff, ng = ( p >> 8 ) & 0xff, nb = p & 0xff;
+            rowBytes[ i++ ] = (byte) ( nr - r );
+            rowBytes[ i++ ] = (byte) ( ng - g );
+            rowBytes[ i++ ] = (byte) ( nb - b );
+            r = nr; g = ng; b = nb;
+        }
+        compressor.write( rowBytes, 0, rowBytes.length );
+        rowsWritten++;
+    }
+
+    /**
+     * Writes the compressed data which the encoder has produced so far to the
+     * underlying stream, so that a receiver gets the image while it is written.
+     * The compressor holds back some data, so the last rows may only arrive
+     * later. This ends the current IDAT chunk, so call it for groups of rows.
+     */
+    public void flush()
+            throws IOException
+    {
+        idat.flushChunk();
+        out.flush();
+    }
+
+    /**
+     * Finishes the image and closes the underlying stream.
+     */
+    public void close()
+            throws IOException
+    {
+        try
+        {
+            if( rowsWritten != height )
+                throw new IOException( "only " + rowsWritten + " of " + height + " rows have been written" );
+            compressor.finish();
+            idat.flushChunk();
+            writeChunk( "IEND", new byte[ 0 ], 0 );
+            out.flush();
+        }
+        finally
+        {
+            deflater.end();
+            out.close();
+        }
+    }
+
+    /**
+     * Releases all resources without finishing the image, e.g. after an error.
+     */
+    public void abort()
+    {
+        deflater.end();
+        try
+        {
+            out.close();
+        }
+        catch( IOException ioe ) {}
+    }
+
+    void writeChunk( String type, byte[] data, int length )
+            throws IOException
+    {
+        byte[] typeBytes = type.getBytes( "US-ASCII" );
+        CRC32 crc = new CRC32();
+        crc.update( typeBytes );
+        crc.update( data, 0, length );
+        out.writeInt( length );
+        out.write( typeBytes );
+        out.write( data, 0, length );
+        out.writeInt( (int) crc.getValue() );
+    }
+}